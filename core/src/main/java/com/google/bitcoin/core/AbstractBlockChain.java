@@ -450,7 +450,7 @@ public abstract class AbstractBlockChain {
             //
             // Note that we send the transactions to the wallet FIRST, even if we're about to re-organize this block
             // to become the new best chain head. This simplifies handling of the re-org in the Wallet class.
-            StoredBlock newBlock = storedPrev.build(block);
+            StoredBlock newBlock = storedPrev.build(block, blockStore);
             boolean haveNewBestChain = newBlock.moreWorkThan(head);
             if (haveNewBestChain) {
                 log.info("Block is causing a re-organize");
@@ -690,22 +690,23 @@ public abstract class AbstractBlockChain {
      */
     private static StoredBlock findSplit(StoredBlock newChainHead, StoredBlock oldChainHead,
                                          BlockStore store) throws BlockStoreException {
-        StoredBlock currentChainCursor = oldChainHead;
-        StoredBlock newChainCursor = newChainHead;
-        // Loop until we find the block both chains have in common. Example:
+        // Jump back to the same height on both chains, then walk back until we find the block both have in common.
+        // Example:
         //
         //    A -> B -> C -> D
         //         \--> E -> F -> G
         //
         // findSplit will return block B. oldChainHead = D and newChainHead = G.
+        int height = Math.min(oldChainHead.getHeight(), newChainHead.getHeight());
+        StoredBlock currentChainCursor = oldChainHead.getAncestor(store, height);
+        checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
+        StoredBlock newChainCursor = newChainHead.getAncestor(store, height);
+        checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
         while (!currentChainCursor.equals(newChainCursor)) {
-            if (currentChainCursor.getHeight() > newChainCursor.getHeight()) {
-                currentChainCursor = currentChainCursor.getPrev(store);
-                checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
-            } else {
-                newChainCursor = newChainCursor.getPrev(store);
-                checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
-            }
+            currentChainCursor = currentChainCursor.getPrev(store);
+            checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
+            newChainCursor = newChainCursor.getPrev(store);
+            checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
         }
         return currentChainCursor;
     }
@@ -821,21 +822,12 @@ public abstract class AbstractBlockChain {
             return;
         }
 
-        // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-        // two weeks after the initial block chain download.
+        // We need to find a block far back in the chain.
         long now = System.currentTimeMillis();
         StoredBlock cursor = blockStore.get(prev.getHash());
 
         int goBack = params.getRetargetBlockCount(cursor);
-
-        for (int i = 0; i < goBack; i++) {
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
-            }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
-        }
+        cursor = getRetargetBlock(cursor, goBack);
 
         long elapsed = System.currentTimeMillis() - now;
         if (elapsed > 50)
@@ -889,6 +881,26 @@ public abstract class AbstractBlockChain {
        }
     }
 
+    /**
+     * Returns the block <tt>goBack</tt> blocks before the given one for a difficulty calculation, or null if the store
+     * doesn't go back that far because the chain was started from a checkpoint. Throws if it runs out of blocks any
+     * sooner, or the given block is null, as that means we're following a broken chain.
+     */
+    @Nullable
+    protected StoredBlock getRetargetBlock(@Nullable StoredBlock cursor, int goBack)
+            throws BlockStoreException, VerificationException {
+        if (goBack == 0)
+            return cursor;
+        if (cursor != null) {
+            StoredBlock ancestor = cursor.getAncestor(blockStore, cursor.getHeight() - goBack);
+            if (ancestor != null || cursor.getAncestor(blockStore, cursor.getHeight() - goBack + 1) != null)
+                return ancestor;
+        }
+        // This should never happen. If it does, it means we are following an incorrect or busted chain.
+        throw new VerificationException(
+                "Difficulty transition point but we did not find a way back to the genesis block.");
+    }
+
     private void checkTestnetDifficulty(StoredBlock storedPrev, Block prev, Block next) throws VerificationException, BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
         // After 15th February 2012 the rules on the testnet change to avoid people running up the difficulty
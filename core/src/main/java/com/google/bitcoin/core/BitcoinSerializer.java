@@ -20,6 +20,7 @@ package com.google.bitcoin.core;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
@@ -29,6 +30,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import static com.google.bitcoin.core.Utils.*;
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * <p>Methods to serialize and de-serialize messages to the Bitcoin network format as defined in
@@ -98,6 +100,45 @@ public class BitcoinSerializer {
      * Writes message to to the output stream.
      */
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
+        out.write(header(name, message));
+        out.write(message);
+    }
+
+    /**
+     * Writes message to to the output stream.
+     */
+    public void serialize(Message message, OutputStream out) throws IOException {
+        serialize(getName(message), message.bitcoinSerialize(), out);
+    }
+
+    /**
+     * Returns message with its header, ready to be written to any number of peers. The payload is
+     * {@link Message#unsafeBitcoinSerialize()} rather than a copy of it. Transactions and blocks keep their frame until
+     * they're next changed, and return it again rather than being serialized and hashed again.
+     */
+    public WireFrame serializeToFrame(Message message) {
+        boolean cacheable = message instanceof Transaction || message instanceof Block;
+        if (cacheable) {
+            WireFrame frame = message.getFrame();
+            if (frame != null && frame.getPacketMagic() == params.getPacketMagic())
+                return frame;
+        }
+        byte[] payload = message.unsafeBitcoinSerialize();
+        WireFrame frame = new WireFrame(params.getPacketMagic(), header(getName(message), payload), payload);
+        if (cacheable)
+            message.setFrame(frame);
+        return frame;
+    }
+
+    private static String getName(Message message) {
+        String name = names.get(message.getClass());
+        if (name == null) {
+            throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
+        }
+        return name;
+    }
+
+    private byte[] header(String name, byte[] message) {
         byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
         uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
 
@@ -111,22 +152,10 @@ public class BitcoinSerializer {
 
         byte[] hash = doubleDigest(message);
         System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
-        out.write(header);
-        out.write(message);
 
         if (log.isDebugEnabled())
             log.debug("Sending {} message: {}", name, bytesToHexString(header) + bytesToHexString(message));
-    }
-
-    /**
-     * Writes message to to the output stream.
-     */
-    public void serialize(Message message, OutputStream out) throws IOException {
-        String name = names.get(message.getClass());
-        if (name == null) {
-            throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
-        }
-        serialize(name, message.bitcoinSerialize(), out);
+        return header;
     }
 
     /**
@@ -168,10 +197,22 @@ public class BitcoinSerializer {
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
         byte[] payloadBytes = new byte[header.size];
         in.get(payloadBytes, 0, header.size);
+        return deserializePayload(header, payloadBytes, null);
+    }
 
+    /**
+     * Deserialize a payload which has already been read into an array of its own. The array isn't copied, so in lazy
+     * or retain mode the message is parsed straight from it and it mustn't be changed afterwards.
+     *
+     * @param hash the double SHA-256 hash of the payload if the caller has worked it out as the bytes arrived, or null
+     *             to hash it here.
+     */
+    public Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes, @Nullable byte[] hash)
+            throws ProtocolException {
+        checkArgument(payloadBytes.length == header.size);
         // Verify the checksum.
-        byte[] hash;
-        hash = doubleDigest(payloadBytes);
+        if (hash == null)
+            hash = doubleDigest(payloadBytes);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -21,7 +21,6 @@ import com.google.bitcoin.script.ScriptBuilder;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
-import com.lambdaworks.crypto.SCrypt;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,7 +30,6 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
-import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedList;
@@ -89,6 +87,12 @@ public class Block extends Message {
     /** Stores the hash of the block. If null, getHash() will recalculate it. */
     private transient Sha256Hash hash;
 
+    /** Stores the proof of work hash of the block. If null, getPoWHash() will recalculate it. */
+    private transient Sha256Hash powHash;
+
+    /** Set once the proof of work has been checked, so verifyHeader() doesn't redo it. Cleared with the hash. */
+    private transient boolean proofOfWorkVerified;
+
     private transient boolean headerParsed;
     private transient boolean transactionsParsed;
 
@@ -177,6 +181,7 @@ public class Block extends Message {
         // This code is not actually necessary, as transient fields are initialized to the default value which is in
         // this case null. However it clears out a FindBugs warning and makes it explicit what we're doing.
         hash = null;
+        powHash = null;
     }
 
     private void parseHeader() throws ProtocolException {
@@ -388,6 +393,30 @@ public class Block extends Message {
         Utils.uint32ToByteStreamLE(nonce, stream);
     }
 
+    /**
+     * Writes the {@link #HEADER_SIZE} byte serialized header into the given buffer, starting at offset. Unlike
+     * serializing a clone made with {@link #cloneAsHeader()} this doesn't allocate.
+     */
+    public void writeHeader(byte[] buf, int offset) {
+        Preconditions.checkArgument(offset + HEADER_SIZE <= buf.length);
+        if (headerBytesValid && bytes != null && bytes.length >= this.offset + HEADER_SIZE) {
+            System.arraycopy(bytes, this.offset, buf, offset, HEADER_SIZE);
+            return;
+        }
+        maybeParseHeader();
+        Utils.uint32ToByteArrayLE(version, buf, offset);
+        writeReversed(prevBlockHash.getBytes(), buf, offset + 4);
+        writeReversed(getMerkleRoot().getBytes(), buf, offset + 36);
+        Utils.uint32ToByteArrayLE(time, buf, offset + 68);
+        Utils.uint32ToByteArrayLE(difficultyTarget, buf, offset + 72);
+        Utils.uint32ToByteArrayLE(nonce, buf, offset + 76);
+    }
+
+    private static void writeReversed(byte[] hash, byte[] buf, int offset) {
+        for (int i = 0; i < hash.length; i++)
+            buf[offset + i] = hash[hash.length - 1 - i];
+    }
+
     private void writeTransactions(OutputStream stream) throws IOException {
         // check for no transaction conditions first
         // must be a more efficient way to do this but I'm tired atm.
@@ -481,7 +510,10 @@ public class Block extends Message {
         if (!transactionBytesValid)
             bytes = null;
         hash = null;
+        powHash = null;
+        proofOfWorkVerified = false;
         checksum = null;
+        setFrame(null);
     }
 
     private void unCacheTransactions() {
@@ -511,23 +543,6 @@ public class Block extends Message {
         }
     }
 
-    /**
-     * Calculates the block scrypt hash by serializing the block and hashing the
-     * resulting bytes.
-     */
-    private Sha256Hash calculateScryptHash() {
-        try {
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
-            writeHeader(bos);
-            byte[] bytes = bos.toByteArray();
-            return new Sha256Hash(Utils.reverseBytes(SCrypt.scrypt(bytes, bytes, 1024, 1, 1, 32)));
-        } catch (IOException e) {
-            throw new RuntimeException(e); // Cannot happen.
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     /**
      * Returns the hash of the block (which for a valid, solved block should be below the target) in the form seen on
      * the block explorer. If you call this on block 1 in the production chain
@@ -547,6 +562,26 @@ public class Block extends Message {
         return hash;
     }
 
+    /**
+     * Returns the hash that is compared against the difficulty target when checking the proof of work, as calculated
+     * by {@link NetworkParameters#calculateBlockPoWHash(Block)}. For Bitcoin this is the same as {@link #getHash()},
+     * for scrypt based chains it is much more expensive to calculate so it is cached in the same way.
+     */
+    public Sha256Hash getPoWHash() {
+        if (powHash == null)
+            powHash = params.calculateBlockPoWHash(this);
+        return powHash;
+    }
+
+    /**
+     * Sets a previously calculated proof of work hash, eg one loaded from a block store alongside the header, so
+     * it doesn't have to be calculated again. The value is not checked.
+     */
+    void setPoWHash(Sha256Hash powHash) {
+        maybeParseHeader();
+        this.powHash = powHash;
+    }
+
     /**
      * The number that is one greater than the largest representable SHA-256
      * hash.
@@ -578,6 +613,8 @@ public class Block extends Message {
         block.difficultyTarget = difficultyTarget;
         block.transactions = null;
         block.hash = getHash().duplicate();
+        block.powHash = powHash;
+        block.proofOfWorkVerified = proofOfWorkVerified;
         return block;
     }
 
@@ -661,20 +698,37 @@ public class Block extends Message {
         //
         // To prevent this attack from being possible, elsewhere we check that the difficultyTarget
         // field is of the right value. This requires us to have the preceeding blocks.
+        if (proofOfWorkVerified)
+            return true;
         BigInteger target = getDifficultyTargetAsInteger();
 
-        BigInteger h = params.calculateBlockPoWHash(this).toBigInteger();
+        Sha256Hash powHash = getPoWHash();
+        BigInteger h = powHash.toBigInteger();
         if (h.compareTo(target) > 0) {
             // Proof of work check failed!
             if (throwException)
-                throw new VerificationException("Hash is higher than target: " + params.calculateBlockPoWHash(this).toString() + " vs "
+                throw new VerificationException("Hash is higher than target: " + powHash.toString() + " vs "
                         + target.toString(16));
             else
                 return false;
         }
+        proofOfWorkVerified = true;
         return true;
     }
 
+    /**
+     * Checks the proof of work without throwing, remembering a success so a later {@link #verifyHeader()} doesn't
+     * have to recompute it. Used by {@link ProofOfWorkVerifier} to check headers ahead of adding them to the chain.
+     */
+    boolean checkProofOfWorkOnce() {
+        maybeParseHeader();
+        try {
+            return checkProofOfWork(false);
+        } catch (VerificationException e) {
+            return false;
+        }
+    }
+
     private void checkTimestamp() throws VerificationException {
         maybeParseHeader();
         // Allow injection of a fake clock to allow unit testing.
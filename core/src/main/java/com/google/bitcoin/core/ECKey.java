@@ -16,12 +16,15 @@
 
 package com.google.bitcoin.core;
 
+import com.google.bitcoin.crypto.ECDSAVerifier;
 import com.google.bitcoin.crypto.EncryptedPrivateKey;
 import com.google.bitcoin.crypto.KeyCrypter;
 import com.google.bitcoin.crypto.KeyCrypterException;
 import com.google.bitcoin.crypto.TransactionSignature;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.bitcoin.NativeSecp256k1;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,10 +46,12 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.SecureRandom;
 import java.security.SignatureException;
 import java.util.Arrays;
+import java.util.List;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
@@ -112,6 +117,8 @@ public class ECKey implements Serializable {
 
     // Transient because it's calculated on demand.
     transient private byte[] pubKeyHash;
+    // The public key decoded for verifying signatures, null until needed or if it can't be decoded.
+    @Nullable transient private ECDSAVerifier.PublicKey decodedPub;
 
     /**
      * Generates an entirely new keypair. Point compression is used so the resulting public key will be 33 bytes
@@ -424,6 +431,13 @@ public class ECKey implements Serializable {
     @VisibleForTesting
     public static boolean FAKE_SIGNATURES = false;
 
+    /**
+     * If set to true, verify() checks signatures with Bouncy Castle's ECDSASigner instead of {@link ECDSAVerifier}. It
+     * is much slower, but it's what signatures were always checked with, so it's kept to switch back to should the two
+     * ever be found to disagree.
+     */
+    public static volatile boolean BOUNCY_CASTLE_VERIFY = false;
+
     /**
      * Signs the given hash and returns the R and S components as BigIntegers. In the Bitcoin protocol, they are
      * usually encoded using DER format, so you want {@link com.google.bitcoin.core.ECKey.ECDSASignature#encodeToDER()}
@@ -483,11 +497,51 @@ public class ECKey implements Serializable {
      * @param pub       The public key bytes to use.
      */
     public static boolean verify(byte[] data, ECDSASignature signature, byte[] pub) {
+        return verify(data, signature, pub, null);
+    }
+
+    // The key, if given, is pub already decoded.
+    private static boolean verify(byte[] data, ECDSASignature signature, byte[] pub,
+                                  @Nullable ECDSAVerifier.PublicKey key) {
         if (FAKE_SIGNATURES)
             return true;
 
+        // Signatures seen before, eg in a pending transaction that's now in a block, don't need checking again.
+        SignatureCache cache = SignatureCache.getDefault();
+        if (cache != null && cache.isKnownValid(data, signature, pub))
+            return true;
+        boolean valid;
         if (NativeSecp256k1.enabled)
-            return NativeSecp256k1.verify(data, signature.encodeToDER(), pub);
+            valid = NativeSecp256k1.verify(data, signature.encodeToDER(), pub);
+        else
+            valid = verifyUncached(data, signature, pub, key != null ? key : decodePublicKey(pub));
+        if (valid && cache != null)
+            cache.addValid(data, signature, pub);
+        return valid;
+    }
+
+    // Public keys that were verified against recently, decoded and with their tables built. Keys that can't be
+    // decoded aren't remembered, they're rare and Bouncy Castle deals with them.
+    private static final Cache<ByteBuffer, ECDSAVerifier.PublicKey> decodedPublicKeys =
+            CacheBuilder.newBuilder().maximumSize(1000).build();
+
+    @Nullable
+    private static ECDSAVerifier.PublicKey decodePublicKey(byte[] pub) {
+        ECDSAVerifier.PublicKey key = decodedPublicKeys.getIfPresent(ByteBuffer.wrap(pub));
+        if (key == null) {
+            key = ECDSAVerifier.decode(pub);
+            // Copied, as the caller may reuse its array.
+            if (key != null)
+                decodedPublicKeys.put(ByteBuffer.wrap(pub.clone()), key);
+        }
+        return key;
+    }
+
+    // Uses the decoded key if there is one, otherwise leaves the unusual encoding to Bouncy Castle.
+    private static boolean verifyUncached(byte[] data, ECDSASignature signature, byte[] pub,
+                                          @Nullable ECDSAVerifier.PublicKey key) {
+        if (key != null && !BOUNCY_CASTLE_VERIFY)
+            return ECDSAVerifier.verify(data, signature.r, signature.s, key);
 
         ECDSASigner signer = new ECDSASigner();
         ECPublicKeyParameters params = new ECPublicKeyParameters(CURVE.getCurve().decodePoint(pub), CURVE);
@@ -503,6 +557,58 @@ public class ECKey implements Serializable {
         }
     }
 
+    /**
+     * A signature to check with {@link ECKey#verify(java.util.List)}: the hash that was signed, the signature and the
+     * public key bytes.
+     */
+    public static class SignatureCheck {
+        public final byte[] data;
+        public final ECDSASignature signature;
+        public final byte[] pub;
+
+        public SignatureCheck(byte[] data, ECDSASignature signature, byte[] pub) {
+            this.data = data;
+            this.signature = signature;
+            this.pub = pub;
+        }
+    }
+
+    /**
+     * <p>Verifies many signatures at once, returning whether each one is valid in the same order. The answers are the
+     * same as {@link #verify(byte[], ECKey.ECDSASignature, byte[])} would give. Decoded public keys, along with the
+     * multiples of them used for verification, are kept for the signatures that follow, so put signatures by the
+     * same key next to each other. Signatures in
+     * the {@link SignatureCache} aren't checked again. A check that would make the single verify method throw, eg
+     * because its public key can't be decoded, is reported as invalid.</p>
+     *
+     * <p>Runs on the calling thread. To use several cores, split the checks so that those with the same public key
+     * stay together, as {@link ScriptVerifier} does.</p>
+     */
+    public static boolean[] verify(List<SignatureCheck> checks) {
+        boolean[] results = new boolean[checks.size()];
+        SignatureCache cache = SignatureCache.getDefault();
+        for (int i = 0; i < results.length; i++) {
+            SignatureCheck check = checks.get(i);
+            if (FAKE_SIGNATURES || (cache != null && cache.isKnownValid(check.data, check.signature, check.pub))) {
+                results[i] = true;
+                continue;
+            }
+            try {
+                if (NativeSecp256k1.enabled) {
+                    results[i] = NativeSecp256k1.verify(check.data, check.signature.encodeToDER(), check.pub);
+                } else {
+                    results[i] = verifyUncached(check.data, check.signature, check.pub, decodePublicKey(check.pub));
+                }
+            } catch (RuntimeException e) {
+                // Eg a public key that can't be decoded. One bad check mustn't stop the others being done.
+                results[i] = false;
+            }
+            if (results[i] && cache != null)
+                cache.addValid(check.data, check.signature, check.pub);
+        }
+        return results;
+    }
+
     /**
      * Verifies the given ASN.1 encoded ECDSA signature against a hash using the public key.
      *
@@ -511,7 +617,7 @@ public class ECKey implements Serializable {
      * @param pub       The public key bytes to use.
      */
     public static boolean verify(byte[] data, byte[] signature, byte[] pub) {
-        if (NativeSecp256k1.enabled)
+        if (NativeSecp256k1.enabled && SignatureCache.getDefault() == null)
             return NativeSecp256k1.verify(data, signature, pub);
         return verify(data, ECDSASignature.decodeFromDER(signature), pub);
     }
@@ -523,14 +629,21 @@ public class ECKey implements Serializable {
      * @param signature ASN.1 encoded signature.
      */
     public boolean verify(byte[] data, byte[] signature) {
-        return ECKey.verify(data, signature, getPubKey());
+        return verify(data, ECDSASignature.decodeFromDER(signature));
+    }
+
+    // Keys that verify signatures tend to verify a lot of them, so each keeps its decoded public key.
+    private boolean verify(byte[] data, ECDSASignature signature) {
+        if (decodedPub == null && !NativeSecp256k1.enabled)
+            decodedPub = ECDSAVerifier.decode(pub);
+        return verify(data, signature, pub, decodedPub);
     }
 
     /**
      * Verifies the given R/S pair (signature) against a hash using the public key.
      */
     public boolean verify(Sha256Hash sigHash, ECDSASignature signature) {
-        return ECKey.verify(sigHash.getBytes(), signature, getPubKey());
+        return verify(sigHash.getBytes(), signature);
     }
 
     /**
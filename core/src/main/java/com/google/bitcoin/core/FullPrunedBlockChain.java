@@ -22,14 +22,10 @@ import com.google.bitcoin.store.FullPrunedBlockStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.annotation.Nullable;
 import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.ListIterator;
-import java.util.concurrent.*;
+import java.util.*;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -49,6 +45,9 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     // Whether or not to execute scriptPubKeys before accepting a transaction (i.e. check signatures).
     private boolean runScripts = true;
 
+    // Checks the scripts of each block's inputs on a shared pool of threads.
+    private ScriptVerifier scriptVerifier = ScriptVerifier.getDefault();
+
     /**
      * Constructs a BlockChain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
      * one from scratch, or you can deserialize a saved wallet from disk using {@link Wallet#loadFromFile(java.io.File)}
@@ -81,7 +80,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     @Override
     protected StoredBlock addToBlockStore(StoredBlock storedPrev, Block header, TransactionOutputChanges txOutChanges)
             throws BlockStoreException, VerificationException {
-        StoredBlock newBlock = storedPrev.build(header);
+        StoredBlock newBlock = storedPrev.build(header, blockStore);
         blockStore.put(newBlock, new StoredUndoableBlock(newBlock.getHeader().getHash(), txOutChanges));
         return newBlock;
     }
@@ -89,7 +88,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     @Override
     protected StoredBlock addToBlockStore(StoredBlock storedPrev, Block block)
             throws BlockStoreException, VerificationException {
-        StoredBlock newBlock = storedPrev.build(block);
+        StoredBlock newBlock = storedPrev.build(block, blockStore);
         blockStore.put(newBlock, new StoredUndoableBlock(newBlock.getHeader().getHash(), block.transactions));
         return newBlock;
     }
@@ -112,34 +111,64 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     
     //TODO: Remove lots of duplicated code in the two connectTransactions
     
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-    /** A job submitted to the executor which verifies signatures. */
-    private static class Verifier implements Callable<VerificationException> {
-        final Transaction tx;
-        final List<Script> prevOutScripts;
-        final boolean enforcePayToScriptHash;
+    /**
+     * Sets the {@link ScriptVerifier} that checks scripts whilst accepting blocks. Defaults to
+     * {@link ScriptVerifier#getDefault()}, set a different one to control how many threads and how much memory are
+     * given to signature checking.
+     */
+    public void setScriptVerifier(ScriptVerifier scriptVerifier) {
+        this.scriptVerifier = checkNotNull(scriptVerifier);
+    }
 
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final boolean enforcePayToScriptHash) {
-            this.tx = tx; this.prevOutScripts = prevOutScripts; this.enforcePayToScriptHash = enforcePayToScriptHash;
+    /**
+     * Looks up all the outputs the given transactions spend in one call to the store, so that connecting them doesn't
+     * wait on the store for every input. Outputs created by an earlier transaction in the list aren't looked up, they
+     * are added to the returned map as the transactions are connected. If checkBIP30 is set, the outputs the
+     * transactions create are looked up too, and a VerificationException is thrown if any of them already exist.
+     */
+    private Map<TransactionOutPoint, StoredTransactionOutput> prefetchOutputs(List<Transaction> transactions,
+                                                                             boolean checkBIP30)
+            throws BlockStoreException, VerificationException {
+        Set<TransactionOutPoint> outPoints = new LinkedHashSet<TransactionOutPoint>();
+        Set<Sha256Hash> created = new HashSet<Sha256Hash>();
+        for (Transaction tx : transactions) {
+            if (!tx.isCoinBase()) {
+                for (TransactionInput in : tx.getInputs()) {
+                    if (!created.contains(in.getOutpoint().getHash()))
+                        outPoints.add(in.getOutpoint());
+                }
+            }
+            Sha256Hash hash = tx.getHash();
+            created.add(hash);
+            if (checkBIP30) {
+                for (TransactionOutput out : tx.getOutputs())
+                    outPoints.add(new TransactionOutPoint(params, out.getIndex(), hash));
+            }
         }
-
-        @Nullable
-        @Override
-        public VerificationException call() throws Exception {
-            try{
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), enforcePayToScriptHash);
+        List<TransactionOutPoint> outPointList = new ArrayList<TransactionOutPoint>(outPoints);
+        List<StoredTransactionOutput> outputs = blockStore.getTransactionOutputs(outPointList);
+        Map<TransactionOutPoint, StoredTransactionOutput> found = new HashMap<TransactionOutPoint, StoredTransactionOutput>();
+        for (int i = 0; i < outputs.size(); i++) {
+            if (outputs.get(i) != null)
+                found.put(outPointList.get(i), outputs.get(i));
+        }
+        if (checkBIP30) {
+            // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
+            // checkpoints list and we therefore only check non-checkpoints for duplicated transactions here. See the
+            // BIP30 document for more details on this: https://en.bitcoin.it/wiki/BIP_0030
+            for (Transaction tx : transactions) {
+                // If we already have unspent outputs for this hash, we saw the tx already. Either the block is
+                // being added twice (bug) or the block is a BIP30 violator.
+                Sha256Hash hash = tx.getHash();
+                for (TransactionOutput out : tx.getOutputs()) {
+                    if (found.containsKey(new TransactionOutPoint(params, out.getIndex(), hash)))
+                        throw new VerificationException("Block failed BIP30 test!");
                 }
-            } catch (VerificationException e) {
-                return e;
             }
-            return null;
         }
+        return found;
     }
-    
+
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block)
             throws VerificationException, BlockStoreException {
@@ -156,23 +185,16 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         long sigOps = 0;
         final boolean enforcePayToScriptHash = block.getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
         
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-        
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
+        // One job for the whole block, so that its signatures are verified together.
+        ScriptVerifier.Job scriptVerification = scriptVerifier.newJob();
         try {
-            if (!params.isCheckpoint(height)) {
-                // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
-                // checkpoints list and we therefore only check non-checkpoints for duplicated transactions here. See the
-                // BIP30 document for more details on this: https://en.bitcoin.it/wiki/BIP_0030
+            // The unspent outputs this block spends, kept up to date as its transactions are connected.
+            Map<TransactionOutPoint, StoredTransactionOutput> outputs =
+                    prefetchOutputs(block.transactions, !params.isCheckpoint(height));
+            if (!params.isCheckpoint(height) && enforcePayToScriptHash) {
                 for (Transaction tx : block.transactions) {
-                    Sha256Hash hash = tx.getHash();
-                    // If we already have unspent outputs for this hash, we saw the tx already. Either the block is
-                    // being added twice (bug) or the block is a BIP30 violator.
-                    if (blockStore.hasUnspentOutputs(hash, tx.getOutputs().size()))
-                        throw new VerificationException("Block failed BIP30 test!");
-                    if (enforcePayToScriptHash) // We already check non-BIP16 sigops in Block.verifyTransactions(true)
-                        sigOps += tx.getSigOpCount();
+                    // We already check non-BIP16 sigops in Block.verifyTransactions(true)
+                    sigOps += tx.getSigOpCount();
                 }
             }
             BigInteger totalFees = BigInteger.ZERO;
@@ -187,8 +209,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     // outputs.
                     for (int index = 0; index < tx.getInputs().size(); index++) {
                         TransactionInput in = tx.getInputs().get(index);
-                        StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                          in.getOutpoint().getIndex());
+                        StoredTransactionOutput prevOut = outputs.remove(in.getOutpoint());
                         if (prevOut == null)
                             throw new VerificationException("Attempted to spend a non-existent or already spent output!");
                         // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
@@ -220,6 +241,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     StoredTransactionOutput newOut = new StoredTransactionOutput(hash, out.getIndex(), out.getValue(),
                             height, isCoinBase, out.getScriptBytes());
                     blockStore.addUnspentTransactionOutput(newOut);
+                    outputs.put(new TransactionOutPoint(params, out.getIndex(), hash), newOut);
                     txOutsCreated.add(newOut);
                 }
                 // All values were already checked for being non-negative (as it is verified in Transaction.verify())
@@ -235,33 +257,18 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 }
                 
                 if (!isCoinBase && runScripts) {
-                    // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
+                    scriptVerification.addAll(tx, prevOutScripts, enforcePayToScriptHash);
                 }
             }
             if (totalFees.compareTo(params.getMaxMoney()) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            scriptVerification.await();
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -286,6 +293,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        // One job for the whole block, so that its signatures are verified together.
+        ScriptVerifier.Job scriptVerification = scriptVerifier.newJob();
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
@@ -293,19 +302,10 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 LinkedList<StoredTransactionOutput> txOutsCreated = new LinkedList<StoredTransactionOutput>();
                 long sigOps = 0;
                 final boolean enforcePayToScriptHash = newBlock.getHeader().getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
-                if (!params.isCheckpoint(newBlock.getHeight())) {
-                    for(Transaction tx : transactions) {
-                        Sha256Hash hash = tx.getHash();
-                        if (blockStore.hasUnspentOutputs(hash, tx.getOutputs().size()))
-                            throw new VerificationException("Block failed BIP30 test!");
-                    }
-                }
+                Map<TransactionOutPoint, StoredTransactionOutput> outputs =
+                        prefetchOutputs(transactions, !params.isCheckpoint(newBlock.getHeight()));
                 BigInteger totalFees = BigInteger.ZERO;
                 BigInteger coinbaseValue = null;
-                
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
                 for(final Transaction tx : transactions) {
                     boolean isCoinBase = tx.isCoinBase();
                     BigInteger valueIn = BigInteger.ZERO;
@@ -314,8 +314,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     if (!isCoinBase) {
                         for (int index = 0; index < tx.getInputs().size(); index++) {
                             final TransactionInput in = tx.getInputs().get(index);
-                            final StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                                    in.getOutpoint().getIndex());
+                            final StoredTransactionOutput prevOut = outputs.remove(in.getOutpoint());
                             if (prevOut == null)
                                 throw new VerificationException("Attempted spend of a non-existent or already spent output!");
                             if (newBlock.getHeight() - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
@@ -342,6 +341,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                                                                                      newBlock.getHeight(), isCoinBase,
                                                                                      out.getScriptBytes());
                         blockStore.addUnspentTransactionOutput(newOut);
+                        outputs.put(new TransactionOutPoint(params, out.getIndex(), hash), newOut);
                         txOutsCreated.add(newOut);
                     }
                     // All values were already checked for being non-negative (as it is verified in Transaction.verify())
@@ -357,29 +357,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     }
                     
                     if (!isCoinBase) {
-                        // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, enforcePayToScriptHash));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
+                        scriptVerification.addAll(tx, prevOutScripts, enforcePayToScriptHash);
                     }
                 }
                 if (totalFees.compareTo(params.getMaxMoney()) > 0 ||
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                scriptVerification.await();
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -394,11 +379,11 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
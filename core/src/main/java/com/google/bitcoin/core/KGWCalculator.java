@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.core.NetworkParameters.KGWParams;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Calculates Kimoto Gravity Well difficulty targets, keeping a rolling window of the times and decoded targets of
+ * the last {@link KGWParams#pastBlocksMax} blocks it was asked about.</p>
+ *
+ * <p>The window follows the chain: when asked about a block that extends the window only that block is read, and
+ * after a re-org only the blocks back to the fork point, and as many older ones as the re-org pushed out of the window,
+ * are read from the store. The whole window is re-read only if the fork point is further back than the window reaches,
+ * or on first use. Each calculation then runs over the
+ * window in memory with {@link KimotoGravityWell}, without store lookups, compact bits decoding or logging.</p>
+ *
+ * <p>Results are identical to walking the chain through the block store as the original gravity well code does. This
+ * class is not thread safe; the block chains use it while holding their lock.</p>
+ */
+public class KGWCalculator {
+    private final NetworkParameters params;
+    private final KGWParams kgwParams;
+    private final KimotoGravityWell gravityWell;
+    private final int capacity;
+
+    // The window, indexed by height modulo capacity. It holds blocks (tipHeight - size, tipHeight].
+    private final Sha256Hash[] hashes;
+    private final long[] times;
+    private final int[] targets;
+    private int tipHeight;
+    private int size;
+    // True if the oldest block in the window is the first one the store has, so it can't be extended backwards.
+    private boolean complete;
+
+    private final int[] scratch = new int[KimotoGravityWell.WORDS];
+    private final int[] result = new int[KimotoGravityWell.RESULT_WORDS];
+
+    public KGWCalculator(NetworkParameters params) {
+        this.params = checkNotNull(params);
+        this.kgwParams = checkNotNull(params.getKgwParams());
+        gravityWell = new KimotoGravityWell(kgwParams);
+        capacity = gravityWell.getPastBlocksMax();
+        hashes = new Sha256Hash[capacity];
+        times = new long[capacity];
+        targets = new int[capacity * KimotoGravityWell.WORDS];
+    }
+
+    /**
+     * Returns the difficulty target the block after <tt>storedPrev</tt> should have, before it's reduced to compact
+     * precision or capped at the proof of work limit.
+     *
+     * @param minActualSeconds the smallest time span the past blocks are taken to cover, 0 for the original
+     *                         algorithm. Some chains use 1 to fix a time warp attack.
+     */
+    public BigInteger getNextTarget(StoredBlock storedPrev, BlockStore store, long minActualSeconds)
+            throws BlockStoreException {
+        if ((storedPrev == null) || (storedPrev.getHeight() == 0) || (storedPrev.getHeight() < kgwParams.pastBlocksMin))
+            return params.getProofOfWorkLimit();
+        moveTo(storedPrev, store);
+        gravityWell.nextTarget(targets, times, slot(tipHeight), size, minActualSeconds, scratch, result);
+        return KimotoGravityWell.toBigInteger(result, KimotoGravityWell.RESULT_WORDS);
+    }
+
+    /** Forgets all cached blocks, so the next calculation reads its whole window from the block store. */
+    public void reset() {
+        size = 0;
+        tipHeight = 0;
+        complete = false;
+    }
+
+    private int slot(int height) {
+        return height % capacity;
+    }
+
+    private boolean contains(StoredBlock block) {
+        int height = block.getHeight();
+        return size > 0 && height <= tipHeight && height > tipHeight - size &&
+                hashes[slot(height)].equals(block.getHeader().getHash());
+    }
+
+    // Makes storedPrev the tip of the window, reading whatever blocks the window doesn't already have.
+    private void moveTo(StoredBlock storedPrev, BlockStore store) throws BlockStoreException {
+        if (size > 0 && storedPrev.getHeight() == tipHeight && contains(storedPrev))
+            return;
+        // Walk back to the newest block we already have, or until we have read a whole window.
+        List<StoredBlock> branch = new ArrayList<StoredBlock>();
+        StoredBlock cursor = storedPrev;
+        boolean connected = false;
+        while (cursor != null && cursor.getHeight() > 0 && branch.size() < capacity) {
+            if (contains(cursor)) {
+                connected = true;
+                break;
+            }
+            branch.add(cursor);
+            cursor = cursor.getPrev(store);
+        }
+        if (connected) {
+            size -= tipHeight - cursor.getHeight();
+            tipHeight = cursor.getHeight();
+        } else {
+            size = 0;
+            complete = branch.size() < capacity;
+        }
+        for (int i = branch.size() - 1; i >= 0; i--) {
+            StoredBlock block = branch.get(i);
+            set(block);
+            tipHeight = block.getHeight();
+            if (size == capacity)
+                complete = false;  // The oldest block just dropped out, so the window can be extended again.
+            else
+                size++;
+        }
+        // A re-org replaced blocks at the top of the window, so top it up again from the bottom.
+        if (size < capacity && !complete) {
+            cursor = store.get(hashes[slot(tipHeight - size + 1)]);
+            while (size < capacity) {
+                cursor = cursor == null ? null : cursor.getPrev(store);
+                if (cursor == null || cursor.getHeight() == 0) {
+                    complete = true;
+                    break;
+                }
+                set(cursor);
+                size++;
+            }
+        }
+    }
+
+    private void set(StoredBlock block) {
+        Block header = block.getHeader();
+        int slot = slot(block.getHeight());
+        hashes[slot] = header.getHash();
+        times[slot] = header.getTimeSeconds();
+        KimotoGravityWell.decodeCompactBits(header.getDifficultyTarget(), targets, slot * KimotoGravityWell.WORDS);
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.core.NetworkParameters.KGWParams;
+
+import java.math.BigInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>The Kimoto Gravity Well difficulty algorithm, working on plain arrays of block times and targets.</p>
+ *
+ * <p>Targets are held as 256 bit unsigned integers of {@link #WORDS} little endian 32 bit words, so the running
+ * average is calculated without {@link BigInteger}s and {@link #nextTarget} doesn't allocate anything. The results are
+ * the same as those of the original BigInteger code, including its rounding towards zero when the average goes down.
+ * Objects of this class are immutable, so one can be used from several threads at once as long as each passes its own
+ * arrays.</p>
+ */
+public class KimotoGravityWell {
+    /** The number of 32 bit words in a target. */
+    public static final int WORDS = 8;
+    /** The number of 32 bit words in a result, which can be larger than a target. */
+    public static final int RESULT_WORDS = WORDS + 1;
+
+    private static final long MASK = 0xFFFFFFFFL;
+
+    private final KGWParams kgwParams;
+    // The event horizon bounds for each past block mass, which only depend on the mass.
+    private final double[] horizonFast;
+    private final double[] horizonSlow;
+
+    public KimotoGravityWell(KGWParams kgwParams) {
+        this.kgwParams = checkNotNull(kgwParams);
+        checkArgument(kgwParams.pastBlocksMax > 0 && kgwParams.blocksTargetSpacing > 0);
+        // Both the block count and the target time span are divisors below, and must fit in 31 bits.
+        checkArgument(kgwParams.blocksTargetSpacing * kgwParams.pastBlocksMax <= Integer.MAX_VALUE);
+        int max = (int) kgwParams.pastBlocksMax;
+        horizonFast = new double[max + 1];
+        horizonSlow = new double[max + 1];
+        for (int mass = 1; mass <= max; mass++) {
+            double eventHorizonDeviation = 1 + (0.7084 * Math.pow((((double) mass) / (double) 144), -1.228));
+            horizonFast[mass] = eventHorizonDeviation;
+            horizonSlow[mass] = 1 / eventHorizonDeviation;
+        }
+    }
+
+    /** Returns the most blocks the algorithm looks back at. */
+    public int getPastBlocksMax() {
+        return (int) kgwParams.pastBlocksMax;
+    }
+
+    /**
+     * Calculates the target for the block after the newest of the given blocks, before it's reduced to compact
+     * precision or capped at the proof of work limit.
+     *
+     * <p>The blocks are held in a ring: block <tt>k</tt> back from the newest (starting at 0) is at index
+     * <tt>(newest - k) mod times.length</tt>, with its time at that index of <tt>times</tt> and its target in the
+     * {@link #WORDS} words at <tt>WORDS</tt> times that index of <tt>targets</tt>.</p>
+     *
+     * @param count how many blocks the ring holds. If the algorithm wants more it stops there, as it does on reaching
+     *              the genesis block.
+     * @param minActualSeconds the smallest time span the past blocks are taken to cover, 0 for the original
+     *                         algorithm. Some chains use 1 to fix a time warp attack.
+     * @param scratch {@link #WORDS} words of working space
+     * @param result receives the new target in its first {@link #RESULT_WORDS} words
+     */
+    public void nextTarget(int[] targets, long[] times, int newest, int count, long minActualSeconds,
+                           int[] scratch, int[] result) {
+        final int length = times.length;
+        checkArgument(targets.length >= length * WORDS && count <= length && newest >= 0 && newest < length);
+        checkArgument(scratch.length >= WORDS && result.length >= RESULT_WORDS);
+        final int max = Math.min(count, getPastBlocksMax());
+
+        long pastBlocksMass = 0;
+        long pastRateActualSeconds = 0;
+        long pastRateTargetSeconds = 0;
+        for (int w = 0; w < RESULT_WORDS; w++)
+            result[w] = 0;
+        final long lastSolvedTime = times[newest];
+        int index = newest;
+        for (int i = 1; i <= max; i++) {
+            pastBlocksMass++;
+            final int offset = index * WORDS;
+            if (i == 1) {
+                System.arraycopy(targets, offset, result, 0, WORDS);
+            } else {
+                // average = (target - average) / i + average, with the division rounding towards zero.
+                if (compare(targets, offset, result) >= 0) {
+                    subtract(targets, offset, result, 0, scratch);
+                    divide(scratch, WORDS, i);
+                    add(result, scratch);
+                } else {
+                    subtract(result, 0, targets, offset, scratch);
+                    divide(scratch, WORDS, i);
+                    subtract(result, scratch);
+                }
+            }
+
+            pastRateActualSeconds = lastSolvedTime - times[index];
+            pastRateTargetSeconds = kgwParams.blocksTargetSpacing * pastBlocksMass;
+            if (pastRateActualSeconds < minActualSeconds)
+                pastRateActualSeconds = minActualSeconds;
+            if (pastRateActualSeconds < 0)
+                pastRateActualSeconds = 0;
+            double pastRateAdjustmentRatio = 1.0;
+            if (pastRateActualSeconds != 0 && pastRateTargetSeconds != 0)
+                pastRateAdjustmentRatio = (double) pastRateTargetSeconds / (double) pastRateActualSeconds;
+
+            if (pastBlocksMass >= kgwParams.pastBlocksMin) {
+                if ((pastRateAdjustmentRatio <= horizonSlow[i]) || (pastRateAdjustmentRatio >= horizonFast[i]))
+                    break;
+            }
+            index = index == 0 ? length - 1 : index - 1;
+        }
+
+        if ((pastRateActualSeconds != 0) && (pastRateTargetSeconds != 0)) {
+            checkArgument(pastRateActualSeconds <= MASK, "Block times are more than 2^32 seconds apart");
+            multiply(result, pastRateActualSeconds);
+            divide(result, RESULT_WORDS, pastRateTargetSeconds);
+        }
+    }
+
+    /**
+     * Writes the target encoded by the given compact bits into {@link #WORDS} words of <tt>out</tt> at
+     * <tt>offset</tt>. Throws an IllegalArgumentException if it is negative or doesn't fit in 256 bits.
+     */
+    public static void decodeCompactBits(long compact, int[] out, int offset) {
+        int size = (int) (compact >> 24) & 0xFF;
+        long mantissa = compact & 0x007FFFFFL;
+        if (size <= 3)
+            mantissa >>>= 8 * (3 - size);
+        checkArgument((compact & 0x00800000L) == 0 || mantissa == 0, "Negative target");
+        for (int w = 0; w < WORDS; w++)
+            out[offset + w] = 0;
+        if (size <= 3) {
+            out[offset] = (int) mantissa;
+            return;
+        }
+        int shift = 8 * (size - 3);
+        checkArgument(mantissa == 0 || shift + 64 - Long.numberOfLeadingZeros(mantissa) <= WORDS * 32,
+                "Target does not fit in 256 bits");
+        int word = shift / 32, bits = shift % 32;
+        long shifted = mantissa << bits;
+        out[offset + word] = (int) shifted;
+        if (word + 1 < WORDS)
+            out[offset + word + 1] = (int) (shifted >>> 32);
+    }
+
+    /** Returns the first <tt>words</tt> words of <tt>value</tt> as a non-negative BigInteger. */
+    public static BigInteger toBigInteger(int[] value, int words) {
+        byte[] bytes = new byte[words * 4 + 1];
+        for (int w = 0; w < words; w++) {
+            int v = value[w];
+            int i = bytes.length - 1 - w * 4;
+            bytes[i] = (byte) v;
+            bytes[i - 1] = (byte) (v >>> 8);
+            bytes[i - 2] = (byte) (v >>> 16);
+            bytes[i - 3] = (byte) (v >>> 24);
+        }
+        return new BigInteger(bytes);
+    }
+
+    // Compares the WORDS words of a at offset with the first WORDS words of b as unsigned numbers.
+    private static int compare(int[] a, int offset, int[] b) {
+        for (int w = WORDS - 1; w >= 0; w--) {
+            long x = a[offset + w] & MASK, y = b[w] & MASK;
+            if (x != y)
+                return x < y ? -1 : 1;
+        }
+        return 0;
+    }
+
+    // out = a - b for the WORDS words at the given offsets, where a >= b.
+    private static void subtract(int[] a, int aOffset, int[] b, int bOffset, int[] out) {
+        long borrow = 0;
+        for (int w = 0; w < WORDS; w++) {
+            long d = (a[aOffset + w] & MASK) - (b[bOffset + w] & MASK) - borrow;
+            out[w] = (int) d;
+            borrow = d < 0 ? 1 : 0;
+        }
+    }
+
+    // a -= b, where a >= b.
+    private static void subtract(int[] a, int[] b) {
+        subtract(a, 0, b, 0, a);
+    }
+
+    // a += b, where the sum fits in WORDS words.
+    private static void add(int[] a, int[] b) {
+        long carry = 0;
+        for (int w = 0; w < WORDS; w++) {
+            long s = (a[w] & MASK) + (b[w] & MASK) + carry;
+            a[w] = (int) s;
+            carry = s >>> 32;
+        }
+    }
+
+    // The first WORDS words of a times an unsigned 32 bit multiplier, into RESULT_WORDS words.
+    private static void multiply(int[] a, long multiplier) {
+        long carry = 0;
+        for (int w = 0; w < WORDS; w++) {
+            long p = (a[w] & MASK) * multiplier + carry;
+            a[w] = (int) p;
+            carry = p >>> 32;
+        }
+        a[WORDS] = (int) carry;
+    }
+
+    // Divides the first words words of a by a positive divisor below 2^31, rounding down.
+    private static void divide(int[] a, int words, long divisor) {
+        long remainder = 0;
+        for (int w = words - 1; w >= 0; w--) {
+            long n = (remainder << 32) | (a[w] & MASK);
+            a[w] = (int) (n / divisor);
+            remainder = n % divisor;
+        }
+    }
+}
@@ -19,6 +19,7 @@ package com.google.bitcoin.core;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.*;
 import java.math.BigInteger;
 import java.util.Arrays;
@@ -61,6 +62,10 @@ public abstract class Message implements Serializable {
 
     protected transient byte[] checksum;
 
+    // What BitcoinSerializer last serialized this message to, if it's a kind it keeps frames for. Forgotten whenever
+    // the message changes.
+    private transient volatile WireFrame frame;
+
     // This will be saved by subclasses that implement Serializable.
     protected NetworkParameters params;
 
@@ -219,6 +224,7 @@ public abstract class Message implements Serializable {
         checksum = null;
         bytes = null;
         recached = false;
+        frame = null;
     }
 
     protected void adjustLength(int newArraySize, int adjustment) {
@@ -269,6 +275,17 @@ public abstract class Message implements Serializable {
         return checksum;
     }
 
+    /** Should only be used by BitcoinSerializer */
+    @Nullable
+    WireFrame getFrame() {
+        return frame;
+    }
+
+    /** Should only be used by BitcoinSerializer, and by subclasses to forget the frame when they change. */
+    void setFrame(@Nullable WireFrame frame) {
+        this.frame = frame;
+    }
+
     /**
      * Should only used by BitcoinSerializer for caching checksum
      *
@@ -119,6 +119,9 @@ public class Peer extends PeerSocketHandler {
     private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<Sha256Hash>();
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion = Pong.MIN_PROTOCOL_VERSION;
+    // Checks the proof of work of received headers in parallel before they are added to the chain one by one. Null
+    // means headers are only checked as part of AbstractBlockChain.add().
+    @Nullable private volatile ProofOfWorkVerifier vProofOfWorkVerifier = ProofOfWorkVerifier.getDefault();
     // When an API user explicitly requests a block or transaction from a peer, the InventoryItem is put here
     // whilst waiting for the response. Is not used for downloads Peer generates itself.
     private static class GetDataRequest {
@@ -130,6 +133,9 @@ public class Peer extends PeerSocketHandler {
         long nonce;
     }
     private final CopyOnWriteArrayList<GetDataRequest> getDataFutures;
+    // Replies to the peer's getdata messages which are waiting for the send queue to drain before they're sent.
+    private final ReentrantLock getDataRepliesLock = Threading.lock("peer getdata replies");
+    @GuardedBy("getDataRepliesLock") private final LinkedList<Message> getDataReplies = new LinkedList<Message>();
 
     // Outstanding pings against this peer and how long the last one took to complete.
     private final ReentrantLock lastPingTimesLock = new ReentrantLock();
@@ -466,6 +472,7 @@ public class Peer extends PeerSocketHandler {
 
         try {
             checkState(!downloadBlockBodies, toString());
+            verifyHeadersProofOfWork(m.getBlockHeaders(), fastCatchupTimeSecs);
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
                 Block header = m.getBlockHeaders().get(i);
                 // Process headers until we pass the fast catchup time, or are about to catch up with the head
@@ -521,6 +528,23 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    // Checks the PoW of the headers we are going to add to the chain without holding the chain lock, so the (possibly
+    // scrypt based) hashing can use all cores. Only headers up to the fast catchup time are considered as the rest will
+    // be thrown away and downloaded as full blocks.
+    private void verifyHeadersProofOfWork(List<Block> headers, long fastCatchupTimeSecs) {
+        final ProofOfWorkVerifier verifier = vProofOfWorkVerifier;
+        if (verifier == null)
+            return;
+        int count = 0;
+        while (count < headers.size() && headers.get(count).getTimeSeconds() < fastCatchupTimeSecs)
+            count++;
+        if (count < 2)
+            return;
+        int failure = verifier.verify(headers.subList(0, count));
+        if (failure >= 0)
+            log.warn("{}: Header {} of {} failed proof of work check", getAddress(), failure, headers.size());
+    }
+
     private void processGetData(GetDataMessage getdata) {
         log.info("{}: Received getdata message: {}", getAddress(), getdata.toString());
         ArrayList<Message> items = new ArrayList<Message>();
@@ -534,11 +558,37 @@ public class Peer extends PeerSocketHandler {
             return;
         }
         log.info("{}: Sending {} items gathered from listeners to peer", getAddress(), items.size());
-        for (Message item : items) {
-            sendMessage(item);
+        getDataRepliesLock.lock();
+        try {
+            getDataReplies.addAll(items);
+        } finally {
+            getDataRepliesLock.unlock();
+        }
+        sendGetDataReplies();
+    }
+
+    // Sends as many getdata replies as can be sent without filling up the send queue. The rest are sent once it drains.
+    private void sendGetDataReplies() {
+        getDataRepliesLock.lock();
+        try {
+            while (!getDataReplies.isEmpty() && !isSendQueueFull())
+                sendMessage(getDataReplies.poll());
+        } finally {
+            getDataRepliesLock.unlock();
         }
     }
 
+    @Override
+    public void sendQueueDrained() {
+        // This is called on the network thread, which mustn't be held up serializing and hashing blocks.
+        Threading.USER_THREAD.execute(new Runnable() {
+            @Override
+            public void run() {
+                sendGetDataReplies();
+            }
+        });
+    }
+
     private void processTransaction(Transaction tx) throws VerificationException {
         // Check a few basic syntax issues to ensure the received TX isn't nonsense.
         tx.verify();
@@ -1438,6 +1488,15 @@ public class Peer extends PeerSocketHandler {
       return vPeerVersionMessage.bestHeight + blocksAnnounced.get();
     }
 
+    /**
+     * Sets the verifier used to check the proof of work of downloaded block headers in parallel, before they are added
+     * to the block chain. Defaults to {@link ProofOfWorkVerifier#getDefault()}. If null, headers are checked one at a
+     * time whilst the block chain is locked.
+     */
+    public void setProofOfWorkVerifier(@Nullable ProofOfWorkVerifier verifier) {
+        this.vProofOfWorkVerifier = verifier;
+    }
+
     /**
      * The minimum P2P protocol version that is accepted. If the peer speaks a protocol version lower than this, it
      * will be disconnected.
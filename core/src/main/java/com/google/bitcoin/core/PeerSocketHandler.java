@@ -18,19 +18,20 @@ package com.google.bitcoin.core;
 
 import com.google.bitcoin.net.AbstractTimeoutHandler;
 import com.google.bitcoin.net.MessageWriteTarget;
-import com.google.bitcoin.net.StreamParser;
+import com.google.bitcoin.net.QueuedMessageWriteTarget;
+import com.google.bitcoin.net.SendQueueAwareParser;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.security.MessageDigest;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
@@ -39,7 +40,7 @@ import static com.google.common.base.Preconditions.*;
  * Handles high-level message (de)serialization for peers, acting as the bridge between the
  * {@link com.google.bitcoin.net} classes and {@link Peer}.
  */
-public abstract class PeerSocketHandler extends AbstractTimeoutHandler implements StreamParser {
+public abstract class PeerSocketHandler extends AbstractTimeoutHandler implements SendQueueAwareParser {
     private static final Logger log = LoggerFactory.getLogger(PeerSocketHandler.class);
 
     private final BitcoinSerializer serializer;
@@ -55,6 +56,9 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
     private byte[] largeReadBuffer;
     private int largeReadBufferPos;
+    // The first SHA-256 pass of the checksum of the message in largeReadBuffer, updated as each part of it arrives so
+    // the whole message doesn't need to be gone over again once it's complete.
+    private MessageDigest largeReadDigest;
     private BitcoinSerializer.BitcoinPacketHeader header;
 
     private Lock lock = Threading.lock("PeerSocketHandler");
@@ -82,16 +86,55 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        sendFrame(serializer.serializeToFrame(message));
+    }
+
+    /**
+     * Sends a message which has already been serialized, eg so the same bytes can be sent to several peers. Throws
+     * NotYetConnectedException if we are not yet connected to the remote peer.
+     */
+    public void sendFrame(WireFrame frame) throws NotYetConnectedException {
+        lock.lock();
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            if (writeTarget == null)
+                throw new NotYetConnectedException();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            if (writeTarget instanceof QueuedMessageWriteTarget)
+                ((QueuedMessageWriteTarget) writeTarget).writeBuffers(frame.getBuffers());
+            else
+                writeTarget.writeBytes(frame.toByteArray());
         } catch (IOException e) {
             exceptionCaught(e);
         }
     }
 
+    /**
+     * Returns true if so much is already waiting to be sent to the peer that anything which can wait should. When that
+     * stops being the case {@link #sendQueueDrained()} is called.
+     */
+    public boolean isSendQueueFull() {
+        lock.lock();
+        try {
+            if (writeTarget == null)
+                return false;
+        } finally {
+            lock.unlock();
+        }
+        return writeTarget instanceof QueuedMessageWriteTarget
+                && ((QueuedMessageWriteTarget) writeTarget).isSendQueueFull();
+    }
+
+    /**
+     * Called when sending that was held back because {@link #isSendQueueFull()} was true can carry on. Does nothing
+     * unless overridden. Called on the network thread, so overrides should do the sending on another thread.
+     */
+    @Override
+    public void sendQueueDrained() {
+    }
+
     /**
      * Closes the connection to the peer if one exists, or immediately closes the connection as soon as it opens
      */
@@ -134,11 +177,13 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     // Read new bytes into the largeReadBuffer
                     int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
                     buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
+                    largeReadDigest.update(largeReadBuffer, largeReadBufferPos, bytesToGet);
                     largeReadBufferPos += bytesToGet;
                     // Check the largeReadBuffer's status
                     if (largeReadBufferPos == largeReadBuffer.length) {
-                        // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
+                        // ...processing a message if one is available, parsed from largeReadBuffer without copying it
+                        byte[] hash = Utils.singleDigest(largeReadDigest.digest(), 0, 32);
+                        processMessage(serializer.deserializePayload(header, largeReadBuffer, hash));
                         largeReadBuffer = null;
                         header = null;
                     } else // ...or just returning if we don't have enough bytes yet
@@ -162,6 +207,10 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                             largeReadBuffer = new byte[header.size];
                             largeReadBufferPos = buff.remaining();
                             buff.get(largeReadBuffer, 0, largeReadBufferPos);
+                            if (largeReadDigest == null)
+                                largeReadDigest = Utils.newSha256Digest();
+                            largeReadDigest.reset();
+                            largeReadDigest.update(largeReadBuffer, 0, largeReadBufferPos);
                         } catch (BufferUnderflowException e1) {
                             // If we went through a whole buffer's worth of bytes without getting a header, give up
                             // In cases where the buff is just really small, we could create a second largeReadBuffer
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Checks the proof of work of a batch of block headers in parallel, ahead of them being added to a block chain.
+ * For scrypt based chains (see {@link NetworkParameters#calculateBlockPoWHash(Block)}) the PoW hash dominates the
+ * cost of processing a {@link HeadersMessage}, so doing it here means the block chain lock only has to cover linking,
+ * difficulty checks and storage.</p>
+ *
+ * <p>Headers that pass are remembered by the {@link Block} object, so the later call to
+ * {@link com.google.bitcoin.core.Block#verifyHeader()} is cheap. Headers are still added to the chain one by one
+ * and in order by the caller; the first header that fails its check will fail again there, producing the usual
+ * {@link VerificationException}. Work on headers after the first failure is abandoned as soon as possible.</p>
+ *
+ * <p>The executor can be any {@link ExecutorService}, eg a {@link java.util.concurrent.ForkJoinPool} shared with
+ * other parts of the application.</p>
+ */
+public class ProofOfWorkVerifier {
+    private static final Logger log = LoggerFactory.getLogger(ProofOfWorkVerifier.class);
+
+    private static ProofOfWorkVerifier defaultVerifier;
+
+    private final ExecutorService executor;
+    private final int parallelism;
+
+    /**
+     * Creates a verifier that runs up to <tt>parallelism</tt> checks at once on the given executor.
+     */
+    public ProofOfWorkVerifier(ExecutorService executor, int parallelism) {
+        checkArgument(parallelism > 0);
+        this.executor = checkNotNull(executor);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Returns a shared verifier backed by a pool of daemon threads, one per available processor.
+     */
+    public static synchronized ProofOfWorkVerifier getDefault() {
+        if (defaultVerifier == null) {
+            final int threads = Runtime.getRuntime().availableProcessors();
+            ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger();
+                @Nonnull @Override public Thread newThread(@Nonnull Runnable runnable) {
+                    Thread t = new Thread(runnable);
+                    t.setName("PoW verifier " + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    t.setUncaughtExceptionHandler(Threading.uncaughtExceptionHandler);
+                    return t;
+                }
+            });
+            defaultVerifier = new ProofOfWorkVerifier(executor, threads);
+        }
+        return defaultVerifier;
+    }
+
+    /** Returns how many headers may be checked at the same time. */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Checks the proof of work of each header in the list, blocking until done. Returns the index of the first header
+     * that failed, or -1 if they all passed. Headers after a failing one may or may not have been checked.
+     */
+    public int verify(final List<Block> headers) {
+        final int size = headers.size();
+        // The calling thread does one share of the work itself, so small batches don't pay for a thread hop.
+        final int tasks = Math.min(parallelism, size) - 1;
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger firstFailure = new AtomicInteger(size);
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < firstFailure.get()) {
+                    if (!headers.get(i).checkProofOfWorkOnce())
+                        recordFailure(firstFailure, i);
+                }
+            }
+        };
+        List<Future<?>> futures = new ArrayList<Future<?>>(Math.max(tasks, 0));
+        try {
+            for (int i = 0; i < tasks; i++)
+                futures.add(executor.submit(worker));
+        } catch (RejectedExecutionException e) {
+            log.warn("PoW verifier executor rejected work, continuing on the calling thread", e);
+        }
+        worker.run();
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        int failure = firstFailure.get();
+        return failure == size ? -1 : failure;
+    }
+
+    private static void recordFailure(AtomicInteger firstFailure, int index) {
+        while (true) {
+            int current = firstFailure.get();
+            if (index >= current || firstFailure.compareAndSet(current, index))
+                return;
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Runs script checks (ie signature verification) on a long lived pool of threads. Each input is checked as a
+ * separate task, so a block with one huge transaction keeps all the threads busy as well as a block with many small
+ * ones do.</p>
+ *
+ * <p>Checks are grouped into {@link Job}s, usually one per block. The first input of a job that fails cancels the rest
+ * of that job: inputs that haven't started yet are skipped, and {@link Job#await()} throws straight away. Other jobs
+ * and the pool itself are unaffected, so nothing has to be recreated after a bad block.</p>
+ *
+ * <p>At most {@link #getMaxQueuedInputs()} inputs wait for a thread at once. Beyond that the thread adding inputs
+ * checks them itself, which stops a huge block from filling memory with tasks and keeps the caller busy meanwhile.</p>
+ */
+public class ScriptVerifier {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerifier.class);
+
+    /** The default number of inputs that can wait for a thread before callers check them themselves. */
+    public static final int DEFAULT_MAX_QUEUED_INPUTS = 10000;
+
+    private static ScriptVerifier defaultVerifier;
+
+    private final ThreadPoolExecutor executor;
+    private final int parallelism;
+    private final int maxQueuedInputs;
+
+    /**
+     * Creates a verifier with <tt>parallelism</tt> threads, which queues up to <tt>maxQueuedInputs</tt> inputs.
+     */
+    public ScriptVerifier(int parallelism, int maxQueuedInputs) {
+        checkArgument(parallelism > 0);
+        checkArgument(maxQueuedInputs > 0);
+        this.parallelism = parallelism;
+        this.maxQueuedInputs = maxQueuedInputs;
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+            @Nonnull @Override public Thread newThread(@Nonnull Runnable runnable) {
+                Thread t = new Thread(runnable);
+                t.setName("Script verifier " + counter.incrementAndGet());
+                t.setDaemon(true);
+                t.setUncaughtExceptionHandler(Threading.uncaughtExceptionHandler);
+                return t;
+            }
+        };
+        // Whatever doesn't fit in the queue, or arrives after shutdown, runs on the thread that added it.
+        RejectedExecutionHandler runOnCaller = new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                runnable.run();
+            }
+        };
+        this.executor = new ThreadPoolExecutor(parallelism, parallelism, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueuedInputs), threadFactory, runOnCaller);
+    }
+
+    /**
+     * Returns a shared verifier with one thread per available processor and {@link #DEFAULT_MAX_QUEUED_INPUTS}.
+     */
+    public static synchronized ScriptVerifier getDefault() {
+        if (defaultVerifier == null)
+            defaultVerifier = new ScriptVerifier(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_QUEUED_INPUTS);
+        return defaultVerifier;
+    }
+
+    /** Returns how many inputs may be checked at the same time. */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** Returns how many inputs may wait for a thread before the caller checks them itself. */
+    public int getMaxQueuedInputs() {
+        return maxQueuedInputs;
+    }
+
+    /** Returns how many inputs are currently waiting for a thread, across all jobs. */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /** Starts a new group of checks. */
+    public Job newJob() {
+        return new Job();
+    }
+
+    /**
+     * Stops the threads once queued inputs are done. Inputs added afterwards are checked by the thread adding them.
+     * Don't shut down the verifier returned by {@link #getDefault()}, it's shared.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * <p>A group of inputs that pass or fail together. Inputs can be added from one thread at a time, and each input must
+     * not be changed until the job is done or cancelled. Checking doesn't modify transactions, so several inputs of the
+     * same transaction can be checked at once.</p>
+     *
+     * <p>Signatures checked by OP_CHECKSIG are collected as the scripts run and verified together by {@link #await()},
+     * split across the threads with signatures by the same key kept together, so that each key is decoded once per
+     * job (see {@link ECKey#verify(List)}). The few inputs that have an invalid signature are then run again the normal
+     * way, as a script may be meant to fail a signature check.</p>
+     */
+    public class Job {
+        private int outstanding;
+        @Nullable private VerificationException failure;
+        private volatile boolean cancelled;
+        // Inputs that passed on the assumption that their signatures are valid.
+        private final List<DeferredInput> deferred = new ArrayList<DeferredInput>();
+
+        private Job() {
+        }
+
+        /**
+         * Queues a check that input <tt>index</tt> of <tt>tx</tt> correctly spends <tt>scriptPubKey</tt>. Does
+         * nothing if the job has been cancelled.
+         */
+        public void add(Transaction tx, int index, Script scriptPubKey, boolean enforcePayToScriptHash) {
+            execute(new InputCheck(tx, index, scriptPubKey, enforcePayToScriptHash, true));
+        }
+
+        private void execute(Runnable task) {
+            if (cancelled)
+                return;
+            synchronized (this) {
+                outstanding++;
+            }
+            executor.execute(task);
+        }
+
+        private class InputCheck implements Runnable {
+            private final Transaction tx;
+            private final int index;
+            private final Script scriptPubKey;
+            private final boolean enforcePayToScriptHash;
+            private final boolean deferSignatures;
+
+            InputCheck(Transaction tx, int index, Script scriptPubKey, boolean enforcePayToScriptHash,
+                       boolean deferSignatures) {
+                this.tx = tx;
+                this.index = index;
+                this.scriptPubKey = scriptPubKey;
+                this.enforcePayToScriptHash = enforcePayToScriptHash;
+                this.deferSignatures = deferSignatures;
+            }
+
+            @Override
+            public void run() {
+                VerificationException e = null;
+                try {
+                    if (!cancelled)
+                        check();
+                } catch (VerificationException thrownE) {
+                    e = thrownE;
+                } catch (Throwable thrownE) {
+                    // Errors too, as a stack overflow in a deeply nested script would otherwise leave await() waiting.
+                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE);
+                    e = new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
+                } finally {
+                    done(e);
+                }
+            }
+
+            private void check() throws ScriptException {
+                Script scriptSig = tx.getInputs().get(index).getScriptSig();
+                if (deferSignatures) {
+                    List<ECKey.SignatureCheck> checks = new ArrayList<ECKey.SignatureCheck>(2);
+                    try {
+                        scriptSig.correctlySpends(tx, index, scriptPubKey, enforcePayToScriptHash, checks);
+                        if (!checks.isEmpty())
+                            defer(new DeferredInput(this, checks));
+                        return;
+                    } catch (ScriptException e) {
+                        // It may only have failed because a signature was assumed to be valid, so find out for sure.
+                    }
+                }
+                scriptSig.correctlySpends(tx, index, scriptPubKey, enforcePayToScriptHash);
+            }
+
+            // Checks this input again without assuming anything about its signatures.
+            void recheck() {
+                execute(new InputCheck(tx, index, scriptPubKey, enforcePayToScriptHash, false));
+            }
+        }
+
+        private class DeferredInput {
+            final InputCheck input;
+            final List<ECKey.SignatureCheck> checks;
+            boolean rechecking;
+
+            DeferredInput(InputCheck input, List<ECKey.SignatureCheck> checks) {
+                this.input = input;
+                this.checks = checks;
+            }
+
+            // Called once per invalid signature, but the input only needs checking again once.
+            void invalidSignature() {
+                synchronized (Job.this) {
+                    if (rechecking)
+                        return;
+                    rechecking = true;
+                }
+                input.recheck();
+            }
+        }
+
+        /**
+         * Queues checks of every input of <tt>tx</tt>, which spend the outputs with the given scripts in order.
+         */
+        public void addAll(Transaction tx, List<Script> prevOutScripts, boolean enforcePayToScriptHash) {
+            checkArgument(tx.getInputs().size() == prevOutScripts.size());
+            int index = 0;
+            for (Script script : prevOutScripts)
+                add(tx, index++, script, enforcePayToScriptHash);
+        }
+
+        /**
+         * Queues checks of the inputs of <tt>tx</tt> that are connected to an output, eg those that spend outputs
+         * of a {@link Wallet}. Returns how many were queued.
+         */
+        public int addConnected(Transaction tx) {
+            int queued = 0;
+            List<TransactionInput> inputs = tx.getInputs();
+            for (int index = 0; index < inputs.size(); index++) {
+                TransactionOutput output = inputs.get(index).getConnectedOutput();
+                if (output == null)
+                    continue;
+                add(tx, index, output.getScriptPubKey(), true);
+                queued++;
+            }
+            return queued;
+        }
+
+        private synchronized void defer(DeferredInput input) {
+            deferred.add(input);
+        }
+
+        private synchronized void done(@Nullable VerificationException e) {
+            outstanding--;
+            if (e != null && failure == null && !cancelled) {
+                failure = e;
+                cancelled = true;
+                notifyAll();
+            } else if (outstanding == 0) {
+                notifyAll();
+            }
+        }
+
+        // Verifies the deferred signatures of the given inputs, in one task per thread.
+        private void verifySignatures(List<DeferredInput> inputs) {
+            final List<ECKey.SignatureCheck> checks = new ArrayList<ECKey.SignatureCheck>();
+            final List<DeferredInput> owners = new ArrayList<DeferredInput>();
+            List<Integer> order = new ArrayList<Integer>();
+            for (DeferredInput input : inputs) {
+                for (ECKey.SignatureCheck check : input.checks) {
+                    order.add(checks.size());
+                    checks.add(check);
+                    owners.add(input);
+                }
+            }
+            // Signatures by the same key end up in the same task, unless a task boundary happens to split them.
+            Collections.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return ByteBuffer.wrap(checks.get(a).pub).compareTo(ByteBuffer.wrap(checks.get(b).pub));
+                }
+            });
+            int perTask = (order.size() + parallelism - 1) / parallelism;
+            for (int from = 0; from < order.size(); from += perTask) {
+                final List<Integer> task = order.subList(from, Math.min(from + perTask, order.size()));
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        VerificationException e = null;
+                        try {
+                            if (!cancelled) {
+                                List<ECKey.SignatureCheck> taskChecks = new ArrayList<ECKey.SignatureCheck>(task.size());
+                                for (int i : task)
+                                    taskChecks.add(checks.get(i));
+                                boolean[] valid = ECKey.verify(taskChecks);
+                                for (int i = 0; i < valid.length; i++)
+                                    if (!valid[i])
+                                        owners.get(task.get(i)).invalidSignature();
+                            }
+                        } catch (Throwable thrownE) {
+                            log.error("ECKey.verify threw a non-normal exception: " + thrownE);
+                            e = new VerificationException("Bug in ECKey.verify", thrownE);
+                        } finally {
+                            done(e);
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * Skips the inputs that haven't been checked yet. Used when a job is abandoned for some other reason, there's
+         * no need to call this after {@link #await()} has thrown.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /** Returns true if the job was cancelled, either explicitly or because one of its inputs failed. */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Blocks until every input added so far has been checked, or one of them fails.
+         * @throws VerificationException from the first input that failed.
+         */
+        public void await() throws VerificationException {
+            List<DeferredInput> inputs;
+            synchronized (this) {
+                waitForOutstanding();
+                inputs = new ArrayList<DeferredInput>(deferred);
+                deferred.clear();
+            }
+            if (inputs.isEmpty())
+                return;
+            verifySignatures(inputs);
+            synchronized (this) {
+                waitForOutstanding();
+            }
+        }
+
+        private void waitForOutstanding() throws VerificationException {
+            try {
+                while (outstanding > 0 && failure == null)
+                    wait();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (failure != null)
+                throw failure;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.List;
+
+import static com.google.bitcoin.core.Utils.uint32ToByteStreamLE;
+
+/**
+ * <p>Calculates SIGHASH_ALL signature hashes for each input of one transaction, without serializing the transaction
+ * again for every input. The parts that are the same for every input (the inputs with their scripts cleared, the
+ * outputs and the lock time) are serialized once when this is created.</p>
+ *
+ * <p>The hashed data for input <i>i</i> starts with the cleared inputs before it, which is a prefix of the data for
+ * input <i>i</i>+1. The SHA-256 state after that prefix is kept and carried forward, so signing or verifying the
+ * inputs in order hashes each cleared input before the one being signed only once. What follows the input being signed
+ * is still hashed every time, as SHA-256 can't skip over it.</p>
+ *
+ * <p>Owned by a {@link Transaction}, which throws it away when it changes. Safe to use from several threads.</p>
+ */
+class SigHashCalculator {
+    // The length of an input with an empty script: outpoint, script length of zero and sequence number.
+    private static final int CLEARED_INPUT_LENGTH = TransactionOutPoint.MESSAGE_LENGTH + 1 + 4;
+
+    // The version and number of inputs.
+    private final byte[] header;
+    // Every input, serialized with an empty script.
+    private final byte[] clearedInputs;
+    // The outputs and lock time.
+    private final byte[] tail;
+
+    // The state after hashing the header and the first prefixInputs cleared inputs.
+    private MessageDigest prefix;
+    private int prefixInputs;
+
+    SigHashCalculator(long version, List<TransactionInput> inputs, List<TransactionOutput> outputs, long lockTime) {
+        try {
+            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(9);
+            uint32ToByteStreamLE(version, bos);
+            bos.write(new VarInt(inputs.size()).encode());
+            header = bos.toByteArray();
+
+            bos = new UnsafeByteArrayOutputStream(inputs.size() * CLEARED_INPUT_LENGTH);
+            for (TransactionInput input : inputs) {
+                input.getOutpoint().bitcoinSerialize(bos);
+                bos.write(0);
+                uint32ToByteStreamLE(input.getSequenceNumber(), bos);
+            }
+            clearedInputs = bos.toByteArray();
+
+            bos = new UnsafeByteArrayOutputStream(256);
+            bos.write(new VarInt(outputs.size()).encode());
+            for (TransactionOutput output : outputs)
+                output.bitcoinSerialize(bos);
+            uint32ToByteStreamLE(lockTime, bos);
+            tail = bos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /**
+     * Returns the hash that a SIGHASH_ALL signature for the given input signs. The sigHashType is only written out,
+     * the caller has already decided that it means SIGHASH_ALL. connectedScript must already have had any
+     * OP_CODESEPARATORs removed.
+     */
+    Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        MessageDigest digest = digestBefore(inputIndex);
+        int offset = inputIndex * CLEARED_INPUT_LENGTH;
+        // The input being signed carries the connected script.
+        digest.update(clearedInputs, offset, TransactionOutPoint.MESSAGE_LENGTH);
+        digest.update(new VarInt(connectedScript.length).encode());
+        digest.update(connectedScript);
+        digest.update(clearedInputs, offset + TransactionOutPoint.MESSAGE_LENGTH + 1, 4);
+        offset += CLEARED_INPUT_LENGTH;
+        digest.update(clearedInputs, offset, clearedInputs.length - offset);
+        digest.update(tail);
+        byte[] type = new byte[4];
+        Utils.uint32ToByteArrayLE(0x000000ff & sigHashType, type, 0);
+        digest.update(type);
+        byte[] first = digest.digest();
+        return new Sha256Hash(digest.digest(first));
+    }
+
+    // Returns a digest that has hashed everything before the given input.
+    private synchronized MessageDigest digestBefore(int inputIndex) {
+        if (prefix == null || prefixInputs > inputIndex) {
+            prefix = Utils.newSha256Digest();
+            prefix.update(header);
+            prefixInputs = 0;
+        }
+        prefix.update(clearedInputs, prefixInputs * CLEARED_INPUT_LENGTH, (inputIndex - prefixInputs) * CLEARED_INPUT_LENGTH);
+        prefixInputs = inputIndex;
+        try {
+            return (MessageDigest) prefix.clone();
+        } catch (CloneNotSupportedException e) {
+            // Not all providers can copy their state, so start again.
+            MessageDigest digest = Utils.newSha256Digest();
+            digest.update(header);
+            digest.update(clearedInputs, 0, inputIndex * CLEARED_INPUT_LENGTH);
+            return digest;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers signatures that {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])} found to be valid, so that
+ * checking the same signature again doesn't need any elliptic curve maths. A transaction is typically verified when
+ * it's first relayed, again when it appears in a block, and again if that block is reconnected during a re-org.</p>
+ *
+ * <p>Only valid signatures are remembered. Entries are keyed by a hash of the signed hash, the public key and the
+ * signature, so each one takes a fixed amount of memory and nobody can fill the cache with signatures that don't
+ * verify. The cache is bounded, safe to use from several threads at once, and its hit rate is available from
+ * {@link #getStats()}.</p>
+ */
+public class SignatureCache {
+    /** The default number of valid signatures remembered. */
+    public static final int DEFAULT_MAX_SIZE = 50000;
+
+    @Nullable private static volatile SignatureCache defaultCache = new SignatureCache(DEFAULT_MAX_SIZE);
+
+    private final Cache<Sha256Hash, Boolean> cache;
+    private final int maxSize;
+
+    /** Creates a cache that remembers up to <tt>maxSize</tt> valid signatures. */
+    public SignatureCache(int maxSize) {
+        checkArgument(maxSize > 0);
+        this.maxSize = maxSize;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns the cache used by {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])}, or null if signatures
+     * aren't being cached.
+     */
+    @Nullable
+    public static SignatureCache getDefault() {
+        return defaultCache;
+    }
+
+    /** Sets the cache used by {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])}, or null to disable caching. */
+    public static void setDefault(@Nullable SignatureCache cache) {
+        defaultCache = cache;
+    }
+
+    /** Returns true if the given signature over <tt>data</tt> was found to be valid for the given public key. */
+    public boolean isKnownValid(byte[] data, ECKey.ECDSASignature signature, byte[] pub) {
+        return cache.getIfPresent(key(data, signature, pub)) != null;
+    }
+
+    /** Records that the given signature over <tt>data</tt> is valid for the given public key. */
+    public void addValid(byte[] data, ECKey.ECDSASignature signature, byte[] pub) {
+        cache.put(key(data, signature, pub), Boolean.TRUE);
+    }
+
+    private static Sha256Hash key(byte[] data, ECKey.ECDSASignature signature, byte[] pub) {
+        byte[] r = signature.r.toByteArray();
+        byte[] s = signature.s.toByteArray();
+        // Each part is preceded by its length, so different splits of the same bytes can't give the same key.
+        byte[] bytes = new byte[16 + data.length + pub.length + r.length + s.length];
+        int offset = 0;
+        for (byte[] part : new byte[][] { data, pub, r, s }) {
+            Utils.uint32ToByteArrayBE(part.length, bytes, offset);
+            System.arraycopy(part, 0, bytes, offset + 4, part.length);
+            offset += 4 + part.length;
+        }
+        return Sha256Hash.create(bytes);
+    }
+
+    /** Returns the maximum number of signatures remembered. */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /** Returns roughly how many signatures are remembered right now. */
+    public long size() {
+        return cache.size();
+    }
+
+    /** Returns hit, miss and eviction counts since the cache was created. */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /** Forgets every signature. */
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = cache.stats();
+        return String.format("Signature cache: %d of %d entries, %d hits, %d misses (%.1f%% hit rate), %d evictions",
+                cache.size(), maxSize, stats.hitCount(), stats.missCount(), stats.hitRate() * 100, stats.evictionCount());
+    }
+}
@@ -19,6 +19,7 @@ package com.google.bitcoin.core;
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
 
+import javax.annotation.Nullable;
 import java.io.*;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
@@ -42,10 +43,19 @@ public class StoredBlock implements Serializable {
     public static final int CHAIN_WORK_BYTES = 12;
     public static final byte[] EMPTY_BYTES = new byte[CHAIN_WORK_BYTES];
     public static final int COMPACT_SERIALIZED_SIZE = Block.HEADER_SIZE + CHAIN_WORK_BYTES + 4;  // for height
+    /** The size of the compact format written by {@link #serializeCompactWithPoWHash(ByteBuffer)}. */
+    public static final int COMPACT_SERIALIZED_SIZE_WITH_POW_HASH = COMPACT_SERIALIZED_SIZE + 32;
 
     private Block header;
     private BigInteger chainWork;
     private int height;
+    // An ancestor at getSkipHeight(height), set by build(Block, BlockStore) so getAncestor() can jump back through the
+    // chain instead of walking it. It's only kept in memory, so blocks read back from disk start without one.
+    private transient StoredBlock skip;
+
+    // How many blocks build(Block, BlockStore) looks up to find the ancestor to link to. Blocks built on top of ones
+    // read back from disk can't reach it through links, and mustn't walk back thousands of blocks to get there.
+    static final int MAX_SKIP_LOOKUPS = 64;
 
     public StoredBlock(Block header, BigInteger chainWork, int height) {
         this.header = header;
@@ -106,6 +116,69 @@ public class StoredBlock implements Serializable {
         return new StoredBlock(block, chainWork, height);
     }
 
+    /**
+     * Creates a new StoredBlock like {@link #build(Block)}, and also links it to one of its ancestors so that
+     * {@link #getAncestor(BlockStore, int)} on it and the blocks built on top of it takes a logarithmic number of
+     * steps rather than one per block. The link is left out if the ancestor can't be found with a few lookups, which
+     * is the case for blocks built soon after their ancestors were read back from disk.
+     */
+    public StoredBlock build(Block block, BlockStore store) throws VerificationException, BlockStoreException {
+        StoredBlock built = build(block);
+        built.skip = getAncestor(store, getSkipHeight(built.height), MAX_SKIP_LOOKUPS);
+        return built;
+    }
+
+    // Clears the lowest set bit.
+    private static int invertLowestOne(int n) {
+        return n & (n - 1);
+    }
+
+    /**
+     * Returns the height of the ancestor a block at the given height is linked to. The heights are chosen as in
+     * Bitcoin Core, so that any ancestor can be reached from any block with a logarithmic number of links.
+     */
+    static int getSkipHeight(int height) {
+        if (height < 2)
+            return 0;
+        // Any lower height would do, but this gets from the tip to any block in a hundred or so steps even on long chains.
+        return (height & 1) != 0 ? invertLowestOne(invertLowestOne(height - 1)) + 1 : invertLowestOne(height);
+    }
+
+    /**
+     * Returns the ancestor of this block at the given height, which is this block itself at its own height, or null if
+     * the height is out of range or the store doesn't have the blocks in between. Jumps back using the links set up by
+     * {@link #build(Block, BlockStore)} where it can, and otherwise walks back one block at a time.
+     */
+    @Nullable
+    public StoredBlock getAncestor(BlockStore store, int height) throws BlockStoreException {
+        return getAncestor(store, height, Integer.MAX_VALUE);
+    }
+
+    // As above, but gives up and returns null once it has looked up maxLookups blocks in the store.
+    @Nullable
+    private StoredBlock getAncestor(BlockStore store, int height, int maxLookups) throws BlockStoreException {
+        if (height < 0 || height > this.height)
+            return null;
+        int lookups = 0;
+        StoredBlock walk = this;
+        while (walk.height > height) {
+            int skipHeight = getSkipHeight(walk.height);
+            int prevSkipHeight = getSkipHeight(walk.height - 1);
+            // Take the jump unless it overshoots, or one step back and a jump from there would get closer.
+            if (walk.skip != null && (skipHeight == height ||
+                    (skipHeight > height && !(prevSkipHeight < skipHeight - 2 && prevSkipHeight >= height)))) {
+                walk = walk.skip;
+            } else {
+                if (++lookups > maxLookups)
+                    return null;
+                walk = walk.getPrev(store);
+                if (walk == null)
+                    return null;
+            }
+        }
+        return walk;
+    }
+
     /**
      * Given a block store, looks up the previous block in this chain. Convenience method for doing
      * <tt>store.get(this.getHeader().getPrevBlockHash())</tt>.
@@ -143,6 +216,26 @@ public class StoredBlock implements Serializable {
         return new StoredBlock(new Block(params, header), chainWork, height);
     }
 
+    /**
+     * Serializes the stored block in the same format as {@link #serializeCompact(ByteBuffer)}, followed by the proof
+     * of work hash of the header (see {@link Block#getPoWHash()}). For scrypt based chains this saves recalculating
+     * it when the block is loaded again. Used by {@link com.google.bitcoin.store.SPVBlockStore}.
+     */
+    public void serializeCompactWithPoWHash(ByteBuffer buffer) {
+        serializeCompact(buffer);
+        buffer.put(getHeader().getPoWHash().getBytes());
+    }
+
+    /** De-serializes a stored block written by {@link #serializeCompactWithPoWHash(ByteBuffer)}. */
+    public static StoredBlock deserializeCompactWithPoWHash(NetworkParameters params, ByteBuffer buffer)
+            throws ProtocolException {
+        StoredBlock block = deserializeCompact(params, buffer);
+        byte[] powHash = new byte[32];
+        buffer.get(powHash);
+        block.getHeader().setPoWHash(new Sha256Hash(powHash));
+        return block;
+    }
+
     @Override
     public String toString() {
         return String.format("Block %s at height %d: %s",
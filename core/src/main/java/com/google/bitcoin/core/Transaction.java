@@ -89,6 +89,9 @@ public class Transaction extends ChildMessage implements Serializable {
     // This is an in memory helper only.
     private transient Sha256Hash hash;
 
+    // Speeds up signing and verifying SIGHASH_ALL signatures for many inputs. Thrown away along with the hash.
+    @Nullable private transient SigHashCalculator sigHashCalculator;
+
     // Data about how confirmed this tx is. Serialized, may be null. 
     private TransactionConfidence confidence;
 
@@ -422,6 +425,7 @@ public class Transaction extends ChildMessage implements Serializable {
     protected void unCache() {
         super.unCache();
         hash = null;
+        sigHashCalculator = null;
     }
 
     protected void parseLite() throws ProtocolException {
@@ -915,8 +919,8 @@ public class Transaction extends ChildMessage implements Serializable {
      * @param type Should be SigHash.ALL
      * @param anyoneCanPay should be false.
      */
-    public synchronized Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript,
-                                                    SigHash type, boolean anyoneCanPay) {
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript,
+                                       SigHash type, boolean anyoneCanPay) {
         byte sigHashType = (byte) TransactionSignature.calcSigHashValue(type, anyoneCanPay);
         return hashForSignature(inputIndex, connectedScript, sigHashType);
     }
@@ -933,8 +937,8 @@ public class Transaction extends ChildMessage implements Serializable {
      * @param type Should be SigHash.ALL
      * @param anyoneCanPay should be false.
      */
-    public synchronized Sha256Hash hashForSignature(int inputIndex, Script connectedScript,
-                                                    SigHash type, boolean anyoneCanPay) {
+    public Sha256Hash hashForSignature(int inputIndex, Script connectedScript,
+                                       SigHash type, boolean anyoneCanPay) {
         int sigHash = TransactionSignature.calcSigHashValue(type, anyoneCanPay);
         return hashForSignature(inputIndex, connectedScript.getProgram(), (byte) sigHash);
     }
@@ -943,110 +947,118 @@ public class Transaction extends ChildMessage implements Serializable {
      * This is required for signatures which use a sigHashType which cannot be represented using SigHash and anyoneCanPay
      * See transaction c99c49da4c38af669dea436d3e73780dfdb6c1ecf9958baa52960e8baee30e73, which has sigHashType 0
      */
-    public synchronized Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
         // The SIGHASH flags are used in the design of contracts, please see this page for a further understanding of
         // the purposes of the code in this method:
         //
         //   https://en.bitcoin.it/wiki/Contracts
+        //
+        // The simplified transaction is written out directly rather than by editing this one and serializing it, so
+        // the transaction is never changed and several threads can check signatures on it at once.
+        maybeParse();
+        int mode = sigHashType & 0x1f;
+        boolean none = mode == (SigHash.NONE.ordinal() + 1);
+        boolean single = mode == (SigHash.SINGLE.ordinal() + 1);
+        if (single && inputIndex >= outputs.size()) {
+            // The input index is beyond the number of outputs, it's a buggy signature made by a broken
+            // Bitcoin implementation. The reference client also contains a bug in handling this case:
+            // any transaction output that is signed in this case will result in both the signed output
+            // and any future outputs to this public key being steal-able by anyone who has
+            // the resulting signature and the public key (both of which are part of the signed tx input).
+            //
+            // TODO: Only allow this to happen if we are checking a signature, not signing a transactions
+            //
+            // Satoshis bug is that SignatureHash was supposed to return a hash and on this codepath it
+            // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
+            return new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+        }
+
+        // This step has no purpose beyond being synchronized with the reference clients bugs. OP_CODESEPARATOR
+        // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
+        // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
+        // the design we use today where scripts are executed independently but share a stack. This left the
+        // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
+        // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
+        // do it, we could split off the main chain.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+
+        boolean anyoneCanPay = (sigHashType & SIGHASH_ANYONECANPAY_VALUE) == SIGHASH_ANYONECANPAY_VALUE;
+        if (!none && !single && !anyoneCanPay) {
+            // The common case, where all but one input is the same whichever input is being signed.
+            SigHashCalculator calculator = sigHashCalculator;
+            if (calculator == null)
+                sigHashCalculator = calculator = new SigHashCalculator(version, inputs, outputs, lockTime);
+            return calculator.hashForSignature(inputIndex, connectedScript, sigHashType);
+        }
 
         try {
-            // Store all the input scripts and clear them in preparation for signing. If we're signing a fresh
-            // transaction that step isn't very helpful, but it doesn't add much cost relative to the actual
-            // EC math so we'll do it anyway.
-            //
-            // Also store the input sequence numbers in case we are clearing them with SigHash.NONE/SINGLE
-            byte[][] inputScripts = new byte[inputs.size()][];
-            long[] inputSequenceNumbers = new long[inputs.size()];
-            for (int i = 0; i < inputs.size(); i++) {
-                inputScripts[i] = inputs.get(i).getScriptBytes();
-                inputSequenceNumbers[i] = inputs.get(i).getSequenceNumber();
-                inputs.get(i).setScriptBytes(TransactionInput.EMPTY_ARRAY);
+            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(length == UNKNOWN_LENGTH ? 256 : length + 4);
+            uint32ToByteStreamLE(version, bos);
+
+            // All input scripts are cleared, except that the one being signed is set to the script of its output.
+            // Satoshi does this but the step has no obvious purpose as the signature covers the hash of the prevout
+            // transaction which obviously includes the output script already. Perhaps it felt safer to him in some
+            // way, or is another leftover from how the code was written.
+            if (anyoneCanPay) {
+                // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
+                // of other inputs. For example, this is useful for building assurance contracts.
+                bos.write(new VarInt(1).encode());
+                TransactionInput input = inputs.get(inputIndex);
+                writeInputForSignature(bos, input, connectedScript, input.getSequenceNumber());
+            } else {
+                bos.write(new VarInt(inputs.size()).encode());
+                for (int i = 0; i < inputs.size(); i++) {
+                    TransactionInput input = inputs.get(i);
+                    if (i == inputIndex)
+                        writeInputForSignature(bos, input, connectedScript, input.getSequenceNumber());
+                    else
+                        // With SIGHASH_NONE and SIGHASH_SINGLE, the signature isn't broken by new versions of the
+                        // transaction issued by other parties.
+                        writeInputForSignature(bos, input, TransactionInput.EMPTY_ARRAY,
+                                none || single ? 0 : input.getSequenceNumber());
+                }
             }
 
-            // This step has no purpose beyond being synchronized with the reference clients bugs. OP_CODESEPARATOR
-            // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
-            // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
-            // the design we use today where scripts are executed independently but share a stack. This left the
-            // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
-            // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
-            // do it, we could split off the main chain.
-            connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
-
-            // Set the input to the script of its output. Satoshi does this but the step has no obvious purpose as
-            // the signature covers the hash of the prevout transaction which obviously includes the output script
-            // already. Perhaps it felt safer to him in some way, or is another leftover from how the code was written.
-            TransactionInput input = inputs.get(inputIndex);
-            input.setScriptBytes(connectedScript);
-
-            ArrayList<TransactionOutput> outputs = this.outputs;
-            if ((sigHashType & 0x1f) == (SigHash.NONE.ordinal() + 1)) {
+            if (none) {
                 // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
-                this.outputs = new ArrayList<TransactionOutput>(0);
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < inputs.size(); i++)
-                    if (i != inputIndex)
-                        inputs.get(i).setSequenceNumber(0);
-            } else if ((sigHashType & 0x1f) == (SigHash.SINGLE.ordinal() + 1)) {
+                bos.write(new VarInt(0).encode());
+            } else if (single) {
                 // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
-                if (inputIndex >= this.outputs.size()) {
-                    // The input index is beyond the number of outputs, it's a buggy signature made by a broken
-                    // Bitcoin implementation. The reference client also contains a bug in handling this case:
-                    // any transaction output that is signed in this case will result in both the signed output
-                    // and any future outputs to this public key being steal-able by anyone who has
-                    // the resulting signature and the public key (both of which are part of the signed tx input).
-                    // Put the transaction back to how we found it.
-                    //
-                    // TODO: Only allow this to happen if we are checking a signature, not signing a transactions
-                    for (int i = 0; i < inputs.size(); i++) {
-                        inputs.get(i).setScriptBytes(inputScripts[i]);
-                        inputs.get(i).setSequenceNumber(inputSequenceNumbers[i]);
-                    }
-                    this.outputs = outputs;
-                    // Satoshis bug is that SignatureHash was supposed to return a hash and on this codepath it
-                    // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
-                    return new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+                // The outputs after the matching input index are deleted, and the outputs before that position are
+                // "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
+                bos.write(new VarInt(inputIndex + 1).encode());
+                for (int i = 0; i < inputIndex; i++) {
+                    int64ToByteStreamLE(-1, bos);
+                    bos.write(new VarInt(0).encode());
                 }
-                // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
-                // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
-                this.outputs = new ArrayList<TransactionOutput>(this.outputs.subList(0, inputIndex + 1));
-                for (int i = 0; i < inputIndex; i++)
-                    this.outputs.set(i, new TransactionOutput(params, this, NEGATIVE_ONE, new byte[] {}));
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < inputs.size(); i++)
-                    if (i != inputIndex)
-                        inputs.get(i).setSequenceNumber(0);
-            }
-
-            ArrayList<TransactionInput> inputs = this.inputs;
-            if ((sigHashType & SIGHASH_ANYONECANPAY_VALUE) == SIGHASH_ANYONECANPAY_VALUE) {
-                // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
-                // of other inputs. For example, this is useful for building assurance contracts.
-                this.inputs = new ArrayList<TransactionInput>();
-                this.inputs.add(input);
+                outputs.get(inputIndex).bitcoinSerialize(bos);
+            } else {
+                bos.write(new VarInt(outputs.size()).encode());
+                for (TransactionOutput output : outputs)
+                    output.bitcoinSerialize(bos);
             }
+            uint32ToByteStreamLE(lockTime, bos);
 
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(length == UNKNOWN_LENGTH ? 256 : length + 4);
-            bitcoinSerialize(bos);
             // We also have to write a hash type (sigHashType is actually an unsigned char)
             uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
             // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
             // however then we would expect that it is IS reversed.
             Sha256Hash hash = new Sha256Hash(doubleDigest(bos.toByteArray()));
             bos.close();
-
-            // Put the transaction back to how we found it.
-            this.inputs = inputs;
-            for (int i = 0; i < inputs.size(); i++) {
-                inputs.get(i).setScriptBytes(inputScripts[i]);
-                inputs.get(i).setSequenceNumber(inputSequenceNumbers[i]);
-            }
-            this.outputs = outputs;
             return hash;
         } catch (IOException e) {
             throw new RuntimeException(e);  // Cannot happen.
         }
     }
 
+    private static void writeInputForSignature(OutputStream stream, TransactionInput input, byte[] script,
+                                               long sequence) throws IOException {
+        input.getOutpoint().bitcoinSerialize(stream);
+        stream.write(new VarInt(script.length).encode());
+        stream.write(script);
+        uint32ToByteStreamLE(sequence, stream);
+    }
+
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         uint32ToByteStreamLE(version, stream);
@@ -24,7 +24,9 @@ import com.google.common.util.concurrent.SettableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 
@@ -100,6 +102,16 @@ public class TransactionBroadcast {
             numToBroadcastTo = (int) Math.max(1, Math.round(Math.ceil(peers.size() / 2.0)));
             numWaitingFor = (int) Math.ceil((peers.size() - numToBroadcastTo) / 2.0);
             Collections.shuffle(peers, random);
+            // Prefer peers which are keeping up with what we send them, so the tx doesn't wait behind a backlog.
+            List<Peer> backedUp = new ArrayList<Peer>();
+            for (Iterator<Peer> it = peers.iterator(); it.hasNext(); ) {
+                Peer peer = it.next();
+                if (peer.isSendQueueFull()) {
+                    it.remove();
+                    backedUp.add(peer);
+                }
+            }
+            peers.addAll(backedUp);
             peers = peers.subList(0, numToBroadcastTo);
             log.info("broadcastTransaction: We have {} peers, adding {} to the memory pool and sending to {} peers, will wait for {}: {}",
                     numConnected, tx.getHashAsString(), numToBroadcastTo, numWaitingFor, Joiner.on(",").join(peers));
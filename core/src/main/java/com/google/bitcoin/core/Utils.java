@@ -26,6 +26,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -43,14 +44,21 @@ import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterrup
  */
 public class Utils {
     public static final BigInteger NEGATIVE_ONE = BigInteger.valueOf(-1);
-    private static final MessageDigest digest;
-    static {
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Can't happen.
+
+    // Each thread hashes with its own digest, so threads hashing at the same time don't wait for each other. The
+    // buffer holds the first hash of a double hash.
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newSha256Digest();
         }
-    }
+    };
+    private static final ThreadLocal<byte[]> firstHashes = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[32];
+        }
+    };
 
     /** The string that prefixes all text messages signed using Bitcoin keys. */
     public static final String BITCOIN_SIGNED_MESSAGE_HEADER = "Bitcoin Signed Message:\n";
@@ -195,19 +203,65 @@ public class Utils {
      * standard procedure in Bitcoin. The resulting hash is in big endian form.
      */
     public static byte[] doubleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        byte[] output = new byte[32];
+        doubleDigest(input, offset, length, output, 0);
+        return output;
+    }
+
+    /**
+     * Like {@link Utils#doubleDigest(byte[], int, int)}, but writes the 32 byte hash into output starting at
+     * outputOffset instead of allocating an array for it.
+     */
+    public static void doubleDigest(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        MessageDigest digest = digest();
+        digest.update(input, offset, length);
+        finishDoubleDigest(digest, output, outputOffset);
     }
 
     public static byte[] singleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            return digest.digest();
+        MessageDigest digest = digest();
+        digest.update(input, offset, length);
+        return digest.digest();
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the given byte range and writes it into output starting at outputOffset.
+     */
+    public static void singleDigest(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        MessageDigest digest = digest();
+        digest.update(input, offset, length);
+        finish(digest, output, outputOffset);
+    }
+
+    // This thread's digest, reset in case an exception left it part way through something else.
+    private static MessageDigest digest() {
+        MessageDigest digest = digests.get();
+        digest.reset();
+        return digest;
+    }
+
+    /** Returns a new SHA-256 digest, for hashing that doesn't fit the methods here. */
+    public static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+    }
+
+    // Hashes the hash of what the digest was given into output. The digest is left reset.
+    private static void finishDoubleDigest(MessageDigest digest, byte[] output, int outputOffset) {
+        byte[] first = firstHashes.get();
+        finish(digest, first, 0);
+        digest.update(first);
+        finish(digest, output, outputOffset);
+    }
+
+    private static void finish(MessageDigest digest, byte[] output, int outputOffset) {
+        try {
+            digest.digest(output, outputOffset, 32);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Can't happen, there's room for the hash.
         }
     }
 
@@ -216,13 +270,12 @@ public class Utils {
      */
     public static byte[] doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
                                                 byte[] input2, int offset2, int length2) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input1, offset1, length1);
-            digest.update(input2, offset2, length2);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        MessageDigest digest = digest();
+        digest.update(input1, offset1, length1);
+        digest.update(input2, offset2, length2);
+        byte[] output = new byte[32];
+        finishDoubleDigest(digest, output, 0);
+        return output;
     }
 
     /**
@@ -313,16 +366,12 @@ public class Utils {
      * Calculates RIPEMD160(SHA256(input)). This is used in Address calculations.
      */
     public static byte[] sha256hash160(byte[] input) {
-        try {
-            byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(input);
-            RIPEMD160Digest digest = new RIPEMD160Digest();
-            digest.update(sha256, 0, sha256.length);
-            byte[] out = new byte[20];
-            digest.doFinal(out, 0);
-            return out;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        byte[] sha256 = singleDigest(input, 0, input.length);
+        RIPEMD160Digest digest = new RIPEMD160Digest();
+        digest.update(sha256, 0, sha256.length);
+        byte[] out = new byte[20];
+        digest.doFinal(out, 0);
+        return out;
     }
 
     /**
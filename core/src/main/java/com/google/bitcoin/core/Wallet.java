@@ -2563,6 +2563,35 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    /**
+     * Checks the signatures of every pending transaction input that spends one of our own outputs, using the given
+     * verifier so that large transactions are checked in parallel. Returns the pending transactions that failed, which
+     * will never confirm; it's up to the caller what to do about them.
+     */
+    public List<Transaction> getPendingTransactionsFailingScripts(ScriptVerifier verifier) {
+        lock.lock();
+        try {
+            Map<Transaction, ScriptVerifier.Job> jobs = new LinkedHashMap<Transaction, ScriptVerifier.Job>();
+            for (Transaction tx : pending.values()) {
+                ScriptVerifier.Job job = verifier.newJob();
+                job.addConnected(tx);
+                jobs.put(tx, job);
+            }
+            List<Transaction> failed = new ArrayList<Transaction>();
+            for (Map.Entry<Transaction, ScriptVerifier.Job> entry : jobs.entrySet()) {
+                try {
+                    entry.getValue().await();
+                } catch (VerificationException e) {
+                    log.warn("Pending transaction {} failed script verification: {}", entry.getKey().getHashAsString(), e.getMessage());
+                    failed.add(entry.getKey());
+                }
+            }
+            return failed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns the earliest creation time of keys or watched scripts in this wallet, in seconds since the epoch, ie the min
      * of {@link com.google.bitcoin.core.ECKey#getCreationTimeSeconds()}. This can return zero if at least one key does
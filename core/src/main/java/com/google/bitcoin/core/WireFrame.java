@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>A message as it goes over the wire: its header, with the checksum, followed by its payload. Made by
+ * {@link BitcoinSerializer#serializeToFrame(Message)}, and never changed afterwards, so one frame can be queued for
+ * any number of peers at once.</p>
+ *
+ * <p>Transactions and blocks keep the frame they were last serialized to until they're changed, so relaying one to
+ * many peers, or serving it to every peer which asks with getdata, only serializes and hashes it once.</p>
+ */
+public class WireFrame {
+    private final long packetMagic;
+    private final ByteBuffer header;
+    private final ByteBuffer payload;
+
+    WireFrame(long packetMagic, byte[] header, byte[] payload) {
+        this.packetMagic = packetMagic;
+        this.header = ByteBuffer.wrap(header);
+        this.payload = ByteBuffer.wrap(payload);
+    }
+
+    /**
+     * Returns new buffers over the header and payload, to be written with
+     * {@link com.google.bitcoin.net.QueuedMessageWriteTarget#writeBuffers(ByteBuffer...)}. Their contents must not be
+     * changed.
+     */
+    public ByteBuffer[] getBuffers() {
+        return new ByteBuffer[] { header.duplicate(), payload.duplicate() };
+    }
+
+    /** Returns a copy of the whole frame, for write targets which can't take buffers. */
+    byte[] toByteArray() {
+        byte[] bytes = new byte[getLength()];
+        ByteBuffer.wrap(bytes).put(header.duplicate()).put(payload.duplicate());
+        return bytes;
+    }
+
+    /** Returns the length of the whole frame, header included. */
+    public int getLength() {
+        return header.capacity() + payload.capacity();
+    }
+
+    long getPacketMagic() {
+        return packetMagic;
+    }
+}
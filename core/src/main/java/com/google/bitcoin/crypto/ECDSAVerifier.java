@@ -0,0 +1,276 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.crypto;
+
+import org.spongycastle.asn1.sec.SECNamedCurves;
+import org.spongycastle.asn1.x9.X9ECParameters;
+import org.spongycastle.math.ec.ECCurve;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * <p>Verifies ECDSA signatures over secp256k1 quicker than Bouncy Castle's ECDSASigner, which does a modular inversion
+ * for every point addition. Here points are kept in Jacobian coordinates so only the final result needs an inversion,
+ * and u1*G + u2*Q is computed in a single pass over interleaved wNAF forms of u1 and u2, using tables of odd multiples
+ * of G and Q.</p>
+ *
+ * <p>The table for G is built once. The table for a public key belongs to its {@link PublicKey}, so checking several
+ * signatures made with the same key only decodes the key and builds its table once.</p>
+ *
+ * <p>Only the usual compressed and uncompressed encodings of points on the curve are handled. {@link #decode(byte[])}
+ * returns null for anything else, and callers should fall back to Bouncy Castle for those so that odd keys are treated
+ * exactly as they always were.</p>
+ */
+public class ECDSAVerifier {
+    private static final BigInteger P;
+    private static final BigInteger N;
+    private static final BigInteger B = BigInteger.valueOf(7);
+    private static final BigInteger THREE = BigInteger.valueOf(3);
+    private static final BigInteger SQRT_EXPONENT;
+    private static final BigInteger MASK = BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE);
+    private static final BigInteger C;
+
+    // Window widths: tables hold 2^(w-2) odd multiples. G's is built once so can be large.
+    private static final int G_WINDOW = 8;
+    private static final int KEY_WINDOW = 5;
+
+    private static final BigInteger[][] G_TABLE;
+
+    static {
+        X9ECParameters params = SECNamedCurves.getByName("secp256k1");
+        P = ((ECCurve.Fp) params.getCurve()).getQ();
+        N = params.getN();
+        SQRT_EXPONENT = P.add(BigInteger.ONE).shiftRight(2);
+        C = BigInteger.ONE.shiftLeft(256).subtract(P);
+        G_TABLE = oddMultiples(params.getG().getX().toBigInteger(), params.getG().getY().toBigInteger(), G_WINDOW);
+    }
+
+    /**
+     * A decoded public key, along with the multiples of it used to verify signatures. Immutable, so one instance can be
+     * shared by any number of threads.
+     */
+    public static class PublicKey {
+        private final BigInteger[][] table;
+
+        private PublicKey(BigInteger x, BigInteger y) {
+            this.table = oddMultiples(x, y, KEY_WINDOW);
+        }
+    }
+
+    /**
+     * Decodes a compressed or uncompressed public key, or returns null if it's encoded some other way or isn't a
+     * point on the curve.
+     */
+    @Nullable
+    public static PublicKey decode(byte[] pub) {
+        BigInteger x, y;
+        if (pub.length == 33 && (pub[0] == 2 || pub[0] == 3)) {
+            x = new BigInteger(1, Arrays.copyOfRange(pub, 1, 33));
+            if (x.compareTo(P) >= 0)
+                return null;
+            BigInteger y2 = curve(x);
+            y = y2.modPow(SQRT_EXPONENT, P);
+            if (!mul(y, y).equals(y2) || y.signum() == 0)
+                return null;
+            if (y.testBit(0) != (pub[0] == 3))
+                y = P.subtract(y);
+        } else if (pub.length == 65 && pub[0] == 4) {
+            x = new BigInteger(1, Arrays.copyOfRange(pub, 1, 33));
+            y = new BigInteger(1, Arrays.copyOfRange(pub, 33, 65));
+            if (x.compareTo(P) >= 0 || y.compareTo(P) >= 0 || !mul(y, y).equals(curve(x)))
+                return null;
+        } else {
+            return null;
+        }
+        return new PublicKey(x, y);
+    }
+
+    // Reduces a non-negative number modulo P. As P = 2^256 - C for a small C, the bits above 256 can be folded back
+    // in by multiplying them by C, which is much quicker than a division.
+    private static BigInteger reduce(BigInteger a) {
+        while (a.bitLength() > 256)
+            a = a.and(MASK).add(a.shiftRight(256).multiply(C));
+        return a.compareTo(P) >= 0 ? a.subtract(P) : a;
+    }
+
+    private static BigInteger mul(BigInteger a, BigInteger b) {
+        return reduce(a.multiply(b));
+    }
+
+    // a - b for a and b in [0, P).
+    private static BigInteger sub(BigInteger a, BigInteger b) {
+        BigInteger result = a.subtract(b);
+        return result.signum() < 0 ? result.add(P) : result;
+    }
+
+    // x^3 + 7
+    private static BigInteger curve(BigInteger x) {
+        return reduce(mul(mul(x, x), x).add(B));
+    }
+
+    /**
+     * Returns true if (r, s) is a valid signature of <tt>data</tt> by <tt>key</tt>. Gives the same answers as Bouncy
+     * Castle's ECDSASigner, including for data that isn't 32 bytes long.
+     */
+    public static boolean verify(byte[] data, BigInteger r, BigInteger s, PublicKey key) {
+        if (r.signum() <= 0 || r.compareTo(N) >= 0 || s.signum() <= 0 || s.compareTo(N) >= 0)
+            return false;
+        BigInteger e = new BigInteger(1, data);
+        int extraBits = data.length * 8 - N.bitLength();
+        if (extraBits > 0)
+            e = e.shiftRight(extraBits);
+        BigInteger w = s.modInverse(N);
+        int[] u1 = wnaf(e.multiply(w).mod(N), G_WINDOW);
+        int[] u2 = wnaf(r.multiply(w).mod(N), KEY_WINDOW);
+
+        JacobianPoint point = new JacobianPoint();
+        for (int i = Math.max(u1.length, u2.length) - 1; i >= 0; i--) {
+            point.twice();
+            if (i < u1.length && u1[i] != 0)
+                point.add(G_TABLE, u1[i]);
+            if (i < u2.length && u2[i] != 0)
+                point.add(key.table, u2[i]);
+        }
+        if (point.infinity)
+            return false;
+        BigInteger zInverse = point.z.modInverse(P);
+        BigInteger x = mul(point.x, mul(zInverse, zInverse));
+        return x.mod(N).equals(r);
+    }
+
+    // The width-w non-adjacent form of k, least significant digit first. Non-zero digits are odd and less than
+    // 2^(w-1) in magnitude, and each is followed by at least w-1 zeros.
+    private static int[] wnaf(BigInteger k, int w) {
+        int[] digits = new int[k.bitLength() + 1];
+        int length = 0;
+        int modulus = 1 << w;
+        while (k.signum() > 0) {
+            int digit = 0;
+            if (k.testBit(0)) {
+                digit = k.intValue() & (modulus - 1);
+                if (digit >= modulus / 2)
+                    digit -= modulus;
+                k = k.subtract(BigInteger.valueOf(digit));
+            }
+            digits[length++] = digit;
+            k = k.shiftRight(1);
+        }
+        return Arrays.copyOf(digits, length);
+    }
+
+    // Returns the affine coordinates of P, 3P, 5P ... (2^(w-1) - 1)P as {xs, ys}.
+    private static BigInteger[][] oddMultiples(BigInteger x, BigInteger y, int w) {
+        int count = 1 << (w - 2);
+        BigInteger[] xs = new BigInteger[count];
+        BigInteger[] ys = new BigInteger[count];
+        xs[0] = x;
+        ys[0] = y;
+        JacobianPoint doubled = new JacobianPoint(x, y);
+        doubled.twice();
+        BigInteger[] twice = doubled.toAffine();
+        BigInteger[][] step = { { twice[0] }, { twice[1] } };
+        for (int i = 1; i < count; i++) {
+            JacobianPoint next = new JacobianPoint(xs[i - 1], ys[i - 1]);
+            next.add(step, 1);
+            BigInteger[] affine = next.toAffine();
+            xs[i] = affine[0];
+            ys[i] = affine[1];
+        }
+        return new BigInteger[][] { xs, ys };
+    }
+
+    // A point (x / z^2, y / z^3), or the point at infinity.
+    private static class JacobianPoint {
+        BigInteger x, y, z;
+        boolean infinity;
+
+        JacobianPoint() {
+            infinity = true;
+        }
+
+        JacobianPoint(BigInteger x, BigInteger y) {
+            this.x = x;
+            this.y = y;
+            this.z = BigInteger.ONE;
+        }
+
+        BigInteger[] toAffine() {
+            BigInteger zInverse = z.modInverse(P);
+            BigInteger zInverse2 = mul(zInverse, zInverse);
+            return new BigInteger[] { mul(x, zInverse2), mul(mul(y, zInverse2), zInverse) };
+        }
+
+        // dbl-2009-l, which relies on the curve's a being zero.
+        void twice() {
+            if (infinity)
+                return;
+            if (y.signum() == 0) {
+                infinity = true;
+                return;
+            }
+            BigInteger a = mul(x, x);
+            BigInteger b = mul(y, y);
+            BigInteger c = mul(b, b);
+            BigInteger xb = reduce(x.add(b));
+            BigInteger d = reduce(sub(sub(mul(xb, xb), a), c).shiftLeft(1));
+            BigInteger e = reduce(a.multiply(THREE));
+            BigInteger x3 = sub(mul(e, e), reduce(d.shiftLeft(1)));
+            BigInteger y3 = sub(mul(e, sub(d, x3)), reduce(c.shiftLeft(3)));
+            z = reduce(mul(y, z).shiftLeft(1));
+            x = x3;
+            y = y3;
+        }
+
+        // Adds the multiple of the table's point given by an odd wNAF digit, using madd-2007-bl.
+        void add(BigInteger[][] table, int digit) {
+            int index = (Math.abs(digit) - 1) / 2;
+            BigInteger x2 = table[0][index];
+            BigInteger y2 = digit > 0 ? table[1][index] : P.subtract(table[1][index]);
+            if (infinity) {
+                x = x2;
+                y = y2;
+                z = BigInteger.ONE;
+                infinity = false;
+                return;
+            }
+            BigInteger z1z1 = mul(z, z);
+            BigInteger u2 = mul(x2, z1z1);
+            BigInteger s2 = mul(mul(y2, z), z1z1);
+            BigInteger h = sub(u2, x);
+            BigInteger r = reduce(sub(s2, y).shiftLeft(1));
+            if (h.signum() == 0) {
+                if (r.signum() == 0)
+                    twice();
+                else
+                    infinity = true;
+                return;
+            }
+            BigInteger hh = mul(h, h);
+            BigInteger i = reduce(hh.shiftLeft(2));
+            BigInteger j = mul(h, i);
+            BigInteger v = mul(x, i);
+            BigInteger x3 = sub(sub(mul(r, r), j), reduce(v.shiftLeft(1)));
+            BigInteger y3 = sub(mul(r, sub(v, x3)), reduce(mul(y, j).shiftLeft(1)));
+            BigInteger zh = reduce(z.add(h));
+            z = sub(sub(mul(zh, zh), z1z1), hh);
+            x = x3;
+            y = y3;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.crypto;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Utils;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Calculates the scrypt proof of work hash of block headers, as used by Litecoin and the chains derived from it.
+ * This is scrypt with N=1024, r=1, p=1 and a 32 byte output, using the 80 byte serialized header as both password
+ * and salt.</p>
+ *
+ * <p>Unlike {@link com.lambdaworks.crypto.SCrypt} this is specialized for those parameters and keeps all of its
+ * working memory (including the 128KB scratchpad) in a per-thread instance, so hashing a header doesn't allocate
+ * anything except the returned {@link Sha256Hash}. The header is written straight from the {@link Block} fields
+ * rather than by cloning and reserializing the block.</p>
+ */
+public class ScryptHeaderHasher {
+    private static final int N = 1024;
+    // The size of one scrypt block (128 * r bytes, with r = 1) in 32 bit words.
+    private static final int BLOCK_WORDS = 32;
+    private static final int HMAC_BLOCK_SIZE = 64;
+    private static final int DIGEST_LENGTH = 32;
+
+    private static final ThreadLocal<ScryptHeaderHasher> perThread = new ThreadLocal<ScryptHeaderHasher>() {
+        @Override
+        protected ScryptHeaderHasher initialValue() {
+            return new ScryptHeaderHasher();
+        }
+    };
+
+    private final MessageDigest digest;
+    private final byte[] header = new byte[Block.HEADER_SIZE];
+    private final byte[] innerPad = new byte[HMAC_BLOCK_SIZE];
+    private final byte[] outerPad = new byte[HMAC_BLOCK_SIZE];
+    private final byte[] counter = new byte[4];
+    private final byte[] innerDigest = new byte[DIGEST_LENGTH];
+    private final byte[] block = new byte[BLOCK_WORDS * 4];
+    private final byte[] output = new byte[DIGEST_LENGTH];
+    private final int[] x = new int[BLOCK_WORDS];
+    private final int[] v = new int[BLOCK_WORDS * N];
+
+    private ScryptHeaderHasher() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /**
+     * Returns the scrypt hash of the given block's header, byte reversed so it can be compared with the difficulty
+     * target in the same way as {@link Block#getHash()}.
+     */
+    public static Sha256Hash hash(Block block) {
+        ScryptHeaderHasher hasher = perThread.get();
+        block.writeHeader(hasher.header, 0);
+        return new Sha256Hash(hasher.scryptReversed());
+    }
+
+    /**
+     * Calculates the scrypt hash of an 80 byte serialized header and writes the 32 result bytes, in the order scrypt
+     * produces them, into <tt>out</tt> at <tt>outOffset</tt>.
+     */
+    public static void scrypt(byte[] header, int offset, byte[] out, int outOffset) {
+        checkArgument(offset + Block.HEADER_SIZE <= header.length);
+        ScryptHeaderHasher hasher = perThread.get();
+        System.arraycopy(header, offset, hasher.header, 0, Block.HEADER_SIZE);
+        hasher.scrypt();
+        System.arraycopy(hasher.output, 0, out, outOffset, DIGEST_LENGTH);
+    }
+
+    private byte[] scryptReversed() {
+        scrypt();
+        byte[] result = new byte[DIGEST_LENGTH];
+        for (int i = 0; i < DIGEST_LENGTH; i++)
+            result[i] = output[DIGEST_LENGTH - 1 - i];
+        return result;
+    }
+
+    // Runs scrypt over the header buffer, leaving the result in the output buffer.
+    private void scrypt() {
+        initHmacKey();
+        // B = PBKDF2-HMAC-SHA256(header, header, 1, 128)
+        for (int i = 0; i < block.length / DIGEST_LENGTH; i++)
+            hmac(header, header.length, i + 1, block, i * DIGEST_LENGTH);
+        for (int i = 0; i < BLOCK_WORDS; i++)
+            x[i] = (block[i * 4] & 0xff) | (block[i * 4 + 1] & 0xff) << 8 |
+                   (block[i * 4 + 2] & 0xff) << 16 | (block[i * 4 + 3] & 0xff) << 24;
+        roMix();
+        for (int i = 0; i < BLOCK_WORDS; i++) {
+            block[i * 4] = (byte) x[i];
+            block[i * 4 + 1] = (byte) (x[i] >>> 8);
+            block[i * 4 + 2] = (byte) (x[i] >>> 16);
+            block[i * 4 + 3] = (byte) (x[i] >>> 24);
+        }
+        // Result = PBKDF2-HMAC-SHA256(header, B, 1, 32)
+        hmac(block, block.length, 1, output, 0);
+    }
+
+    // The header is always the HMAC key. It's longer than the SHA-256 block size so it's hashed first.
+    private void initHmacKey() {
+        digest.reset();
+        digest.update(header, 0, header.length);
+        digestInto(innerPad, 0);
+        for (int i = DIGEST_LENGTH; i < HMAC_BLOCK_SIZE; i++)
+            innerPad[i] = 0;
+        for (int i = 0; i < HMAC_BLOCK_SIZE; i++) {
+            outerPad[i] = (byte) (innerPad[i] ^ 0x5c);
+            innerPad[i] ^= 0x36;
+        }
+    }
+
+    // One PBKDF2 block with a single iteration: HMAC(key, salt || INT(index)).
+    private void hmac(byte[] salt, int saltLength, int index, byte[] out, int outOffset) {
+        Utils.uint32ToByteArrayBE(index, counter, 0);
+        digest.update(innerPad, 0, HMAC_BLOCK_SIZE);
+        digest.update(salt, 0, saltLength);
+        digest.update(counter, 0, counter.length);
+        digestInto(innerDigest, 0);
+        digest.update(outerPad, 0, HMAC_BLOCK_SIZE);
+        digest.update(innerDigest, 0, DIGEST_LENGTH);
+        digestInto(out, outOffset);
+    }
+
+    private void digestInto(byte[] out, int offset) {
+        try {
+            digest.digest(out, offset, DIGEST_LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private void roMix() {
+        for (int i = 0; i < N; i++) {
+            System.arraycopy(x, 0, v, i * BLOCK_WORDS, BLOCK_WORDS);
+            blockMix(x);
+        }
+        for (int i = 0; i < N; i++) {
+            int j = (x[BLOCK_WORDS / 2] & (N - 1)) * BLOCK_WORDS;
+            for (int k = 0; k < BLOCK_WORDS; k++)
+                x[k] ^= v[j + k];
+            blockMix(x);
+        }
+    }
+
+    // BlockMix with r = 1, done in place: Y0 = Salsa(B1 ^ B0), Y1 = Salsa(Y0 ^ B1).
+    private static void blockMix(int[] b) {
+        for (int i = 0; i < 16; i++)
+            b[i] ^= b[16 + i];
+        salsa20_8(b, 0);
+        for (int i = 0; i < 16; i++)
+            b[16 + i] ^= b[i];
+        salsa20_8(b, 16);
+    }
+
+    private static void salsa20_8(int[] b, int off) {
+        int x0 = b[off], x1 = b[off + 1], x2 = b[off + 2], x3 = b[off + 3];
+        int x4 = b[off + 4], x5 = b[off + 5], x6 = b[off + 6], x7 = b[off + 7];
+        int x8 = b[off + 8], x9 = b[off + 9], x10 = b[off + 10], x11 = b[off + 11];
+        int x12 = b[off + 12], x13 = b[off + 13], x14 = b[off + 14], x15 = b[off + 15];
+        for (int i = 0; i < 8; i += 2) {
+            // Columns.
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);   x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);  x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);    x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);  x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);  x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);  x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);  x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);  x15 ^= Integer.rotateLeft(x11 + x7, 18);
+            // Rows.
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);    x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);   x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);    x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);   x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);  x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);  x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7); x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13); x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        b[off] += x0;       b[off + 1] += x1;   b[off + 2] += x2;   b[off + 3] += x3;
+        b[off + 4] += x4;   b[off + 5] += x5;   b[off + 6] += x6;   b[off + 7] += x7;
+        b[off + 8] += x8;   b[off + 9] += x9;   b[off + 10] += x10; b[off + 11] += x11;
+        b[off + 12] += x12; b[off + 13] += x13; b[off + 14] += x14; b[off + 15] += x15;
+    }
+}
@@ -35,7 +35,7 @@ import static com.google.common.base.Preconditions.checkState;
  * and {@link BlockingClientManager}, unless you wish to connect over a proxy or use some other network settings that
  * cannot be set using NIO.</p>
  */
-public class BlockingClient implements MessageWriteTarget {
+public class BlockingClient implements QueuedMessageWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(BlockingClient.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
@@ -128,12 +128,34 @@ public class BlockingClient implements MessageWriteTarget {
 
     @Override
     public synchronized void writeBytes(byte[] message) throws IOException {
+        write(message, 0, message.length);
+    }
+
+    @Override
+    public synchronized void writeBuffers(ByteBuffer... buffers) throws IOException {
+        for (ByteBuffer buff : buffers) {
+            if (buff.hasArray()) {
+                write(buff.array(), buff.arrayOffset() + buff.position(), buff.remaining());
+            } else {
+                byte[] bytes = new byte[buff.remaining()];
+                buff.duplicate().get(bytes);
+                write(bytes, 0, bytes.length);
+            }
+        }
+    }
+
+    private void write(byte[] bytes, int offset, int length) throws IOException {
         try {
-            socket.getOutputStream().write(message);
+            socket.getOutputStream().write(bytes, offset, length);
         } catch (IOException e) {
             log.error("Error writing message to connection, closing connection", e);
             closeConnection();
             throw e;
         }
     }
+
+    @Override
+    public boolean isSendQueueFull() {
+        return false; // Writes block until they're done, so there's never a queue
+    }
 }
@@ -28,26 +28,42 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
- * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
- * Used only by the NioClient and NioServer classes
+ * <p>A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
+ * Used only by the NioClient and NioServer classes</p>
+ *
+ * <p>Received bytes are either given to the parser straight away on the selector thread, or, if there's a processing
+ * executor, queued and given to the parser by a task on that executor, one task per connection at a time so they're
+ * still parsed in order. Then a slow message only holds up its own connection. If more than
+ * {@link #MAX_QUEUED_INBOUND_BYTES} are waiting to be parsed, the selector stops reading from the socket until the
+ * parser has caught up, which pushes back on the remote end through TCP instead of using ever more memory.</p>
  */
-class ConnectionHandler implements MessageWriteTarget {
+class ConnectionHandler implements QueuedMessageWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConnectionHandler.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+    private static final int MAX_BUFFERS_PER_WRITE = 64;
+
+    /**
+     * How many bytes may be waiting to be sent before {@link #isSendQueueFull()} returns true. This is a hint to the
+     * parser to hold back, unlike the hard limit after which the connection is closed.
+     */
+    static final int SEND_QUEUE_HIGH_WATER_MARK = 1024 * 1024;
+
+    /** How many received bytes may wait for the processing executor before reading pauses. */
+    static final int MAX_QUEUED_INBOUND_BYTES = 1024 * 1024;
 
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
@@ -59,32 +75,66 @@ class ConnectionHandler implements MessageWriteTarget {
     @GuardedBy("lock") private boolean closeCalled = false;
 
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    @GuardedBy("lock") private final ArrayDeque<ByteBuffer> bytesToWrite = new ArrayDeque<ByteBuffer>();
+    // The buffers handed to each gathering write, reused to save allocating an array every time.
+    @GuardedBy("lock") private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_BUFFERS_PER_WRITE];
+    // Set when bytesToWriteRemaining goes over SEND_QUEUE_HIGH_WATER_MARK, cleared when it's back under half that.
+    @GuardedBy("lock") private boolean sendQueueFull = false;
+
+    // If not null, what received bytes are given to the parser on.
+    @Nullable private final Executor processingExecutor;
+    // Read into by the selector thread only, then copied into the queue of bytes not yet given to the parser.
+    @Nullable private final ByteBuffer socketReadBuff;
+    @GuardedBy("lock") private final ArrayDeque<ByteBuffer> inbound = new ArrayDeque<ByteBuffer>();
+    @GuardedBy("lock") private int inboundBytes = 0;
+    // Whether a task to parse the queue is scheduled or running.
+    @GuardedBy("lock") private boolean processing = false;
+    @GuardedBy("lock") private boolean readingPaused = false;
+    // Whether the remote end closed the socket, in which case we close once the queue is parsed.
+    @GuardedBy("lock") private boolean endOfStream = false;
+    private final Runnable processInbound = new Runnable() {
+        @Override
+        public void run() {
+            processInbound();
+        }
+    };
 
     private Set<ConnectionHandler> connectedHandlers;
 
     public ConnectionHandler(StreamParserFactory parserFactory, SelectionKey key) throws IOException {
-        this(parserFactory.getNewParser(((SocketChannel)key.channel()).socket().getInetAddress(), ((SocketChannel)key.channel()).socket().getPort()), key);
+        this(parserFactory.getNewParser(((SocketChannel)key.channel()).socket().getInetAddress(), ((SocketChannel)key.channel()).socket().getPort()), key, (Executor) null);
         if (parser == null)
             throw new IOException("Parser factory.getNewParser returned null");
     }
 
-    private ConnectionHandler(@Nullable StreamParser parser, SelectionKey key) {
+    private ConnectionHandler(@Nullable StreamParser parser, SelectionKey key, @Nullable Executor processingExecutor) {
         this.key = key;
         this.channel = checkNotNull(((SocketChannel)key.channel()));
+        this.processingExecutor = processingExecutor;
         if (parser == null) {
             readBuff = null;
+            socketReadBuff = null;
             closeConnection();
             return;
         }
         this.parser = parser;
         readBuff = ByteBuffer.allocateDirect(Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        socketReadBuff = processingExecutor == null ? null : ByteBuffer.allocate(readBuff.capacity());
         parser.setWriteTarget(this); // May callback into us (eg closeConnection() now)
         connectedHandlers = null;
     }
 
     public ConnectionHandler(StreamParser parser, SelectionKey key, Set<ConnectionHandler> connectedHandlers) {
-        this(checkNotNull(parser), key);
+        this(parser, key, connectedHandlers, null);
+    }
+
+    /**
+     * Creates a handler for a client connection, which gives received bytes to the parser using processingExecutor,
+     * or on the selector thread if that's null.
+     */
+    public ConnectionHandler(StreamParser parser, SelectionKey key, Set<ConnectionHandler> connectedHandlers,
+                             @Nullable Executor processingExecutor) {
+        this(checkNotNull(parser), key, processingExecutor);
 
         // closeConnection() may have already happened, in which case we shouldn't add ourselves to the connectedHandlers set
         lock.lock();
@@ -109,44 +159,69 @@ class ConnectionHandler implements MessageWriteTarget {
 
     // Tries to write any outstanding write bytes, runs in any thread (possibly unlocked)
     private void tryWriteBytes() throws IOException {
+        boolean drained = false;
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
-                    setWriteOps();
-                    break;
+            // Push as much of the outbound ByteBuff queue as possible into the OS' network buffer, handing it several
+            // buffers (eg a header and its payload) per write.
+            while (!bytesToWrite.isEmpty()) {
+                int count = 0;
+                long batchBytes = 0;
+                for (ByteBuffer buff : bytesToWrite) {
+                    writeBatch[count++] = buff;
+                    batchBytes += buff.remaining();
+                    if (count == writeBatch.length)
+                        break;
                 }
+                long written = channel.write(writeBatch, 0, count);
+                bytesToWriteRemaining -= written;
+                Arrays.fill(writeBatch, 0, count, null);
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.peek().hasRemaining())
+                    bytesToWrite.poll();
+                if (written < batchBytes)
+                    break; // The OS' buffer is full
             }
-            // If we are done writing, clear the OP_WRITE interestOps
+            // If we are done writing, clear the OP_WRITE interestOps, otherwise wait until we can write more
             if (bytesToWrite.isEmpty())
                 key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
-            // Don't bother waking up the selector here, since we're just removing an op, not adding
+            else
+                setWriteOps();
+            if (sendQueueFull && bytesToWriteRemaining <= SEND_QUEUE_HIGH_WATER_MARK / 2) {
+                sendQueueFull = false;
+                drained = true;
+            }
         } finally {
             lock.unlock();
         }
+        if (drained && parser instanceof SendQueueAwareParser)
+            ((SendQueueAwareParser) parser).sendQueueDrained();
     }
 
     @Override
     public void writeBytes(byte[] message) throws IOException {
+        writeBuffers(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
+    }
+
+    @Override
+    public void writeBuffers(ByteBuffer... buffers) throws IOException {
         lock.lock();
         try {
             // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
             // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
             // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
             // register our SelectionKey to wakeup when we have free outbound buffer space available.
-
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            long length = 0;
+            for (ByteBuffer buff : buffers)
+                length += buff.remaining();
+            if (bytesToWriteRemaining + length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
+            // Just dump the message onto the write buffer and let the selector thread write it. The buffers are
+            // duplicated so that writing them doesn't move the caller's positions.
+            for (ByteBuffer buff : buffers)
+                bytesToWrite.add(buff.duplicate());
+            bytesToWriteRemaining += length;
+            if (bytesToWriteRemaining > SEND_QUEUE_HIGH_WATER_MARK)
+                sendQueueFull = true;
             setWriteOps();
         } catch (IOException e) {
             lock.unlock();
@@ -162,6 +237,36 @@ class ConnectionHandler implements MessageWriteTarget {
         lock.unlock();
     }
 
+    @Override
+    public boolean isSendQueueFull() {
+        lock.lock();
+        try {
+            return sendQueueFull;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // For tests: whether the selector has stopped reading from the socket because the inbound queue is full.
+    boolean isReadingPaused() {
+        lock.lock();
+        try {
+            return readingPaused && (key.interestOps() & SelectionKey.OP_READ) == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // For tests: how many received bytes are waiting to be given to the parser.
+    int getQueuedInboundBytes() {
+        lock.lock();
+        try {
+            return inboundBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     // May NOT be called with lock held
     public void closeConnection() {
@@ -188,6 +293,105 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    // Reads what's available into the inbound queue, for the processing executor to parse. Returns false if nothing
+    // was read. Only called by the selector thread.
+    private boolean readToQueue() throws IOException {
+        ByteBuffer buff = checkNotNull(socketReadBuff);
+        buff.clear();
+        int read = channel.read(buff);
+        if (read == 0)
+            return false;
+        boolean schedule;
+        lock.lock();
+        try {
+            if (read == -1) {
+                // Socket was closed, close once everything before that is parsed.
+                endOfStream = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                inbound.add(ByteBuffer.wrap(Arrays.copyOf(buff.array(), read)));
+                inboundBytes += read;
+                if (inboundBytes >= MAX_QUEUED_INBOUND_BYTES) {
+                    readingPaused = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+            }
+            schedule = !processing;
+            processing = true;
+        } finally {
+            lock.unlock();
+        }
+        if (schedule)
+            checkNotNull(processingExecutor).execute(processInbound);
+        return true;
+    }
+
+    // Gives queued bytes to the parser until the queue is empty. Runs on the processing executor, only one at a time.
+    private void processInbound() {
+        // Cleared once processing has been reset, which doesn't happen if something is thrown.
+        boolean stillProcessing = true;
+        try {
+            while (true) {
+                ByteBuffer chunk;
+                boolean close = false;
+                lock.lock();
+                try {
+                    chunk = inbound.peek();
+                    if (chunk == null || closeCalled) {
+                        processing = false;
+                        stillProcessing = false;
+                        close = endOfStream && !closeCalled;
+                        if (!close)
+                            return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (close) {
+                    closeConnection();
+                    return;
+                }
+                // readBuff holds any bytes the parser didn't consume last time, followed by as much as fits.
+                int length = Math.min(chunk.remaining(), readBuff.remaining());
+                ByteBuffer part = chunk.duplicate();
+                part.limit(part.position() + length);
+                readBuff.put(part);
+                chunk.position(chunk.position() + length);
+                readBuff.flip();
+                int bytesConsumed = checkNotNull(parser).receiveBytes(readBuff);
+                checkState(readBuff.position() == bytesConsumed);
+                readBuff.compact();
+                lock.lock();
+                try {
+                    inboundBytes -= length;
+                    if (!chunk.hasRemaining())
+                        inbound.poll();
+                    if (readingPaused && inboundBytes <= MAX_QUEUED_INBOUND_BYTES / 2) {
+                        readingPaused = false;
+                        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                        key.selector().wakeup();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (Throwable e) {
+            // Eg the parser threw, even an Error, or the key was cancelled because the connection closed meanwhile.
+            log.error("Error processing received bytes: {}", Throwables.getRootCause(e).getMessage());
+            closeConnection();
+        } finally {
+            // Otherwise no task would ever be scheduled for this connection again.
+            if (stillProcessing) {
+                lock.lock();
+                try {
+                    processing = false;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
     // Handle a SelectionKey which was selected
     // Runs unlocked as the caller is single-threaded (or if not, should enforce that handleKey is only called
     // atomically for a given ConnectionHandler)
@@ -200,7 +404,10 @@ class ConnectionHandler implements MessageWriteTarget {
                 handler.closeConnection(); // Key has been cancelled, make sure the socket gets closed
                 return;
             }
-            if (key.isReadable()) {
+            if (key.isReadable() && handler.processingExecutor != null) {
+                if (!handler.readToQueue())
+                    return; // Was probably waiting on a write
+            } else if (key.isReadable()) {
                 // Do a socket read and invoke the parser's receiveBytes message
                 int read = handler.channel.read(handler.readBuff);
                 if (read == 0)
@@ -25,11 +25,11 @@ import static com.google.common.base.Preconditions.checkState;
 /**
  * Creates a simple connection to a server using a {@link StreamParser} to process data.
  */
-public class NioClient implements MessageWriteTarget {
+public class NioClient implements QueuedMessageWriteTarget {
     private final Handler handler;
     private final NioClientManager manager = new NioClientManager();
 
-    class Handler extends AbstractTimeoutHandler implements StreamParser {
+    class Handler extends AbstractTimeoutHandler implements SendQueueAwareParser {
         private final StreamParser upstreamParser;
         private MessageWriteTarget writeTarget;
         private boolean closeOnOpen = false;
@@ -57,6 +57,12 @@ public class NioClient implements MessageWriteTarget {
                 upstreamParser.connectionOpened();
         }
 
+        @Override
+        public void sendQueueDrained() {
+            if (upstreamParser instanceof SendQueueAwareParser)
+                ((SendQueueAwareParser) upstreamParser).sendQueueDrained();
+        }
+
         @Override
         public int receiveBytes(ByteBuffer buff) throws Exception {
             return upstreamParser.receiveBytes(buff);
@@ -104,4 +110,15 @@ public class NioClient implements MessageWriteTarget {
     public synchronized void writeBytes(byte[] message) throws IOException {
         handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public synchronized void writeBuffers(ByteBuffer... buffers) throws IOException {
+        // The manager's connections always queue.
+        ((QueuedMessageWriteTarget) handler.writeTarget).writeBuffers(buffers);
+    }
+
+    @Override
+    public boolean isSendQueueFull() {
+        return ((QueuedMessageWriteTarget) handler.writeTarget).isSendQueueFull();
+    }
 }
@@ -20,28 +20,98 @@ import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.channels.*;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
- * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * <p>A class which manages a set of client connections. Uses Java NIO to select network events on one or more network
+ * threads, each with its own selector, and spreads new connections across them.</p>
+ *
+ * <p>By default received messages are parsed and handled by a pool of processing threads rather than by the network
+ * threads, so one peer sending something slow to process doesn't hold up all the others. Each connection only has
+ * bytes processed by one thread at a time, in the order they arrived, and stops being read from while too much it sent
+ * is waiting (see {@link ConnectionHandler}).</p>
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
-    private final Selector selector;
-
     // SocketChannels and StreamParsers of newly-created connections which should be registered with OP_CONNECT
     class SocketChannelAndParser {
         SocketChannel sc; StreamParser parser;
         SocketChannelAndParser(SocketChannel sc, StreamParser parser) { this.sc = sc; this.parser = parser; }
     }
-    final Queue<SocketChannelAndParser> newConnectionChannels = new LinkedBlockingQueue<SocketChannelAndParser>();
+
+    // A selector and the connections waiting to be registered with it. Loop 0 runs on the service's own thread.
+    private class SelectorLoop implements Runnable {
+        final Selector selector;
+        final Queue<SocketChannelAndParser> newConnectionChannels = new LinkedBlockingQueue<SocketChannelAndParser>();
+
+        SelectorLoop() throws IOException {
+            selector = SelectorProvider.provider().openSelector();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (isRunning() && !stopped) {
+                    SocketChannelAndParser conn;
+                    while ((conn = newConnectionChannels.poll()) != null) {
+                        try {
+                            SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
+                            key.attach(conn.parser);
+                        } catch (ClosedChannelException e) {
+                            log.info("SocketChannel was closed before it could be registered");
+                        }
+                    }
+
+                    selector.select();
+
+                    Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                    while (keyIterator.hasNext()) {
+                        SelectionKey key = keyIterator.next();
+                        keyIterator.remove();
+                        handleKey(key);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("Error trying to open/read from connection: ", e);
+            } finally {
+                // If one loop stops, they all do, so the manager stops rather than carrying on without it.
+                stopped = true;
+                triggerShutdown();
+                // Go through and close everything, without letting IOExceptions get in our way
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException e) {
+                        log.error("Error closing channel", e);
+                    }
+                    key.cancel();
+                    if (key.attachment() instanceof ConnectionHandler)
+                        ConnectionHandler.handleKey(key); // Close connection if relevant
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    log.error("Error closing client manager selector", e);
+                }
+            }
+        }
+    }
+
+    private final SelectorLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile boolean stopped = false;
+    // Null if received bytes are processed by the network threads.
+    @Nullable private final ExecutorService processingExecutor;
 
     // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
     private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
@@ -53,7 +123,7 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             // Create a ConnectionHandler and hook everything together
             StreamParser parser = (StreamParser) key.attachment();
             SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(parser, key, connectedHandlers);
+            ConnectionHandler handler = new ConnectionHandler(parser, key, connectedHandlers, processingExecutor);
             try {
                 if (sc.finishConnect()) {
                     log.info("Successfully connected to {}", sc.socket().getRemoteSocketAddress());
@@ -76,73 +146,82 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     /**
      * Creates a new client manager which uses Java NIO for socket management. Uses a single thread to handle all select
-     * calls.
+     * calls, and one processing thread per processor to handle received messages.
      */
     public NioClientManager() {
-        log.info("Starting new client manager");
-    	try {
-            selector = SelectorProvider.provider().openSelector();
+        this(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new client manager which uses Java NIO for socket management.
+     *
+     * @param selectorThreads how many threads select network events, at least one.
+     * @param processingThreads how many threads parse and handle received messages. If zero, they are handled by the
+     *                          thread which selected them, as before there were processing threads.
+     */
+    public NioClientManager(int selectorThreads, int processingThreads) {
+        checkArgument(selectorThreads > 0);
+        checkArgument(processingThreads >= 0);
+        log.info("Starting new client manager with {} selector threads", selectorThreads);
+        loops = new SelectorLoop[selectorThreads];
+        try {
+            for (int i = 0; i < selectorThreads; i++)
+                loops[i] = new SelectorLoop();
         } catch (IOException e) {
             throw new RuntimeException(e); // Shouldn't ever happen
         }
+        if (processingThreads > 0) {
+            processingExecutor = Executors.newFixedThreadPool(processingThreads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "NioClientManager processing thread " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            processingExecutor = null;
+        }
     }
 
     @Override
     public void run() {
+        List<Thread> threads = new ArrayList<Thread>();
         try {
-            while (isRunning()) {
-                SocketChannelAndParser conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn.parser);
-                    } catch (ClosedChannelException e) {
-                        log.info("SocketChannel was closed before it could be registered");
-                    }
-                }
-
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    handleKey(key);
-                }
+            for (int i = 1; i < loops.length; i++) {
+                Thread thread = new Thread(loops[i], "NioClientManager selector thread " + i);
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
             }
-        } catch (Exception e) {
-            log.error("Error trying to open/read from connection: ", e);
+            loops[0].run();
         } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.error("Error closing channel", e);
-                }
-                key.cancel();
-                if (key.attachment() instanceof ConnectionHandler)
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
-            }
+            if (processingExecutor != null)
+                processingExecutor.shutdown();
+        }
+        for (Thread thread : threads) {
             try {
-                selector.close();
-            } catch (IOException e) {
-                log.error("Error closing client manager selector", e);
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
             }
         }
     }
 
     @Override
     public void openConnection(SocketAddress serverAddress, StreamParser parser) {
-        if (!isRunning())
+        if (!isRunning() || stopped)
             throw new IllegalStateException();
         // Create a new connection, give it a parser as an attachment
         try {
             SocketChannel sc = SocketChannel.open();
             sc.configureBlocking(false);
             sc.connect(serverAddress);
-            newConnectionChannels.offer(new SocketChannelAndParser(sc, parser));
-            selector.wakeup();
+            SelectorLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+            loop.newConnectionChannels.offer(new SocketChannelAndParser(sc, parser));
+            loop.selector.wakeup();
         } catch (IOException e) {
             log.error("Could not connect to " + serverAddress);
             throw new RuntimeException(e); // This should only happen if we are, eg, out of system resources
@@ -151,7 +230,8 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void triggerShutdown() {
-        selector.wakeup();
+        for (SelectorLoop loop : loops)
+            loop.selector.wakeup();
     }
 
     @Override
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link MessageWriteTarget} which queues what is written to it, so it can take buffers without copying them and can
+ * say when the queue is backing up. Not every write target is one, so check with instanceof.
+ */
+public interface QueuedMessageWriteTarget extends MessageWriteTarget {
+    /**
+     * Writes the remaining bytes of each buffer to the remote server, in order, without copying them. The buffers'
+     * positions aren't changed, but their contents mustn't be until they're written, so they can be shared.
+     */
+    void writeBuffers(ByteBuffer... buffers) throws IOException;
+    /**
+     * Returns true if so much is waiting to be sent that nothing more should be unless it has to be. Once this has
+     * been true, {@link SendQueueAwareParser#sendQueueDrained()} is called when it no longer is, if the parser is one.
+     */
+    boolean isSendQueueFull();
+}
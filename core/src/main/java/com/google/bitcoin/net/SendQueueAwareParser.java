@@ -0,0 +1,32 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+/**
+ * A {@link StreamParser} which holds back sending while its {@link QueuedMessageWriteTarget}'s send queue is full, and
+ * so needs to know when it has drained.
+ */
+public interface SendQueueAwareParser extends StreamParser {
+    /**
+     * Called when the bytes waiting to be sent, having gone over the write target's high-water mark, have drained to
+     * well under it, so that sending which was held back because {@link QueuedMessageWriteTarget#isSendQueueFull()}
+     * was true can carry on. isSendQueueFull() may already be true again by the time it is. This may be called on the
+     * thread doing the network I/O for many connections, so anything slow, like serializing messages, must be handed
+     * to another thread.
+     */
+    void sendQueueDrained();
+}
@@ -24,6 +24,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongycastle.crypto.digests.RIPEMD160Digest;
 
+import javax.annotation.Nullable;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -566,16 +567,18 @@ public class Script {
         return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
     }
     
-    private static void executeScript(Transaction txContainingThis, long index,
-                                      Script script, LinkedList<byte[]> stack) throws ScriptException {
+    private static void executeScript(Transaction txContainingThis, long index, Script script, ArrayDeque<byte[]> stack,
+                                      @Nullable List<ECKey.SignatureCheck> deferredChecks) throws ScriptException {
         int opCount = 0;
         int lastCodeSepLocation = 0;
         
-        LinkedList<byte[]> altstack = new LinkedList<byte[]>();
-        LinkedList<Boolean> ifStack = new LinkedList<Boolean>();
+        ArrayDeque<byte[]> altstack = new ArrayDeque<byte[]>();
+        ArrayDeque<Boolean> ifStack = new ArrayDeque<Boolean>();
+        // How many entries of ifStack are false. Nothing is executed unless it's zero.
+        int falseBranches = 0;
         
         for (ScriptChunk chunk : script.chunks) {
-            boolean shouldExecute = !ifStack.contains(false);
+            boolean shouldExecute = falseBranches == 0;
             
             if (!chunk.isOpCode()) {
                 if (chunk.data.length > MAX_SCRIPT_ELEMENT_SIZE)
@@ -604,32 +607,29 @@ public class Script {
                 
                 switch (opcode) {
                 case OP_IF:
-                    if (!shouldExecute) {
-                        ifStack.add(false);
-                        continue;
-                    }
-                    if (stack.size() < 1)
-                        throw new ScriptException("Attempted OP_IF on an empty stack");
-                    ifStack.add(castToBool(stack.pollLast()));
-                    continue;
                 case OP_NOTIF:
-                    if (!shouldExecute) {
-                        ifStack.add(false);
-                        continue;
+                    boolean branch = false;
+                    if (shouldExecute) {
+                        if (stack.size() < 1)
+                            throw new ScriptException("Attempted OP_IF/OP_NOTIF on an empty stack");
+                        branch = castToBool(stack.pollLast()) == (opcode == OP_IF);
                     }
-                    if (stack.size() < 1)
-                        throw new ScriptException("Attempted OP_NOTIF on an empty stack");
-                    ifStack.add(!castToBool(stack.pollLast()));
+                    ifStack.add(branch);
+                    if (!branch)
+                        falseBranches++;
                     continue;
                 case OP_ELSE:
                     if (ifStack.isEmpty())
                         throw new ScriptException("Attempted OP_ELSE without OP_IF/NOTIF");
-                    ifStack.add(!ifStack.pollLast());
+                    boolean elseBranch = !ifStack.pollLast();
+                    ifStack.add(elseBranch);
+                    falseBranches += elseBranch ? -1 : 1;
                     continue;
                 case OP_ENDIF:
                     if (ifStack.isEmpty())
                         throw new ScriptException("Attempted OP_ENDIF without OP_IF/NOTIF");
-                    ifStack.pollLast();
+                    if (!ifStack.pollLast())
+                        falseBranches--;
                     continue;
                 }
                 
@@ -1023,11 +1023,8 @@ public class Script {
                 case OP_SHA256:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA256 on an empty stack");
-                    try {
-                        stack.add(MessageDigest.getInstance("SHA-256").digest(stack.pollLast()));
-                    } catch (NoSuchAlgorithmException e) {
-                        throw new RuntimeException(e);  // Cannot happen.
-                    }
+                    byte[] toHash = stack.pollLast();
+                    stack.add(Utils.singleDigest(toHash, 0, toHash.length));
                     break;
                 case OP_HASH160:
                     if (stack.size() < 1)
@@ -1044,7 +1041,7 @@ public class Script {
                     break;
                 case OP_CHECKSIG:
                 case OP_CHECKSIGVERIFY:
-                    executeCheckSig(txContainingThis, (int) index, script, stack, lastCodeSepLocation, opcode);
+                    executeCheckSig(txContainingThis, (int) index, script, stack, lastCodeSepLocation, opcode, deferredChecks);
                     break;
                 case OP_CHECKMULTISIG:
                 case OP_CHECKMULTISIGVERIFY:
@@ -1075,8 +1072,9 @@ public class Script {
             throw new ScriptException("OP_IF/OP_NOTIF without OP_ENDIF");
     }
 
-    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
-                                        int lastCodeSepLocation, int opcode) throws ScriptException {
+    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, ArrayDeque<byte[]> stack,
+                                        int lastCodeSepLocation, int opcode,
+                                        @Nullable List<ECKey.SignatureCheck> deferredChecks) throws ScriptException {
         if (stack.size() < 2)
             throw new ScriptException("Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
         byte[] pubKey = stack.pollLast();
@@ -1105,7 +1103,13 @@ public class Script {
         try {
             TransactionSignature sig  = TransactionSignature.decodeFromBitcoin(sigBytes, false);
             Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-            sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
+            if (deferredChecks != null) {
+                // Assumed valid for now, the caller verifies it later.
+                deferredChecks.add(new ECKey.SignatureCheck(hash.getBytes(), sig, pubKey));
+                sigValid = true;
+            } else {
+                sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
+            }
         } catch (Exception e1) {
             // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
             // Because I can't verify there aren't more, we use a very generic Exception catch
@@ -1119,7 +1123,7 @@ public class Script {
                 throw new ScriptException("Script failed OP_CHECKSIGVERIFY");
     }
 
-    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+    private static int executeMultiSig(Transaction txContainingThis, int index, Script script, ArrayDeque<byte[]> stack,
                                        int opCount, int lastCodeSepLocation, int opcode) throws ScriptException {
         if (stack.size() < 2)
             throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < 2");
@@ -1132,7 +1136,7 @@ public class Script {
         if (stack.size() < pubKeyCount + 1)
             throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + 2");
 
-        LinkedList<byte[]> pubkeys = new LinkedList<byte[]>();
+        ArrayDeque<byte[]> pubkeys = new ArrayDeque<byte[]>(pubKeyCount);
         for (int i = 0; i < pubKeyCount; i++) {
             byte[] pubKey = stack.pollLast();
             if (pubKey.length == 0)
@@ -1146,7 +1150,7 @@ public class Script {
         if (stack.size() < sigCount + 1)
             throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + num_of_signatures + 3");
 
-        LinkedList<byte[]> sigs = new LinkedList<byte[]>();
+        ArrayDeque<byte[]> sigs = new ArrayDeque<byte[]>(sigCount);
         for (int i = 0; i < sigCount; i++) {
             byte[] sig = stack.pollLast();
             if (sig.length == 0)
@@ -1202,31 +1206,39 @@ public class Script {
 
     /**
      * Verifies that this script (interpreted as a scriptSig) correctly spends the given scriptPubKey.
-     * @param txContainingThis The transaction in which this input scriptSig resides.
-     *                         Accessing txContainingThis from another thread while this method runs results in undefined behavior.
+     * @param txContainingThis The transaction in which this input scriptSig resides. It isn't modified, so several of
+     *                         its inputs can be checked at once, but it mustn't be changed by another thread meanwhile.
      * @param scriptSigIndex The index in txContainingThis of the scriptSig (note: NOT the index of the scriptPubKey).
      * @param scriptPubKey The connected scriptPubKey containing the conditions needed to claim the value.
      * @param enforceP2SH Whether "pay to script hash" rules should be enforced. If in doubt, set to true.
      */
     public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
                                 boolean enforceP2SH) throws ScriptException {
-        // Clone the transaction because executing the script involves editing it, and if we die, we'll leave
-        // the tx half broken (also it's not so thread safe to work on it directly.
-        try {
-            txContainingThis = new Transaction(txContainingThis.getParams(), txContainingThis.bitcoinSerialize());
-        } catch (ProtocolException e) {
-            throw new RuntimeException(e);   // Should not happen unless we were given a totally broken transaction.
-        }
+        correctlySpends(txContainingThis, scriptSigIndex, scriptPubKey, enforceP2SH, null);
+    }
+
+    /**
+     * <p>Like {@link #correctlySpends(Transaction, long, Script, boolean)}, but if deferredChecks isn't null the
+     * signatures checked by OP_CHECKSIG and OP_CHECKSIGVERIFY are assumed to be valid and added to it instead, so
+     * they can be verified together with others later, eg using {@link ECKey#verify(List)}.</p>
+     *
+     * <p>If this returns and every deferred signature turns out to be valid, the script would also have passed
+     * without deferring. Otherwise nothing is known: a script can pass or fail because a signature is invalid, so it
+     * has to be checked again without deferring. Signatures checked by OP_CHECKMULTISIG aren't deferred.</p>
+     */
+    public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
+                                boolean enforceP2SH, @Nullable List<ECKey.SignatureCheck> deferredChecks)
+            throws ScriptException {
         if (getProgram().length > 10000 || scriptPubKey.getProgram().length > 10000)
             throw new ScriptException("Script larger than 10,000 bytes");
         
-        LinkedList<byte[]> stack = new LinkedList<byte[]>();
-        LinkedList<byte[]> p2shStack = null;
+        ArrayDeque<byte[]> stack = new ArrayDeque<byte[]>();
+        ArrayDeque<byte[]> p2shStack = null;
         
-        executeScript(txContainingThis, scriptSigIndex, this, stack);
+        executeScript(txContainingThis, scriptSigIndex, this, stack, deferredChecks);
         if (enforceP2SH)
-            p2shStack = new LinkedList<byte[]>(stack);
-        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack);
+            p2shStack = new ArrayDeque<byte[]>(stack);
+        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, deferredChecks);
         
         if (stack.size() == 0)
             throw new ScriptException("Stack empty at end of script execution.");
@@ -1255,7 +1267,7 @@ public class Script {
             byte[] scriptPubKeyBytes = p2shStack.pollLast();
             Script scriptPubKeyP2SH = new Script(scriptPubKeyBytes);
             
-            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack);
+            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, deferredChecks);
             
             if (p2shStack.size() == 0)
                 throw new ScriptException("P2SH stack empty at end of script execution.");
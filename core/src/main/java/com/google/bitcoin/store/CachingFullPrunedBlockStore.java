@@ -0,0 +1,295 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.StoredTransactionOutput;
+import com.google.bitcoin.core.StoredUndoableBlock;
+import com.google.bitcoin.core.TransactionOutPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Sits in front of another {@link FullPrunedBlockStore} and keeps recently used unspent transaction outputs in
+ * memory, so that verifying a block doesn't need a database query for each input it spends.</p>
+ *
+ * <p>Outputs created and spent between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()},
+ * which is one block for {@link com.google.bitcoin.core.FullPrunedBlockChain}, are buffered and written to the
+ * underlying store when the batch is committed, in the same batch as the rest of the block. Outputs that are both
+ * created and spent in a batch are never written at all. If a batch gets larger than the cache, what has been buffered
+ * so far is written to the underlying store's batch early, so memory use stays bounded.</p>
+ *
+ * <p>Everything else is passed straight through. Like the other stores, this one is thread safe and only shows what a
+ * thread writes in a batch to that thread until the batch is committed.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** The default number of unspent outputs kept in memory. */
+    public static final int DEFAULT_CACHE_SIZE = 100000;
+
+    private final FullPrunedBlockStore store;
+    private final int cacheSize;
+
+    // Committed outputs, most recently used last. Only ever holds what the underlying store has outside any batch.
+    private final LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput> cache;
+
+    // The outputs a thread has added and removed in its current batch, which haven't been written yet.
+    private static class Batch {
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> added =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> removed =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        // Set once part of the batch has been written to the underlying store early. The cache doesn't know about
+        // those changes, so it's bypassed for the rest of the batch and cleared when the batch is committed.
+        boolean written;
+    }
+    private final ThreadLocal<Batch> batch = new ThreadLocal<Batch>();
+
+    /** Wraps the given store, keeping up to {@link #DEFAULT_CACHE_SIZE} unspent outputs in memory. */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store) {
+        this(store, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Wraps the given store, keeping up to the given number of unspent outputs in memory. A batch can also buffer
+     * that many changes before they are written to the underlying store.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, final int cacheSize) {
+        checkArgument(cacheSize > 0);
+        this.store = checkNotNull(store);
+        this.cacheSize = cacheSize;
+        this.cache = new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput> entry) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index)
+            throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+        Batch batch = this.batch.get();
+        if (batch != null) {
+            StoredTransactionOutput out = batch.added.get(outPoint);
+            if (out != null)
+                return out;
+            if (batch.removed.containsKey(outPoint))
+                return null;
+            if (batch.written)
+                return store.getTransactionOutput(hash, index);
+        }
+        StoredTransactionOutput out = cache.get(outPoint);
+        if (out == null) {
+            out = store.getTransactionOutput(hash, index);
+            if (out != null)
+                cache.put(outPoint, out);
+        }
+        return out;
+    }
+
+    public synchronized List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outPoints)
+            throws BlockStoreException {
+        Batch batch = this.batch.get();
+        boolean useCache = batch == null || !batch.written;
+        StoredTransactionOutput[] outputs = new StoredTransactionOutput[outPoints.size()];
+        // Those we don't have in memory are looked up all together.
+        List<TransactionOutPoint> misses = new ArrayList<TransactionOutPoint>();
+        List<Integer> missPositions = new ArrayList<Integer>();
+        for (int i = 0; i < outputs.length; i++) {
+            TransactionOutPoint outPoint = outPoints.get(i);
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex());
+            if (batch != null) {
+                outputs[i] = batch.added.get(key);
+                if (outputs[i] != null || batch.removed.containsKey(key))
+                    continue;
+            }
+            if (useCache) {
+                outputs[i] = cache.get(key);
+                if (outputs[i] != null)
+                    continue;
+            }
+            misses.add(outPoint);
+            missPositions.add(i);
+        }
+        if (!misses.isEmpty()) {
+            List<StoredTransactionOutput> found = store.getTransactionOutputs(misses);
+            for (int i = 0; i < found.size(); i++) {
+                StoredTransactionOutput out = found.get(i);
+                outputs[missPositions.get(i)] = out;
+                if (out != null && useCache)
+                    cache.put(new StoredTransactionOutPoint(out), out);
+            }
+        }
+        return Arrays.asList(outputs);
+    }
+
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        Batch batch = this.batch.get();
+        if (batch == null) {
+            store.addUnspentTransactionOutput(out);
+            cache.put(new StoredTransactionOutPoint(out), out);
+            return;
+        }
+        // If it was removed earlier in the batch, it's still removed first and then added again when written.
+        batch.added.put(new StoredTransactionOutPoint(out), out);
+        maybeWriteBatch(batch);
+    }
+
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        Batch batch = this.batch.get();
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        if (batch == null) {
+            cache.remove(outPoint);
+            store.removeUnspentTransactionOutput(out);
+            return;
+        }
+        if (batch.added.remove(outPoint) != null)
+            return;  // Added in this batch, so the underlying store has never seen it.
+        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+        batch.removed.put(outPoint, out);
+        maybeWriteBatch(batch);
+    }
+
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        Batch batch = this.batch.get();
+        if (batch == null)
+            return store.hasUnspentOutputs(hash, numOutputs);
+        boolean anyRemoved = false;
+        for (int i = 0; i < numOutputs; i++) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, i);
+            if (batch.added.containsKey(outPoint))
+                return true;
+            anyRemoved |= batch.removed.containsKey(outPoint);
+        }
+        if (!store.hasUnspentOutputs(hash, numOutputs))
+            return false;
+        if (!anyRemoved)
+            return true;
+        // Some of them were removed in this batch, so check the others one by one.
+        for (int i = 0; i < numOutputs; i++) {
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        }
+        return false;
+    }
+
+    // Writes what the batch has buffered to the underlying store's batch if it's grown too large.
+    private void maybeWriteBatch(Batch batch) throws BlockStoreException {
+        if (batch.added.size() + batch.removed.size() <= cacheSize)
+            return;
+        log.info("Writing {} unspent output changes before the end of the batch", batch.added.size() + batch.removed.size());
+        writeBatch(batch);
+        batch.added.clear();
+        batch.removed.clear();
+        batch.written = true;
+    }
+
+    private void writeBatch(Batch batch) throws BlockStoreException {
+        // Removals first, as an output removed and then added again in the same batch must end up in the store.
+        for (StoredTransactionOutput out : batch.removed.values())
+            store.removeUnspentTransactionOutput(out);
+        for (StoredTransactionOutput out : batch.added.values())
+            store.addUnspentTransactionOutput(out);
+    }
+
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        store.beginDatabaseBatchWrite();
+        if (batch.get() == null)
+            batch.set(new Batch());
+    }
+
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        Batch batch = this.batch.get();
+        if (batch == null) {
+            store.commitDatabaseBatchWrite();
+            return;
+        }
+        try {
+            writeBatch(batch);
+            store.commitDatabaseBatchWrite();
+        } finally {
+            this.batch.remove();
+        }
+        // Only now are the changes visible to other threads, so the cache can reflect them.
+        if (batch.written) {
+            cache.clear();
+        } else {
+            for (StoredTransactionOutPoint outPoint : batch.removed.keySet())
+                cache.remove(outPoint);
+            cache.putAll(batch.added);
+        }
+    }
+
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        batch.remove();
+        store.abortDatabaseBatchWrite();
+    }
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        store.put(block);
+    }
+
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return store.get(hash);
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return store.getChainHead();
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+    }
+
+    public void close() throws BlockStoreException {
+        store.close();
+    }
+
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        store.put(storedBlock, undoableBlock);
+    }
+
+    @Nullable
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Nullable
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getUndoBlock(hash);
+    }
+
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return store.getVerifiedChainHead();
+    }
+
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setVerifiedChainHead(chainHead);
+    }
+}
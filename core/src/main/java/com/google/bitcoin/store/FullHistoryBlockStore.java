@@ -0,0 +1,427 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A FullHistoryBlockStore keeps every block header it is given, unlike {@link SPVBlockStore} which forgets the
+ * oldest ones. Headers are appended to a memory mapped file and never removed.</p>
+ *
+ * <p>Next to it are two index files. One maps heights to the headers of the best chain, so
+ * {@link #getByHeight(int)} takes constant time and walking back a long way along the best chain, as difficulty
+ * calculations and checkpoint building do, doesn't need a lookup by hash for each block. The other maps hashes to
+ * headers. Both indexes are rebuilt from the headers if the store wasn't closed properly.</p>
+ *
+ * <p>Headers are stored without their proof of work hash, in the format of
+ * {@link StoredBlock#serializeCompact(java.nio.ByteBuffer)}. The hash index holds their hashes, so looking a header up
+ * doesn't hash it again. Each file is limited to 2GB, which is over 16 million headers.</p>
+ */
+public class FullHistoryBlockStore implements BlockStore {
+    private static final Logger log = LoggerFactory.getLogger(FullHistoryBlockStore.class);
+
+    public static final String HEADER_MAGIC = "FHBS";
+
+    protected NetworkParameters params;
+    protected ReentrantLock lock = Threading.lock("FullHistoryBlockStore");
+
+    // The headers, the height index and the hash index. See the file format description below.
+    protected RandomAccessFile headersFile, heightsFile, hashesFile;
+    protected MappedByteBuffer headers, heights, hashes;
+    protected FileLock fileLock;
+
+    // Caches the most recently used blocks, see the comment in SPVBlockStore.
+    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
+            return size() > 2050;  // Slightly more than the difficulty transition period.
+        }
+    };
+    protected StoredBlock lastChainHead;
+
+    /**
+     * Creates and initializes a full history block store. The headers are kept in the given file, which is created if
+     * it's missing, and the indexes in files next to it with <tt>.heights</tt> and <tt>.hashes</tt> added to its name.
+     * This operation will block on disk.
+     */
+    public FullHistoryBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this.params = checkNotNull(params);
+        checkNotNull(file);
+        try {
+            boolean exists = file.exists();
+            headersFile = new RandomAccessFile(file, "rw");
+            heightsFile = new RandomAccessFile(new File(file.getPath() + ".heights"), "rw");
+            hashesFile = new RandomAccessFile(new File(file.getPath() + ".hashes"), "rw");
+            fileLock = headersFile.getChannel().tryLock();
+            if (fileLock == null)
+                throw new BlockStoreException("Store file is already locked by another process");
+            if (exists) {
+                byte[] header = new byte[4];
+                headersFile.readFully(header);
+                if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
+                    throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+            }
+            headers = map(headersFile, Math.max(headersFile.length(), FILE_PROLOGUE_BYTES + 1024 * RECORD_SIZE));
+            heights = map(heightsFile, Math.max(heightsFile.length(), 1024 * 4));
+            lock.lock();
+            try {
+                if (!exists) {
+                    headers.put(HEADER_MAGIC.getBytes("US-ASCII"));
+                    headers.putInt(HASH_SLOTS_OFFSET, 2048);
+                    hashes = map(hashesFile, 2048 * SLOT_SIZE);
+                    clearHashes();
+                    Block genesis = params.getGenesisBlock().cloneAsHeader();
+                    StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+                    headers.putInt(LOWEST_HEIGHT_OFFSET, 1);  // The height index is empty.
+                    put(storedGenesis);
+                    setChainHead(storedGenesis);
+                } else {
+                    hashes = map(hashesFile, (long) getHashSlots() * SLOT_SIZE);
+                    if (headers.getInt(INDEX_STATE_OFFSET) != INDEX_CLEAN)
+                        rebuildIndexes();
+                }
+                // Until close() marks them clean again, a crash may leave the indexes out of step with the headers.
+                headers.putInt(INDEX_STATE_OFFSET, INDEX_DIRTY);
+            } finally {
+                lock.unlock();
+            }
+        } catch (Exception e) {
+            try {
+                if (headersFile != null) headersFile.close();
+                if (heightsFile != null) heightsFile.close();
+                if (hashesFile != null) hashesFile.close();
+            } catch (IOException e2) {
+                throw new BlockStoreException(e2);
+            }
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile file, long size) throws IOException {
+        checkState(size <= Integer.MAX_VALUE, "Store file would be larger than 2GB");
+        // Mapping past the end of the file makes it longer.
+        return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        Sha256Hash hash = block.getHeader().getHash();
+        lock.lock();
+        try {
+            checkOpen();
+            if (findRecord(hash) >= 0)
+                return;  // Headers never change, so there's nothing to do.
+            int record = getRecordCount();
+            int offset = getRecordOffset(record);
+            if (offset + RECORD_SIZE > headers.capacity())
+                headers = map(headersFile, (long) headers.capacity() * 2);
+            headers.position(offset);
+            block.serializeCompact(headers);
+            headers.putInt(RECORD_COUNT_OFFSET, record + 1);
+            if ((record + 1) * 2L > getHashSlots())
+                growHashes();
+            else
+                indexRecord(hash, record);
+            blockCache.put(hash, block);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally { lock.unlock(); }
+    }
+
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            StoredBlock cacheHit = blockCache.get(hash);
+            if (cacheHit != null)
+                return cacheHit;
+            int record = findRecord(hash);
+            if (record < 0)
+                return null;
+            StoredBlock block = readRecord(record);
+            blockCache.put(hash, block);
+            return block;
+        } finally { lock.unlock(); }
+    }
+
+    /**
+     * Returns the block at the given height in the best chain, or null if the height is above the chain head or
+     * below the oldest block of the best chain that the store has.
+     */
+    @Nullable
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (height < headers.getInt(LOWEST_HEIGHT_OFFSET) || height > headers.getInt(BEST_HEIGHT_OFFSET))
+                return null;
+            return readRecord(heights.getInt(height * 4));
+        } finally { lock.unlock(); }
+    }
+
+    /** Returns how many block headers are in the store. */
+    public int size() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            return getRecordCount();
+        } finally { lock.unlock(); }
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if (lastChainHead == null)
+                lastChainHead = readRecord(headers.getInt(CHAIN_HEAD_OFFSET));
+            return lastChainHead;
+        } finally { lock.unlock(); }
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            int record = findRecord(chainHead.getHeader().getHash());
+            if (record < 0) {
+                put(chainHead);
+                record = getRecordCount() - 1;
+            }
+            headers.putInt(CHAIN_HEAD_OFFSET, record);
+            lastChainHead = chainHead;
+            indexBestChain(record, chainHead.getHeight());
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally { lock.unlock(); }
+    }
+
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            headers.putInt(INDEX_STATE_OFFSET, INDEX_CLEAN);
+            headers.force();
+            heights.force();
+            hashes.force();
+            // Allow the buffers to be GCd and the underlying file mappings to go away.
+            headers = heights = hashes = null;
+            headersFile.close();
+            heightsFile.close();
+            hashesFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally { lock.unlock(); }
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (headers == null) throw new BlockStoreException("Store closed");
+    }
+
+    // Headers file format:
+    //   4 header bytes = "FHBS"
+    //   4 bytes number of records
+    //   4 bytes record number of the chain head
+    //   4 bytes height of the chain head
+    //   4 bytes lowest height in the height index, which is the height of the oldest block of the best chain we have
+    //   4 bytes index state, INDEX_CLEAN if the store was closed properly since the indexes were last changed
+    //   4 bytes number of slots in the hash index
+    //   The rest of the first kilobyte is unused.
+    //
+    // Then a record for each header in the order they were put, in the format of StoredBlock.serializeCompact:
+    //   12 bytes of chain work
+    //    4 bytes of height
+    //   80 bytes of block header data
+    //
+    // The heights file holds the record number of the best chain block at each height from the lowest height up to
+    // the chain head's height, 4 bytes each, indexed by height. Anything after that is left over from longer chains.
+    //
+    // The hashes file is an open addressing table of slots holding a block hash, then one plus the number of its
+    // record, or 0 if the slot is empty. A hash is put in the first free slot at or after the one picked by its last
+    // four bytes, and the table is rebuilt at twice the size when it gets half full. Older stores only kept the last 8
+    // bytes of each hash. They marked clean indexes with "INDX" rather than INDEX_CLEAN, so theirs are rebuilt.
+    protected static final int FILE_PROLOGUE_BYTES = 1024;
+    protected static final int RECORD_SIZE = StoredBlock.COMPACT_SERIALIZED_SIZE;
+    protected static final int SLOT_SIZE = 36;
+    protected static final int RECORD_COUNT_OFFSET = 4;
+    protected static final int CHAIN_HEAD_OFFSET = 8;
+    protected static final int BEST_HEIGHT_OFFSET = 12;
+    protected static final int LOWEST_HEIGHT_OFFSET = 16;
+    protected static final int INDEX_STATE_OFFSET = 20;
+    protected static final int HASH_SLOTS_OFFSET = 24;
+    protected static final int INDEX_CLEAN = 0x49445832;  // "IDX2"
+    protected static final int INDEX_DIRTY = 0;
+
+    private int getRecordCount() {
+        return headers.getInt(RECORD_COUNT_OFFSET);
+    }
+
+    private int getHashSlots() {
+        return headers.getInt(HASH_SLOTS_OFFSET);
+    }
+
+    private static int getRecordOffset(int record) {
+        return FILE_PROLOGUE_BYTES + record * RECORD_SIZE;
+    }
+
+    private StoredBlock readRecord(int record) {
+        headers.position(getRecordOffset(record));
+        try {
+            return StoredBlock.deserializeCompact(params, headers);
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    // Calculates the hash of the header in the given record, in the byte order of Sha256Hash.
+    private byte[] getRecordHash(int record) {
+        byte[] header = new byte[Block.HEADER_SIZE];
+        headers.position(getRecordOffset(record) + StoredBlock.CHAIN_WORK_BYTES + 4);
+        headers.get(header);
+        return Utils.reverseBytes(Utils.doubleDigest(header));
+    }
+
+    // Reads eight bytes of a hash as a big endian long, like ByteBuffer.getLong does.
+    private static long getLong(byte[] hash, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++)
+            value = (value << 8) | (hash[i] & 0xFF);
+        return value;
+    }
+
+    // The last eight bytes of the hash, which pick its home slot in the hash index.
+    private static long getKey(byte[] hash) {
+        return getLong(hash, 24);
+    }
+
+    private boolean slotHashEquals(int slot, byte[] hash, long key) {
+        int offset = slot * SLOT_SIZE;
+        // Compare from the end, where hashes of blocks with real proof of work start to differ.
+        if (hashes.getLong(offset + 24) != key)
+            return false;
+        for (int i = 16; i >= 0; i -= 8) {
+            if (hashes.getLong(offset + i) != getLong(hash, i))
+                return false;
+        }
+        return true;
+    }
+
+    /** Returns the number of the record holding the block with the given hash, or -1 if there is none. */
+    private int findRecord(Sha256Hash hash) {
+        byte[] bytes = hash.getBytes();
+        long key = getKey(bytes);
+        int mask = getHashSlots() - 1;
+        for (int slot = (int) key & mask; ; slot = (slot + 1) & mask) {
+            int entry = hashes.getInt(slot * SLOT_SIZE + 32);
+            if (entry == 0)
+                return -1;
+            if (slotHashEquals(slot, bytes, key))
+                return entry - 1;
+        }
+    }
+
+    private void indexRecord(Sha256Hash hash, int record) {
+        byte[] bytes = hash.getBytes();
+        int mask = getHashSlots() - 1;
+        for (int slot = (int) getKey(bytes) & mask; ; slot = (slot + 1) & mask) {
+            if (hashes.getInt(slot * SLOT_SIZE + 32) == 0) {
+                hashes.position(slot * SLOT_SIZE);
+                hashes.put(bytes);
+                hashes.putInt(record + 1);
+                return;
+            }
+        }
+    }
+
+    private void clearHashes() {
+        byte[] zeros = new byte[SLOT_SIZE];
+        hashes.position(0);
+        for (int slot = 0; slot < getHashSlots(); slot++)
+            hashes.put(zeros);
+    }
+
+    // Indexes every record again. The records don't hold their hashes so this recalculates them all.
+    private void rehashAll() {
+        clearHashes();
+        int count = getRecordCount();
+        for (int record = 0; record < count; record++)
+            indexRecord(new Sha256Hash(getRecordHash(record)), record);
+    }
+
+    private void growHashes() throws IOException {
+        int slots = getHashSlots() * 2;
+        log.info("Growing the hash index of the full history block store to {} slots", slots);
+        headers.putInt(HASH_SLOTS_OFFSET, slots);
+        hashes = map(hashesFile, (long) slots * SLOT_SIZE);
+        rehashAll();
+    }
+
+    /**
+     * Points the height index at the best chain ending with the given record, going back until it reaches blocks that
+     * were already in the best chain or the oldest block the store has.
+     */
+    private void indexBestChain(int record, int height) throws IOException {
+        int oldLowest = headers.getInt(LOWEST_HEIGHT_OFFSET);
+        int oldBest = headers.getInt(BEST_HEIGHT_OFFSET);
+        if ((long) (height + 1) * 4 > heights.capacity())
+            heights = map(heightsFile, Math.max((long) heights.capacity() * 2, (long) (height + 1) * 4));
+        headers.putInt(BEST_HEIGHT_OFFSET, height);
+        while (true) {
+            if (height >= oldLowest && height <= oldBest && heights.getInt(height * 4) == record)
+                return;  // Everything below is already right.
+            heights.putInt(height * 4, record);
+            if (height == 0)
+                break;
+            headers.position(getRecordOffset(record) + StoredBlock.CHAIN_WORK_BYTES + 4 + 4);
+            byte[] prevHash = new byte[32];
+            headers.get(prevHash);
+            int prev = findRecord(new Sha256Hash(Utils.reverseBytes(prevHash)));
+            if (prev < 0)
+                break;  // Started from a checkpoint, so this is as far back as we have.
+            record = prev;
+            height--;
+        }
+        headers.putInt(LOWEST_HEIGHT_OFFSET, height);
+    }
+
+    /** Rebuilds both indexes from the headers. */
+    protected void rebuildIndexes() throws IOException {
+        log.info("Rebuilding the indexes of the full history block store");
+        rehashAll();
+        int head = headers.getInt(CHAIN_HEAD_OFFSET);
+        headers.putInt(LOWEST_HEIGHT_OFFSET, 1);
+        headers.putInt(BEST_HEIGHT_OFFSET, 0);
+        headers.position(getRecordOffset(head) + StoredBlock.CHAIN_WORK_BYTES);
+        indexBestChain(head, headers.getInt());
+    }
+}
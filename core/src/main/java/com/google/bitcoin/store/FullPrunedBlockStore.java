@@ -20,6 +20,9 @@ import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.StoredBlock;
 import com.google.bitcoin.core.StoredTransactionOutput;
 import com.google.bitcoin.core.StoredUndoableBlock;
+import com.google.bitcoin.core.TransactionOutPoint;
+
+import java.util.List;
 
 /**
  * <p>An implementor of FullPrunedBlockStore saves StoredBlock objects to some storage mechanism.</p>
@@ -77,6 +80,13 @@ public interface FullPrunedBlockStore extends BlockStore {
      * Gets a {@link StoredTransactionOutput} with the given hash and index, or null if none is found
      */
     StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException;
+
+    /**
+     * Gets the {@link StoredTransactionOutput}s for all of the given outpoints, in the same order, with null for those
+     * which aren't found. This is called with every output a block spends before the block is verified, so stores
+     * which can look up many outputs faster than one at a time should do so.
+     */
+    List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException;
     
     /**
      * Adds a {@link StoredTransactionOutput} to the list of unspent TransactionOutputs
@@ -27,8 +27,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 
 // Originally written for Apache Derby, but its DELETE (and general) performance was awful
 /**
@@ -48,6 +47,10 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     private StoredBlock verifiedChainHeadBlock;
     private NetworkParameters params;
     private ThreadLocal<Connection> conn;
+    // Statements are prepared once for each connection and then reused.
+    private ThreadLocal<Map<String, PreparedStatement>> statements;
+    // The outputs added and removed in the current batch on each connection, written together when it's committed.
+    private ThreadLocal<OutputChanges> outputChanges;
     private List<Connection> allConnections;
     private String connectionURL;
     private int fullStoreDepth;
@@ -86,6 +89,41 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         + "PRIMARY KEY (hash, index),"
         + ")";
 
+    static final String INSERT_HEADER_SQL = "INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
+        + " VALUES(?, ?, ?, ?, ?)";
+    static final String UPDATE_HEADER_SQL = "UPDATE headers SET wasUndoable=? WHERE hash=?";
+    static final String SELECT_HEADER_SQL = "SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?";
+    static final String INSERT_UNDOABLE_BLOCK_SQL = "INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
+        + " VALUES(?, ?, ?, ?)";
+    static final String UPDATE_UNDOABLE_BLOCK_SQL = "UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
+        + " WHERE hash = ?";
+    static final String SELECT_UNDOABLE_BLOCK_SQL = "SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?";
+    static final String DELETE_UNDOABLE_BLOCKS_SQL = "DELETE FROM undoableBlocks WHERE height <= ?";
+    static final String UPDATE_SETTING_SQL = "UPDATE settings SET value = ? WHERE name = ?";
+    static final String SELECT_OPEN_OUTPUT_SQL = "SELECT height, value, scriptBytes FROM openOutputs "
+        + "WHERE hash = ? AND index = ?";
+    // How many transaction hashes each query made by getTransactionOutputs looks for.
+    static final int OPEN_OUTPUTS_QUERY_HASHES = 50;
+    static final String SELECT_OPEN_OUTPUTS_SQL;
+    static {
+        StringBuilder sql = new StringBuilder("SELECT hash, index, height, value, scriptBytes FROM openOutputs "
+                + "WHERE hash IN (?");
+        for (int i = 1; i < OPEN_OUTPUTS_QUERY_HASHES; i++)
+            sql.append(", ?");
+        SELECT_OPEN_OUTPUTS_SQL = sql.append(")").toString();
+    }
+    static final String INSERT_OPEN_OUTPUT_SQL = "INSERT INTO openOutputs (hash, index, height, value, scriptBytes) "
+        + "VALUES (?, ?, ?, ?, ?)";
+    static final String DELETE_OPEN_OUTPUT_SQL = "DELETE FROM openOutputs WHERE hash = ? AND index = ?";
+    static final String COUNT_OPEN_OUTPUTS_SQL = "SELECT COUNT(*) FROM openOutputs WHERE hash = ?";
+
+    private static class OutputChanges {
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> added =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> removed =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+    }
+
     /**
      * Creates a new H2FullPrunedBlockStore
      * @param params A copy of the NetworkParameters used
@@ -101,6 +139,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         connectionURL = "jdbc:h2:" + dbName + ";create=true;LOCK_TIMEOUT=60000";
         
         conn = new ThreadLocal<Connection>();
+        statements = new ThreadLocal<Map<String, PreparedStatement>>();
+        outputChanges = new ThreadLocal<OutputChanges>();
         allConnections = new LinkedList<Connection>();
 
         try {
@@ -150,6 +190,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                 return;
             
             conn.set(DriverManager.getConnection(connectionURL));
+            statements.set(new HashMap<String, PreparedStatement>());
             allConnections.add(conn.get());
             log.info("Made a new connection to database " + connectionURL);
         } catch (SQLException ex) {
@@ -157,6 +198,16 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
     
+    private PreparedStatement prepare(String sql) throws SQLException {
+        Map<String, PreparedStatement> cache = statements.get();
+        PreparedStatement s = cache.get(sql);
+        if (s == null) {
+            s = conn.get().prepareStatement(sql);
+            cache.put(sql, s);
+        }
+        return s;
+    }
+
     public synchronized void close() {
         for (Connection conn : allConnections) {
             try {
@@ -177,6 +228,9 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             s.executeUpdate("DROP TABLE undoableBlocks");
             s.executeUpdate("DROP TABLE openOutputs");
             s.close();
+            for (PreparedStatement prepared : statements.get().values())
+                prepared.close();
+            statements.get().clear();
             createTables();
             initFromDatabase();
         } catch (SQLException ex) {
@@ -347,9 +401,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     
     private void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
-            PreparedStatement s =
-                    conn.get().prepareStatement("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
-                            + " VALUES(?, ?, ?, ?, ?)");
+            PreparedStatement s = prepare(INSERT_HEADER_SQL);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
@@ -359,21 +411,19 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             s.setBytes(4, storedBlock.getHeader().unsafeBitcoinSerialize());
             s.setBoolean(5, wasUndoable);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             // It is possible we try to add a duplicate StoredBlock if we upgraded
             // In that case, we just update the entry to mark it wasUndoable
             if (e.getErrorCode() != 23505 || !wasUndoable)
                 throw e;
-            
-            PreparedStatement s = conn.get().prepareStatement("UPDATE headers SET wasUndoable=? WHERE hash=?");
+
+            PreparedStatement s = prepare(UPDATE_HEADER_SQL);
             s.setBoolean(1, true);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(2, hashBytes);
             s.executeUpdate();
-            s.close();
         }
     }
 
@@ -385,7 +435,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             throw new BlockStoreException(e);
         }
     }
-    
+
     public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
         maybeConnect();
         // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
@@ -413,12 +463,10 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
-        
+
         try {
             try {
-                PreparedStatement s =
-                        conn.get().prepareStatement("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
-                                + " VALUES(?, ?, ?, ?)");
+                PreparedStatement s = prepare(INSERT_UNDOABLE_BLOCK_SQL);
                 s.setBytes(1, hashBytes);
                 s.setInt(2, height);
                 if (transactions == null) {
@@ -429,7 +477,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     s.setBytes(4, transactions);
                 }
                 s.executeUpdate();
-                s.close();
                 try {
                     putUpdateStoredBlock(storedBlock, true);
                 } catch (SQLException e) {
@@ -438,11 +485,9 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             } catch (SQLException e) {
                 if (e.getErrorCode() != 23505)
                     throw new BlockStoreException(e);
-                
+
                 // There is probably an update-or-insert statement, but it wasn't obvious from the docs
-                PreparedStatement s =
-                        conn.get().prepareStatement("UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
-                                + " WHERE hash = ?");
+                PreparedStatement s = prepare(UPDATE_UNDOABLE_BLOCK_SQL);
                 s.setBytes(3, hashBytes);
                 if (transactions == null) {
                     s.setBytes(1, txOutChanges);
@@ -452,7 +497,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     s.setBytes(2, transactions);
                 }
                 s.executeUpdate();
-                s.close();
             }
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
@@ -467,14 +511,14 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
         maybeConnect();
-        PreparedStatement s = null;
+        ResultSet results = null;
         try {
-            s = conn.get().prepareStatement("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
+            PreparedStatement s = prepare(SELECT_HEADER_SQL);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -496,38 +540,31 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             // blocks.
             throw new BlockStoreException(e);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+            closeResults(results);
         }
     }
-    
+
     @Nullable
     public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
         return get(hash, false);
     }
-    
+
     @Nullable
     public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
         return get(hash, true);
     }
-    
+
     @Nullable
     public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        ResultSet results = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
+            PreparedStatement s = prepare(SELECT_UNDOABLE_BLOCK_SQL);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -569,10 +606,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             // Corrupted database.
             throw new BlockStoreException(e);
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+            closeResults(results);
         }
     }
 
@@ -586,17 +620,15 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         this.chainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare(UPDATE_SETTING_SQL);
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
     }
-    
+
     public StoredBlock getVerifiedChainHead() throws BlockStoreException {
         return verifiedChainHeadBlock;
     }
@@ -607,12 +639,10 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare(UPDATE_SETTING_SQL);
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -623,11 +653,9 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
     private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM undoableBlocks WHERE height <= ?");
+            PreparedStatement s = prepare(DELETE_UNDOABLE_BLOCKS_SQL);
             s.setInt(1, height);
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -636,15 +664,22 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     @Nullable
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        OutputChanges changes = outputChanges.get();
+        if (changes != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+            StoredTransactionOutput out = changes.added.get(outPoint);
+            if (out != null)
+                return out;
+            if (changes.removed.containsKey(outPoint))
+                return null;
+        }
+        ResultSet results = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT height, value, scriptBytes FROM openOutputs " +
-                        "WHERE hash = ? AND index = ?");
+            PreparedStatement s = prepare(SELECT_OPEN_OUTPUT_SQL);
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)index);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -656,56 +691,149 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+            closeResults(results);
+        }
+    }
+
+    public List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        maybeConnect();
+        OutputChanges changes = outputChanges.get();
+        // Find every unspent output of the transactions we need to look at, a few dozen transactions per query.
+        Set<Sha256Hash> hashSet = new LinkedHashSet<Sha256Hash>();
+        for (TransactionOutPoint outPoint : outPoints) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex());
+            if (changes == null || !(changes.added.containsKey(key) || changes.removed.containsKey(key)))
+                hashSet.add(outPoint.getHash());
+        }
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(hashSet);
+        Map<StoredTransactionOutPoint, StoredTransactionOutput> found =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        ResultSet results = null;
+        try {
+            PreparedStatement s = prepare(SELECT_OPEN_OUTPUTS_SQL);
+            for (int start = 0; start < hashes.size(); start += OPEN_OUTPUTS_QUERY_HASHES) {
+                // Parameters left over in the last query repeat a hash, so every query uses the same statement.
+                for (int i = 0; i < OPEN_OUTPUTS_QUERY_HASHES; i++)
+                    s.setBytes(i + 1, hashes.get(start + i < hashes.size() ? start + i : start).getBytes());
+                results = s.executeQuery();
+                while (results.next()) {
+                    Sha256Hash hash = new Sha256Hash(results.getBytes(1));
+                    // index is actually an unsigned int
+                    long index = results.getInt(2) & 0xFFFFFFFFL;
+                    BigInteger value = new BigInteger(results.getBytes(4));
+                    // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+                    found.put(new StoredTransactionOutPoint(hash, index),
+                            new StoredTransactionOutput(hash, index, value, results.getInt(3), true, results.getBytes(5)));
+                }
+                results.close();
+                results = null;
+            }
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } finally {
+            closeResults(results);
+        }
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex());
+            if (changes != null && changes.added.containsKey(key))
+                outputs.add(changes.added.get(key));
+            else if (changes != null && changes.removed.containsKey(key))
+                outputs.add(null);
+            else
+                outputs.add(found.get(key));
         }
+        return outputs;
     }
 
     public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        OutputChanges changes = outputChanges.get();
+        if (changes != null) {
+            // Written with the rest of the batch. If it was removed earlier in the batch, the row is deleted first.
+            changes.added.put(new StoredTransactionOutPoint(out), out);
+            return;
+        }
         try {
-            s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, scriptBytes) " +
-                    "VALUES (?, ?, ?, ?, ?)");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setBytes(4, out.getValue().toByteArray());
-            s.setBytes(5, out.getScriptBytes());
+            PreparedStatement s = prepare(INSERT_OPEN_OUTPUT_SQL);
+            setOpenOutput(s, out);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             if (e.getErrorCode() != 23505)
                 throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException(e); }
         }
     }
 
+    private static void setOpenOutput(PreparedStatement s, StoredTransactionOutput out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int)out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setBytes(4, out.getValue().toByteArray());
+        s.setBytes(5, out.getScriptBytes());
+    }
+
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
+        OutputChanges changes = outputChanges.get();
+        if (changes != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+            // If it was added in this batch, the database never needs to see it. Otherwise a missing row is reported
+            // when the batch is written.
+            if (changes.added.remove(outPoint) == null)
+                changes.removed.put(outPoint, out);
+            return;
+        }
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM openOutputs WHERE hash = ? AND index = ?");
+            PreparedStatement s = prepare(DELETE_OPEN_OUTPUT_SQL);
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)out.getIndex());
-            s.executeUpdate();
-            int updateCount = s.getUpdateCount();
-            s.close();
-            if (updateCount == 0)
+            if (s.executeUpdate() == 0)
                 throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
     }
 
+    // Writes the outputs removed and added during a batch, using one JDBC batch for each.
+    private void writeOutputChanges(OutputChanges changes) throws SQLException, BlockStoreException {
+        if (!changes.removed.isEmpty()) {
+            PreparedStatement s = prepare(DELETE_OPEN_OUTPUT_SQL);
+            for (StoredTransactionOutput out : changes.removed.values()) {
+                s.setBytes(1, out.getHash().getBytes());
+                s.setInt(2, (int)out.getIndex());
+                s.addBatch();
+            }
+            for (int count : s.executeBatch())
+                if (count == 0)
+                    throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+        }
+        if (!changes.added.isEmpty()) {
+            PreparedStatement s = prepare(INSERT_OPEN_OUTPUT_SQL);
+            for (StoredTransactionOutput out : changes.added.values()) {
+                setOpenOutput(s, out);
+                s.addBatch();
+            }
+            try {
+                s.executeBatch();
+            } catch (BatchUpdateException e) {
+                if (e.getErrorCode() != 23505)
+                    throw e;
+                // An output that is already there (duplicate coinbases before BIP30) is ignored, as outside a batch.
+                for (StoredTransactionOutput out : changes.added.values()) {
+                    try {
+                        setOpenOutput(s, out);
+                        s.executeUpdate();
+                    } catch (SQLException e2) {
+                        if (e2.getErrorCode() != 23505)
+                            throw e2;
+                    }
+                }
+            }
+        }
+    }
+
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
         try {
@@ -713,20 +841,29 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        if (outputChanges.get() == null)
+            outputChanges.set(new OutputChanges());
     }
 
     public void commitDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        OutputChanges changes = outputChanges.get();
+        outputChanges.remove();
         try {
+            if (changes != null)
+                writeOutputChanges(changes);
             conn.get().commit();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
+            rollback();
             throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            rollback();
+            throw e;
         }
     }
 
-    public void abortDatabaseBatchWrite() throws BlockStoreException {
-        maybeConnect();
+    private void rollback() throws BlockStoreException {
         try {
             conn.get().rollback();
             conn.get().setAutoCommit(true);
@@ -735,26 +872,46 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        maybeConnect();
+        outputChanges.remove();
+        rollback();
+    }
+
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        OutputChanges changes = outputChanges.get();
+        int removed = 0;
+        if (changes != null) {
+            for (int i = 0; i < numOutputs; i++) {
+                StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, i);
+                if (changes.added.containsKey(outPoint))
+                    return true;
+                if (changes.removed.containsKey(outPoint))
+                    removed++;
+            }
+        }
+        ResultSet results = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT COUNT(*) FROM openOutputs WHERE hash = ?");
+            PreparedStatement s = prepare(COUNT_OPEN_OUTPUTS_SQL);
             s.setBytes(1, hash.getBytes());
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 throw new BlockStoreException("Got no results from a COUNT(*) query");
             }
             int count = results.getInt(1);
-            return count != 0;
+            return count > removed;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+            closeResults(results);
         }
     }
+
+    private static void closeResults(@Nullable ResultSet results) throws BlockStoreException {
+        if (results != null)
+            try {
+                results.close();
+            } catch (SQLException e) { throw new BlockStoreException("Failed to close ResultSet"); }
+    }
 }
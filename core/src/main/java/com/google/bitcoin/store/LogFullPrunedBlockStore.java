@@ -0,0 +1,963 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} which keeps everything in a log of records, appended to memory mapped segment
+ * files in a directory, with the index from hashes and outpoints to records kept in memory. It needs no database.</p>
+ *
+ * <p>Records written between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} are followed
+ * by a commit record, and the segments are forced to disk before the commit returns. When the store is opened the log
+ * is read from the start to rebuild the index, and anything after the last commit record, as left by a crash or by a
+ * batch that was never committed, is thrown away. Writes outside a batch are committed one by one.</p>
+ *
+ * <p>Records that are replaced or removed stay in the log until it is compacted, which copies the records still in use
+ * to the end of the log and deletes the segments they came from. Once more than half of the log is unused each commit
+ * compacts the oldest couple of segments, so no single commit does much of it. {@link #compact()} does the whole log at
+ * once. Segments that can't be deleted yet, as happens on Windows while a file is still mapped, are deleted when the
+ * store is next opened.</p>
+ *
+ * <p>Only one batch can be open at a time, and its changes are visible to every thread before it's committed. The index
+ * takes memory proportional to the number of unspent outputs.</p>
+ */
+public class LogFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(LogFullPrunedBlockStore.class);
+
+    /** The default size of a segment file. Records bigger than this get a segment of their own. */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    // Each record is a four byte length, a type byte and the payload (together as long as the length says) and then a
+    // CRC32 of the type and payload. A segment that was filled up ends with a SEGMENT_END record. Only the last segment
+    // ends with a length of zero instead, because the kernel may write the pages of a mapped file out in any order: a
+    // zero length anywhere else means records before a commit never reached the disk.
+    static final byte BLOCK = 1;            // hash, wasUndoable, StoredBlock compact with PoW hash
+    static final byte UNDOABLE_BLOCK = 2;   // hash, height, 0 and TransactionOutputChanges or 1 and transactions
+    static final byte ADD_OUTPUT = 3;       // hash, index, StoredTransactionOutput
+    static final byte REMOVE_OUTPUT = 4;    // hash, index
+    static final byte CHAIN_HEAD = 5;       // hash
+    static final byte VERIFIED_CHAIN_HEAD = 6;  // hash
+    static final byte COMMIT = 7;           // nothing
+    static final byte SEGMENT_END = 8;      // nothing
+    private static final int RECORD_OVERHEAD = 4 + 4;  // The length and the CRC32.
+    private static final byte[] SEGMENT_END_RECORD = record(SEGMENT_END, new byte[0]);
+    private static final byte[] ZEROS = new byte[4096];
+    // How many of the oldest segments a commit compacts when more than half of the log is unused.
+    private static final int SEGMENTS_COMPACTED_PER_COMMIT = 2;
+    // Lists the segments that were retired but couldn't be deleted, as four byte numbers.
+    private static final String RETIRED_FILE_NAME = "retired";
+
+    protected NetworkParameters params;
+    protected ReentrantLock lock = Threading.lock("LogFullPrunedBlockStore");
+
+    private final File directory;
+    private final int fullStoreDepth;
+    private final int segmentSize;
+    private RandomAccessFile lockFile;
+    private FileLock fileLock;
+
+    private static class Segment {
+        final int number;
+        final File file;
+        final RandomAccessFile randomAccessFile;
+        final MappedByteBuffer buffer;
+
+        Segment(int number, File file, RandomAccessFile randomAccessFile, MappedByteBuffer buffer) {
+            this.number = number;
+            this.file = file;
+            this.randomAccessFile = randomAccessFile;
+            this.buffer = buffer;
+        }
+    }
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    // The number for the next new segment. Numbers aren't reused while a retired segment may still have them.
+    private int nextSegment;
+    private Segment writeSegment;
+    private int writeOffset;
+    // The first segment written to since the last commit, which is forced to disk along with those after it.
+    private int firstUncommittedSegment;
+
+    // The index, from keys to the position of the newest record for them. A position is the segment number in the top
+    // 32 bits and the offset in the bottom 32.
+    private final Map<Sha256Hash, Long> blocks = new HashMap<Sha256Hash, Long>();
+    private final Map<Sha256Hash, Long> undoableBlocks = new HashMap<Sha256Hash, Long>();
+    private final Map<StoredTransactionOutPoint, Long> outputs = new HashMap<StoredTransactionOutPoint, Long>();
+    private StoredBlock chainHead, verifiedChainHead;
+
+    // Bytes in the log, and how many of them belong to records which are no longer needed.
+    private long logBytes, unusedBytes;
+
+    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
+            return size() > 2050;  // Slightly more than the difficulty transition period.
+        }
+    };
+
+    // While a batch is open: where it started, what it changed in the index, and the state to go back to on abort.
+    private boolean inBatch;
+    private int batchSegment, batchOffset;
+    private long batchLogBytes, batchUnusedBytes;
+    private StoredBlock batchChainHead, batchVerifiedChainHead;
+    private final List<IndexChange<?>> batchChanges = new ArrayList<IndexChange<?>>();
+
+    private static class IndexChange<K> {
+        final Map<K, Long> map;
+        final K key;
+        @Nullable final Long oldPosition;
+
+        IndexChange(Map<K, Long> map, K key, @Nullable Long oldPosition) {
+            this.map = map;
+            this.key = key;
+            this.oldPosition = oldPosition;
+        }
+
+        void undo() {
+            if (oldPosition == null)
+                map.remove(key);
+            else
+                map.put(key, oldPosition);
+        }
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if needed.
+     * @param params A copy of the NetworkParameters used
+     * @param directory The directory holding the segment files
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @throws BlockStoreException if the store fails to open for any reason
+     */
+    public LogFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth)
+            throws BlockStoreException {
+        this(params, directory, fullStoreDepth, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if needed, with segment files of the given size.
+     * @param params A copy of the NetworkParameters used
+     * @param directory The directory holding the segment files
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @param segmentSize The size of each segment file in bytes
+     * @throws BlockStoreException if the store fails to open for any reason
+     */
+    public LogFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth, int segmentSize)
+            throws BlockStoreException {
+        checkArgument(segmentSize >= 1024);
+        this.params = checkNotNull(params);
+        this.directory = checkNotNull(directory);
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        this.segmentSize = segmentSize;
+        lock.lock();
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create directory " + directory);
+            lockFile = new RandomAccessFile(new File(directory, "lock"), "rw");
+            fileLock = lockFile.getChannel().tryLock();
+            if (fileLock == null)
+                throw new BlockStoreException("Store directory is already locked by another process");
+            Set<Integer> retired = readRetired();
+            for (int number : retired)
+                nextSegment = Math.max(nextSegment, number + 1);
+            boolean retiredRemain = false;
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    if (!name.matches("[0-9]{8}\\.log"))
+                        continue;
+                    int number = Integer.parseInt(name.substring(0, 8));
+                    nextSegment = Math.max(nextSegment, number + 1);
+                    if (!retired.contains(number))
+                        openSegment(number, file);
+                    else if (!file.delete())
+                        retiredRemain = true;
+                }
+            }
+            if (!retired.isEmpty() && !retiredRemain)
+                clearRetired();
+            if (segments.isEmpty()) {
+                newSegment(segmentSize);
+                createNewStore();
+            } else {
+                replay();
+            }
+        } catch (IOException e) {
+            closeFiles();
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            closeFiles();
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void createNewStore() throws BlockStoreException {
+        try {
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+            beginDatabaseBatchWrite();
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            commitDatabaseBatchWrite();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private Segment openSegment(int number, File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length());
+            Segment segment = new Segment(number, file, randomAccessFile, buffer);
+            segments.put(number, segment);
+            return segment;
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    private void newSegment(int size) throws IOException {
+        int number = nextSegment++;
+        File file = new File(directory, String.format("%08d.log", number));
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(size);  // Filled with zeros, so it starts out with an end marker.
+        randomAccessFile.close();
+        writeSegment = openSegment(number, file);
+        writeOffset = 0;
+    }
+
+    // Takes a segment out of the log and deletes its file. Windows won't delete a file while it's mapped, and the
+    // mapping only goes away when the buffer is garbage collected, so a segment that can't be deleted yet is listed as
+    // retired instead. The next open deletes it rather than reading it.
+    private void retireSegment(Segment segment) throws IOException {
+        segments.remove(segment.number);
+        segment.randomAccessFile.close();
+        if (deleteFile(segment.file))
+            return;
+        log.info("Could not delete {} yet, it will be deleted when the store is next opened", segment.file);
+        RandomAccessFile retired = new RandomAccessFile(new File(directory, RETIRED_FILE_NAME), "rw");
+        try {
+            retired.seek(retired.length() & ~3L);
+            retired.writeInt(segment.number);
+            retired.getFD().sync();
+        } finally {
+            retired.close();
+        }
+    }
+
+    @VisibleForTesting boolean deleteFile(File file) {
+        return file.delete();
+    }
+
+    private Set<Integer> readRetired() throws IOException {
+        Set<Integer> numbers = new HashSet<Integer>();
+        File file = new File(directory, RETIRED_FILE_NAME);
+        if (!file.exists())
+            return numbers;
+        RandomAccessFile retired = new RandomAccessFile(file, "r");
+        try {
+            // A number that was only partly written belongs to a retirement that never finished.
+            for (long i = 0; i + 4 <= retired.length(); i += 4)
+                numbers.add(retired.readInt());
+        } finally {
+            retired.close();
+        }
+        return numbers;
+    }
+
+    private void clearRetired() throws IOException {
+        RandomAccessFile retired = new RandomAccessFile(new File(directory, RETIRED_FILE_NAME), "rw");
+        try {
+            retired.setLength(0);
+            retired.getFD().sync();
+        } finally {
+            retired.close();
+        }
+    }
+
+    private static long position(int segment, int offset) {
+        return ((long) segment << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    // Returns a buffer positioned at the start of the type byte of the record at the given position, with its limit at
+    // the end of the payload.
+    private ByteBuffer record(long position) {
+        Segment segment = segments.get((int) (position >>> 32));
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = (int) position;
+        int length = buffer.getInt(offset);
+        buffer.limit(offset + 4 + length);
+        buffer.position(offset + 4);
+        return buffer;
+    }
+
+    private int recordSize(long position) {
+        Segment segment = segments.get((int) (position >>> 32));
+        return segment.buffer.getInt((int) position) + RECORD_OVERHEAD;
+    }
+
+    // Zeros the records starting at the given offset, so that the segment ends there.
+    private static void wipe(ByteBuffer buffer, int offset) {
+        buffer = buffer.duplicate();
+        while (offset + 4 <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length == 0)
+                break;
+            int end = length < 0 || offset + length + RECORD_OVERHEAD > buffer.capacity() ?
+                    buffer.capacity() : offset + length + RECORD_OVERHEAD;
+            buffer.position(offset);
+            while (buffer.position() < end)
+                buffer.put(ZEROS, 0, Math.min(ZEROS.length, end - buffer.position()));
+            offset = end;
+        }
+    }
+
+    private static byte[] outPoint(Sha256Hash hash, long index) {
+        ByteBuffer buffer = ByteBuffer.allocate(32 + 8);
+        buffer.put(hash.getBytes());
+        buffer.putLong(index);
+        return buffer.array();
+    }
+
+    private static byte[] payload(ByteBuffer record) {
+        byte[] bytes = new byte[record.remaining()];
+        record.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] record(byte type, byte[] payload) {
+        byte[] record = new byte[1 + payload.length + RECORD_OVERHEAD];
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.putInt(payload.length + 1);
+        buffer.put(type);
+        buffer.put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(record, 4, payload.length + 1);
+        buffer.putInt((int) crc.getValue());
+        return record;
+    }
+
+    // Appends a record and returns its position.
+    private long append(byte type, byte[] payload) throws BlockStoreException {
+        return appendRecord(record(type, payload));
+    }
+
+    private long appendRecord(byte[] record) throws BlockStoreException {
+        // Always leave room to end the segment properly.
+        if (writeOffset + record.length + SEGMENT_END_RECORD.length > writeSegment.buffer.capacity())
+            roll(Math.max(segmentSize, record.length + SEGMENT_END_RECORD.length));
+        return write(record);
+    }
+
+    // Ends the segment being written and starts a new one of the given size.
+    private void roll(int size) throws BlockStoreException {
+        write(SEGMENT_END_RECORD);
+        unusedBytes += SEGMENT_END_RECORD.length;
+        try {
+            newSegment(size);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private long write(byte[] record) {
+        ByteBuffer buffer = writeSegment.buffer.duplicate();
+        buffer.position(writeOffset);
+        buffer.put(record);
+        long position = position(writeSegment.number, writeOffset);
+        writeOffset += record.length;
+        logBytes += record.length;
+        return position;
+    }
+
+    private <K> void index(Map<K, Long> map, K key, @Nullable Long position) {
+        Long oldPosition = position == null ? map.remove(key) : map.put(key, position);
+        if (oldPosition != null)
+            unusedBytes += recordSize(oldPosition);
+        if (inBatch)
+            batchChanges.add(new IndexChange<K>(map, key, oldPosition));
+    }
+
+    // Writes a commit record if we're not in a batch, so that single writes are durable.
+    private void maybeCommit() throws BlockStoreException {
+        if (!inBatch)
+            commit();
+    }
+
+    private void commit() throws BlockStoreException {
+        append(COMMIT, new byte[0]);
+        unusedBytes += 1 + RECORD_OVERHEAD;
+        for (Segment segment : segments.tailMap(firstUncommittedSegment).values())
+            segment.buffer.force();
+        firstUncommittedSegment = writeSegment.number;
+    }
+
+    /**
+     * Reads the log from the start to rebuild the index, and discards anything after the last commit record.
+     */
+    private void replay() throws IOException, BlockStoreException {
+        List<Long> pending = new ArrayList<Long>();
+        Sha256Hash chainHeadHash = null, verifiedChainHeadHash = null;
+        Segment lastCommitSegment = segments.firstEntry().getValue();
+        int lastCommitOffset = 0;
+        CRC32 crc = new CRC32();
+        long bytes = 0;
+        Segment lastSegment = segments.lastEntry().getValue();
+        replay:
+        for (Segment segment : segments.values()) {
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int offset = 0;
+            boolean ended = false;
+            while (!ended && offset + 4 <= buffer.capacity()) {
+                int length = buffer.getInt(offset);
+                if (length == 0)
+                    break;
+                if (length < 0 || offset + length + RECORD_OVERHEAD > buffer.capacity())
+                    break replay;
+                byte[] data = new byte[length];
+                buffer.position(offset + 4);
+                buffer.get(data);
+                crc.reset();
+                crc.update(data);
+                if (buffer.getInt() != (int) crc.getValue())
+                    break replay;
+                long position = position(segment.number, offset);
+                offset += length + RECORD_OVERHEAD;
+                bytes += length + RECORD_OVERHEAD;
+                if (data[0] == COMMIT) {
+                    unusedBytes += 1 + RECORD_OVERHEAD;
+                    for (long p : pending) {
+                        ByteBuffer record = record(p);
+                        byte type = record.get();
+                        if (type == SEGMENT_END) {
+                            unusedBytes += recordSize(p);
+                            continue;
+                        }
+                        byte[] hashBytes = new byte[32];
+                        record.get(hashBytes);
+                        Sha256Hash hash = new Sha256Hash(hashBytes);
+                        if (type == BLOCK) {
+                            index(blocks, hash, p);
+                        } else if (type == UNDOABLE_BLOCK) {
+                            index(undoableBlocks, hash, p);
+                        } else if (type == ADD_OUTPUT) {
+                            index(outputs, new StoredTransactionOutPoint(hash, record.getLong()), p);
+                        } else if (type == REMOVE_OUTPUT) {
+                            // The output may already have been removed by a compaction that didn't finish.
+                            index(outputs, new StoredTransactionOutPoint(hash, record.getLong()), null);
+                            unusedBytes += recordSize(p);
+                        } else if (type == CHAIN_HEAD) {
+                            chainHeadHash = hash;
+                            unusedBytes += recordSize(p);
+                        } else if (type == VERIFIED_CHAIN_HEAD) {
+                            verifiedChainHeadHash = hash;
+                            unusedBytes += recordSize(p);
+                        } else {
+                            throw new BlockStoreException("Unknown record type " + type);
+                        }
+                    }
+                    pending.clear();
+                    lastCommitSegment = segment;
+                    lastCommitOffset = offset;
+                    logBytes = bytes;
+                } else {
+                    pending.add(position);
+                    ended = data[0] == SEGMENT_END;
+                }
+            }
+            // Records of a later segment reached the disk while some of this one didn't.
+            if (!ended && segment != lastSegment)
+                break replay;
+        }
+        // Throw away what wasn't committed, so that new records follow the last commit.
+        writeSegment = lastCommitSegment;
+        writeOffset = lastCommitOffset;
+        firstUncommittedSegment = writeSegment.number;
+        for (Segment segment : new ArrayList<Segment>(segments.tailMap(lastCommitSegment.number, false).values()))
+            retireSegment(segment);
+        if (bytes != logBytes)
+            log.warn("Discarding {} bytes after the last commit", bytes - logBytes);
+        wipe(writeSegment.buffer, writeOffset);
+        writeSegment.buffer.force();
+        if (chainHeadHash == null || verifiedChainHeadHash == null)
+            throw new BlockStoreException("Corrupt log block store - no chain head pointer");
+        chainHead = get(chainHeadHash);
+        verifiedChainHead = get(verifiedChainHeadHash);
+        if (chainHead == null || verifiedChainHead == null)
+            throw new BlockStoreException("Corrupt log block store - head block not found");
+        // Pruning undoable blocks isn't logged, so do it again.
+        removeUndoableBlocksWhereHeightIsLessThan(verifiedChainHead.getHeight() - fullStoreDepth);
+        log.info("Read {} blocks and {} unspent outputs from {} bytes of log", blocks.size(), outputs.size(), logBytes);
+    }
+
+    private void putBlock(StoredBlock block, boolean wasUndoable) throws BlockStoreException {
+        Sha256Hash hash = block.getHeader().getHash();
+        ByteBuffer payload = ByteBuffer.allocate(32 + 1 + StoredBlock.COMPACT_SERIALIZED_SIZE_WITH_POW_HASH);
+        payload.put(hash.getBytes());
+        payload.put((byte) (wasUndoable ? 1 : 0));
+        block.serializeCompactWithPoWHash(payload);
+        index(blocks, hash, append(BLOCK, payload.array()));
+        blockCache.put(hash, block);
+    }
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        lock.lock();
+        try {
+            putBlock(block, false);
+            maybeCommit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            bos.write(hash.getBytes());
+            Utils.uint32ToByteStreamLE(storedBlock.getHeight(), bos);
+            if (undoableBlock.getTxOutChanges() != null) {
+                bos.write(0);
+                undoableBlock.getTxOutChanges().serializeToStream(bos);
+            } else {
+                bos.write(1);
+                Utils.uint32ToByteStreamLE(undoableBlock.getTransactions().size(), bos);
+                for (Transaction tx : undoableBlock.getTransactions())
+                    tx.bitcoinSerialize(bos);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        lock.lock();
+        try {
+            index(undoableBlocks, hash, append(UNDOABLE_BLOCK, bos.toByteArray()));
+            putBlock(storedBlock, true);
+            maybeCommit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    private StoredBlock get(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
+        lock.lock();
+        try {
+            StoredBlock cached = wasUndoableOnly ? null : blockCache.get(hash);
+            if (cached != null)
+                return cached;
+            Long position = blocks.get(hash);
+            if (position == null)
+                return null;
+            ByteBuffer record = record(position);
+            record.position(record.position() + 1 + 32);
+            boolean wasUndoable = record.get() == 1;
+            if (wasUndoableOnly && !wasUndoable)
+                return null;
+            StoredBlock block = StoredBlock.deserializeCompactWithPoWHash(params, record);
+            blockCache.put(hash, block);
+            return block;
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, false);
+    }
+
+    @Nullable
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, true);
+    }
+
+    @Nullable
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        byte[] data;
+        lock.lock();
+        try {
+            Long position = undoableBlocks.get(hash);
+            if (position == null)
+                return null;
+            ByteBuffer record = record(position);
+            record.position(record.position() + 1 + 32 + 4);
+            data = payload(record);
+        } finally {
+            lock.unlock();
+        }
+        try {
+            if (data[0] == 0)
+                return new StoredUndoableBlock(hash, new TransactionOutputChanges(new ByteArrayInputStream(data, 1, data.length - 1)));
+            int numTxn = (int) Utils.readUint32(data, 1);
+            int offset = 5;
+            List<Transaction> transactionList = new LinkedList<Transaction>();
+            for (int i = 0; i < numTxn; i++) {
+                Transaction tx = new Transaction(params, data, offset);
+                transactionList.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, transactionList);
+        } catch (ProtocolException e) {
+            // Corrupted log.
+            throw new BlockStoreException(e);
+        } catch (IOException e) {
+            // Corrupted log.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        lock.lock();
+        try {
+            return chainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.lock();
+        try {
+            this.chainHead = chainHead;
+            append(CHAIN_HEAD, chainHead.getHeader().getHash().getBytes());
+            unusedBytes += 1 + 32 + RECORD_OVERHEAD;
+            maybeCommit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        lock.lock();
+        try {
+            return verifiedChainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        lock.lock();
+        try {
+            this.verifiedChainHead = chainHead;
+            append(VERIFIED_CHAIN_HEAD, chainHead.getHeader().getHash().getBytes());
+            unusedBytes += 1 + 32 + RECORD_OVERHEAD;
+            if (this.chainHead.getHeight() < chainHead.getHeight())
+                setChainHead(chainHead);
+            removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
+            maybeCommit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeUndoableBlocksWhereHeightIsLessThan(int height) {
+        List<Sha256Hash> remove = new ArrayList<Sha256Hash>();
+        for (Map.Entry<Sha256Hash, Long> entry : undoableBlocks.entrySet()) {
+            ByteBuffer record = record(entry.getValue());
+            int blockHeight = Integer.reverseBytes(record.getInt(record.position() + 1 + 32));
+            if (blockHeight <= height)
+                remove.add(entry.getKey());
+        }
+        for (Sha256Hash hash : remove)
+            index(undoableBlocks, hash, null);
+    }
+
+    @Nullable
+    public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        lock.lock();
+        try {
+            Long position = outputs.get(new StoredTransactionOutPoint(hash, index));
+            if (position == null)
+                return null;
+            ByteBuffer record = record(position);
+            record.position(record.position() + 1 + 32 + 8);
+            return new StoredTransactionOutput(new ByteArrayInputStream(payload(record)));
+        } catch (IOException e) {
+            // Corrupted log.
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>(outPoints.size());
+        lock.lock();
+        try {
+            for (TransactionOutPoint outPoint : outPoints)
+                outputs.add(getTransactionOutput(outPoint.getHash(), outPoint.getIndex()));
+        } finally {
+            lock.unlock();
+        }
+        return outputs;
+    }
+
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            bos.write(outPoint(out.getHash(), out.getIndex()));
+            out.serializeToStream(bos);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        lock.lock();
+        try {
+            index(outputs, new StoredTransactionOutPoint(out), append(ADD_OUTPUT, bos.toByteArray()));
+            maybeCommit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        lock.lock();
+        try {
+            if (!outputs.containsKey(outPoint))
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from LogFullPrunedBlockStore that it didn't have!");
+            append(REMOVE_OUTPUT, outPoint(out.getHash(), out.getIndex()));
+            unusedBytes += 1 + 32 + 8 + RECORD_OVERHEAD;
+            index(outputs, outPoint, null);
+            maybeCommit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        lock.lock();
+        try {
+            for (int i = 0; i < numOutputs; i++)
+                if (outputs.containsKey(new StoredTransactionOutPoint(hash, i)))
+                    return true;
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (inBatch)
+                return;
+            inBatch = true;
+            batchSegment = writeSegment.number;
+            batchOffset = writeOffset;
+            batchLogBytes = logBytes;
+            batchUnusedBytes = unusedBytes;
+            batchChainHead = chainHead;
+            batchVerifiedChainHead = verifiedChainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (!inBatch)
+                return;
+            commit();
+            inBatch = false;
+            batchChanges.clear();
+            if (unusedBytes > logBytes / 2 && unusedBytes > segmentSize) {
+                List<Segment> oldest = new ArrayList<Segment>();
+                for (Segment segment : segments.values()) {
+                    if (segment == writeSegment || oldest.size() == SEGMENTS_COMPACTED_PER_COMMIT)
+                        break;
+                    oldest.add(segment);
+                }
+                if (!oldest.isEmpty())
+                    compact(oldest);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (!inBatch)
+                return;
+            inBatch = false;
+            for (int i = batchChanges.size() - 1; i >= 0; i--)
+                batchChanges.get(i).undo();
+            batchChanges.clear();
+            blockCache.clear();
+            chainHead = batchChainHead;
+            verifiedChainHead = batchVerifiedChainHead;
+            logBytes = batchLogBytes;
+            unusedBytes = batchUnusedBytes;
+            // Wipe the records the batch wrote, so they can't be read back after the next commit.
+            for (Segment segment : new ArrayList<Segment>(segments.tailMap(batchSegment, false).values()))
+                retireSegment(segment);
+            writeSegment = segments.get(batchSegment);
+            writeOffset = batchOffset;
+            wipe(writeSegment.buffer, writeOffset);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies the records still in use to new segments and deletes the old ones. This is done a bit at a time while
+     * committing when more than half of the log is unused, so it only needs to be called to reclaim space immediately.
+     */
+    public void compact() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkState(!inBatch, "Cannot compact during a batch");
+            long before = logBytes;
+            List<Segment> old = new ArrayList<Segment>(segments.values());
+            roll(segmentSize);
+            compact(old);
+            log.info("Compacted log from {} to {} bytes", before, logBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Copies the records still in use out of the given segments to the end of the log, and then retires the segments.
+    // The segments must be the oldest ones, oldest first.
+    private void compact(List<Segment> old) throws BlockStoreException {
+        long[] oldBytes = new long[old.size()];
+        // If we crash before the old segments are gone, reading them and then the copies gives the same result.
+        for (int i = 0; i < old.size(); i++)
+            oldBytes[i] = copyLiveRecords(old.get(i));
+        append(CHAIN_HEAD, chainHead.getHeader().getHash().getBytes());
+        append(VERIFIED_CHAIN_HEAD, verifiedChainHead.getHeader().getHash().getBytes());
+        unusedBytes += 2 * (1 + 32 + RECORD_OVERHEAD);
+        commit();
+        // All of the old segments is unused now, including the records that were copied. They have to go oldest first,
+        // and if one can't, it and the newer ones have to stay: dead outputs aren't copied, so if a segment with an
+        // ADD_OUTPUT record was read without the later one with its REMOVE_OUTPUT record, the output would come back.
+        for (int i = 0; i < old.size(); i++) {
+            Segment segment = old.get(i);
+            try {
+                retireSegment(segment);
+            } catch (IOException e) {
+                // Still in the log, so the next compaction tries again.
+                segments.put(segment.number, segment);
+                log.warn("Could not retire " + segment.file + ", keeping it and the segments after it", e);
+                return;
+            }
+            logBytes -= oldBytes[i];
+            unusedBytes -= oldBytes[i];
+        }
+    }
+
+    // Appends copies of the records in the segment that the index still points to, and returns the segment's length.
+    private long copyLiveRecords(Segment segment) throws BlockStoreException {
+        int offset = 0;
+        while (offset + 4 <= segment.buffer.capacity()) {
+            int length = segment.buffer.getInt(offset);
+            if (length == 0)
+                break;
+            long position = position(segment.number, offset);
+            offset += length + RECORD_OVERHEAD;
+            ByteBuffer record = record(position);
+            byte type = record.get();
+            if (type == SEGMENT_END)
+                break;
+            if (type != BLOCK && type != UNDOABLE_BLOCK && type != ADD_OUTPUT)
+                continue;
+            byte[] hashBytes = new byte[32];
+            record.get(hashBytes);
+            Sha256Hash hash = new Sha256Hash(hashBytes);
+            if (type == BLOCK)
+                copyIfLive(blocks, hash, position);
+            else if (type == UNDOABLE_BLOCK)
+                copyIfLive(undoableBlocks, hash, position);
+            else
+                copyIfLive(outputs, new StoredTransactionOutPoint(hash, record.getLong()), position);
+        }
+        return offset;
+    }
+
+    private <K> void copyIfLive(Map<K, Long> map, K key, long position) throws BlockStoreException {
+        Long current = map.get(key);
+        if (current == null || current != position)
+            return;
+        ByteBuffer buffer = record(position);
+        byte[] record = new byte[buffer.remaining() + RECORD_OVERHEAD];
+        buffer.position(buffer.position() - 4);
+        buffer.limit(buffer.limit() + 4);
+        buffer.get(record);
+        index(map, key, appendRecord(record));
+    }
+
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            if (inBatch)
+                abortDatabaseBatchWrite();
+            closeFiles();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeFiles() throws BlockStoreException {
+        try {
+            for (Segment segment : segments.values())
+                segment.randomAccessFile.close();
+            segments.clear();
+            if (fileLock != null)
+                fileLock.release();
+            if (lockFile != null)
+                lockFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+}
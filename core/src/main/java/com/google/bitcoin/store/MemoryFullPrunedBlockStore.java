@@ -332,6 +332,13 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         return transactionOutputMap.get(new StoredTransactionOutPoint(hash, index));
     }
 
+    public synchronized List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints)
+            outputs.add(getTransactionOutput(outPoint.getHash(), outPoint.getIndex()));
+        return outputs;
+    }
+
     public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
         transactionOutputMap.put(new StoredTransactionOutPoint(out), out);
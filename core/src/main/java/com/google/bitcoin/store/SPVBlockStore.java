@@ -18,6 +18,8 @@ package com.google.bitcoin.store;
 
 import com.google.bitcoin.core.*;
 import com.google.bitcoin.utils.Threading;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,32 +31,47 @@ import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
-import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
- * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
+ * <p>An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
- * but as they are virtually unheard of this is not a significant risk.
+ * but as they are virtually unheard of this is not a significant risk.</p>
+ *
+ * <p>The ring is followed in the same file by a hash index, so headers that aren't in the in-memory cache are found
+ * without scanning the ring. The index is rebuilt from the ring when the file is opened if it's missing, which is the
+ * case for files written by older versions, or if the store wasn't closed properly.</p>
+ *
+ * <p>The store has a read/write lock. {@link #get(Sha256Hash)} only needs the read lock, so wallet, network and block
+ * chain threads can all look up headers at the same time, and {@link #getChainHead()} usually needs no lock at all.</p>
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
 
     /** The default number of headers that will be stored in the ring buffer. */
     public static final int DEFAULT_NUM_HEADERS = 5000;
+    /** The largest number of headers a store can be created with. */
+    public static final int MAX_NUM_HEADERS = 10000000;
+    /** Magic bytes of stores whose records hold only the header, chain work and height. */
     public static final String HEADER_MAGIC = "SPVB";
+    /** Magic bytes of stores whose records also hold the proof of work hash of the header. Used for new stores. */
+    public static final String POW_HASH_HEADER_MAGIC = "SPVP";
 
     protected volatile MappedByteBuffer buffer;
     protected int numHeaders;
+    // Whether records end with the PoW hash of the header, which is the case unless the file predates that format.
+    protected boolean storesPoWHash;
+    protected int recordSize;
+    // The number of slots in the hash index, a power of two at least twice the number of headers.
+    protected int indexSlots;
     protected NetworkParameters params;
 
-    protected ReentrantLock lock = Threading.lock("SPVBlockStore");
+    // Held for writing while the ring, the index or the chain head change, and for reading while they're read.
+    protected ReentrantReadWriteLock lock = Threading.readWriteLock("SPVBlockStore");
 
     // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
     // faulted in. Unfortunately, in theory practice and theory are the same. In practice they aren't.
@@ -63,45 +80,82 @@ public class SPVBlockStore implements BlockStore {
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
     // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
+    // They are safe to use from several threads at once.
+    protected Cache<Sha256Hash, StoredBlock> blockCache = CacheBuilder.newBuilder()
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .build();
     // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
     // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
     // must efficiently respond.
     //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
+    // We don't care about the value in this cache. It is always notFoundMarker.
     protected static final Object notFoundMarker = new Object();
-    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    protected Cache<Sha256Hash, Object> notFoundCache = CacheBuilder.newBuilder()
+            .maximumSize(100)  // This was chosen arbitrarily.
+            .build();
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
 
     /**
-     * Creates and initializes an SPV block store. Will create the given file if it's missing. This operation
-     * will block on disk.
+     * Creates and initializes an SPV block store. Will create the given file if it's missing, holding
+     * {@link #DEFAULT_NUM_HEADERS} headers, or else opens it with however many headers it was created with. This
+     * operation will block on disk.
      */
     public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
-        checkNotNull(file);
         this.params = checkNotNull(params);
+        open(checkNotNull(file), DEFAULT_NUM_HEADERS, false);
+    }
+
+    /**
+     * Creates and initializes an SPV block store that holds the given number of headers. Will create the given file
+     * if it's missing. If the file holds a different number of headers it is resized in place, keeping the most recent
+     * ones, which can take a while for large stores. A resize that is interrupted leaves a file that won't open, and
+     * has to be deleted. This operation will block on disk.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int numHeaders) throws BlockStoreException {
+        checkArgument(numHeaders > 0 && numHeaders <= MAX_NUM_HEADERS, "Number of headers out of range: %s", numHeaders);
+        this.params = checkNotNull(params);
+        open(checkNotNull(file), numHeaders, true);
+    }
+
+    private void open(File file, int requestedNumHeaders, boolean resize) throws BlockStoreException {
         try {
-            this.numHeaders = DEFAULT_NUM_HEADERS;
+            this.numHeaders = requestedNumHeaders;
             boolean exists = file.exists();
             // Set up the backing file.
             randomAccessFile = new RandomAccessFile(file, "rw");
+            // Check the header bytes to ensure we don't try to open some random file, and find out the record format.
+            storesPoWHash = true;
+            if (exists) {
+                byte[] header = new byte[4];
+                randomAccessFile.readFully(header);
+                String magic = new String(header, "US-ASCII");
+                if (magic.equals(HEADER_MAGIC))
+                    storesPoWHash = false;
+                else if (!magic.equals(POW_HASH_HEADER_MAGIC))
+                    throw new BlockStoreException("Header bytes do not equal " + POW_HASH_HEADER_MAGIC);
+                randomAccessFile.seek(NUM_HEADERS_OFFSET);
+                try {
+                    this.numHeaders = checkStoredNumHeaders(randomAccessFile.readInt());
+                } catch (BlockStoreException e) {
+                    // Headers can be downloaded again, so start over rather than map a region of a nonsensical size.
+                    log.warn("{}, recreating SPV block chain file {}", e.getMessage(), file);
+                    randomAccessFile.setLength(0);
+                    exists = false;
+                    storesPoWHash = true;
+                }
+            }
+            recordSize = storesPoWHash ? RECORD_SIZE_WITH_POW_HASH : RECORD_SIZE;
+            indexSlots = getIndexSlots(numHeaders);
             long fileSize = getFileSize();
             if (!exists) {
                 log.info("Creating new SPV block chain file " + file);
                 randomAccessFile.setLength(fileSize);
+            } else if (randomAccessFile.length() == getRingEnd()) {
+                // Written before the hash index existed, so make room for it. It's built below.
+                log.info("Adding a hash index to SPV block chain file " + file);
+                randomAccessFile.setLength(fileSize);
             } else if (randomAccessFile.length() != fileSize) {
                 throw new BlockStoreException("File size on disk does not match expected size: " +
                         randomAccessFile.length() + " vs " + fileSize);
@@ -118,17 +172,14 @@ public class SPVBlockStore implements BlockStore {
             // always be correct. Once we establish the mmap the underlying file and channel can go away. Note that
             // the details of mmapping vary between platforms.
             buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
-
-            // Check or initialize the header bytes to ensure we don't try to open some random file.
-            byte[] header;
-            if (exists) {
-                header = new byte[4];
-                buffer.get(header);
-                if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
-                    throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
-            } else {
+            if (!exists)
                 initNewStore(params);
-            }
+            else if (resize && requestedNumHeaders != numHeaders)
+                resize(channel, requestedNumHeaders);
+            else if (buffer.getInt(INDEX_STATE_OFFSET) != INDEX_CLEAN)
+                rebuildIndex();
+            // Until close() marks it clean again, a crash may leave the index out of step with the ring.
+            buffer.putInt(INDEX_STATE_OFFSET, INDEX_DIRTY);
         } catch (Exception e) {
             try {
                 if (randomAccessFile != null) randomAccessFile.close();
@@ -139,16 +190,26 @@ public class SPVBlockStore implements BlockStore {
         }
     }
 
+    private static int checkStoredNumHeaders(int storedNumHeaders) throws BlockStoreException {
+        // Files from before the number of headers was recorded always hold the default number.
+        if (storedNumHeaders == 0)
+            return DEFAULT_NUM_HEADERS;
+        if (storedNumHeaders < 0 || storedNumHeaders > MAX_NUM_HEADERS)
+            throw new BlockStoreException("Corrupt number of headers in SPV block store: " + storedNumHeaders);
+        return storedNumHeaders;
+    }
+
     private void initNewStore(NetworkParameters params) throws Exception {
         byte[] header;
-        header = HEADER_MAGIC.getBytes("US-ASCII");
+        header = POW_HASH_HEADER_MAGIC.getBytes("US-ASCII");
         buffer.put(header);
+        buffer.putInt(NUM_HEADERS_OFFSET, numHeaders);
         // Insert the genesis block.
-        lock.lock();
+        lock.writeLock().lock();
         try {
             setRingCursor(buffer, FILE_PROLOGUE_BYTES);
         } finally {
-            lock.unlock();
+            lock.writeLock().unlock();
         }
         Block genesis = params.getGenesisBlock().cloneAsHeader();
         StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
@@ -156,30 +217,126 @@ public class SPVBlockStore implements BlockStore {
         setChainHead(storedGenesis);
     }
 
+    /**
+     * Changes the number of headers the store holds, keeping the most recent ones. The records are rearranged so the
+     * oldest kept one comes first, which makes the new ring start out in order, and the index is rebuilt.
+     */
+    private void resize(FileChannel channel, int newNumHeaders) throws IOException {
+        log.info("Resizing SPV block store from {} to {} headers", numHeaders, newNumHeaders);
+        final int oldNumHeaders = numHeaders;
+        // Spoil the header bytes until we're done, so an interrupted resize can't be mistaken for a good store.
+        byte[] magic = new byte[4];
+        buffer.position(0);
+        buffer.get(magic);
+        buffer.putInt(0, 0);
+        buffer.force();
+
+        // Rotate the ring so its oldest record is the first one.
+        int next = (getRingCursor(buffer) - FILE_PROLOGUE_BYTES) / recordSize;
+        int count;
+        if (next == oldNumHeaders || !isEmptyRecord(buffer, next)) {
+            // Wrapped, so the next record to be overwritten is the oldest.
+            next %= oldNumHeaders;
+            reverseRecords(0, next);
+            reverseRecords(next, oldNumHeaders);
+            reverseRecords(0, oldNumHeaders);
+            count = oldNumHeaders;
+        } else {
+            count = next;
+        }
+        // Keep the newest records that fit, moved down to the start.
+        final int kept = Math.min(count, newNumHeaders);
+        byte[] record = new byte[recordSize];
+        for (int i = 0; i < kept; i++) {
+            buffer.position(getRecordOffset(count - kept + i));
+            buffer.get(record);
+            buffer.position(getRecordOffset(i));
+            buffer.put(record);
+        }
+
+        numHeaders = newNumHeaders;
+        indexSlots = getIndexSlots(newNumHeaders);
+        final int fileSize = getFileSize();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        if (randomAccessFile.length() > fileSize)
+            randomAccessFile.setLength(fileSize);
+        // Clear the rest of the ring. The index after it is cleared when it's rebuilt.
+        byte[] zeros = new byte[recordSize];
+        for (int i = kept; i < newNumHeaders; i++) {
+            buffer.position(getRecordOffset(i));
+            buffer.put(zeros);
+        }
+        setRingCursor(buffer, getRecordOffset(kept));
+        buffer.putInt(NUM_HEADERS_OFFSET, newNumHeaders);
+        rebuildIndex();
+        buffer.force();
+        buffer.position(0);
+        buffer.put(magic);
+    }
+
+    // Reverses the order of the records from start (inclusive) to end (exclusive).
+    private void reverseRecords(int start, int end) {
+        byte[] a = new byte[recordSize], b = new byte[recordSize];
+        for (int i = start, j = end - 1; i < j; i++, j--) {
+            buffer.position(getRecordOffset(i));
+            buffer.get(a);
+            buffer.position(getRecordOffset(j));
+            buffer.get(b);
+            buffer.position(getRecordOffset(j));
+            buffer.put(a);
+            buffer.position(getRecordOffset(i));
+            buffer.put(b);
+        }
+    }
+
+    /** Returns the number of headers the store holds. */
+    public int getNumHeaders() {
+        return numHeaders;
+    }
+
     /** Returns the size in bytes of the file that is used to store the chain with the current parameters. */
     public int getFileSize() {
-        return RECORD_SIZE * numHeaders + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
+        return getRingEnd() + indexSlots * 4;
+    }
+
+    private static int getIndexSlots(int numHeaders) {
+        return Integer.highestOneBit(numHeaders * 2 - 1) << 1;
+    }
+
+    // The offset of the end of the ring, which is where the hash index starts.
+    private int getRingEnd() {
+        return recordSize * numHeaders + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
     }
 
     public void put(StoredBlock block) throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        Sha256Hash hash = block.getHeader().getHash();
+        lock.writeLock().lock();
         try {
             int cursor = getRingCursor(buffer);
-            if (cursor == getFileSize()) {
+            if (cursor == getRingEnd()) {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
+            int record = (cursor - FILE_PROLOGUE_BYTES) / recordSize;
+            // The record we're about to overwrite must not be found through the index any more.
+            if (!isEmptyRecord(buffer, record))
+                unindexRecord(buffer, record);
             buffer.position(cursor);
-            Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
+            notFoundCache.invalidate(hash);
             buffer.put(hash.getBytes());
-            block.serializeCompact(buffer);
+            if (storesPoWHash)
+                block.serializeCompactWithPoWHash(buffer);
+            else
+                block.serializeCompact(buffer);
             setRingCursor(buffer, buffer.position());
+            indexRecord(buffer, record);
             blockCache.put(hash, block);
-        } finally { lock.unlock(); }
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     @Nullable
@@ -187,57 +344,55 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
-        try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
-                return null;
-
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, notFoundMarker);
+        StoredBlock cacheHit = blockCache.getIfPresent(hash);
+        if (cacheHit != null)
+            return cacheHit;
+        if (notFoundCache.getIfPresent(hash) != null)
             return null;
+
+        // Misses are cached holding the read lock, so one can't be cached just after put() cleared it.
+        lock.readLock().lock();
+        try {
+            StoredBlock storedBlock = read(buffer, hash);
+            if (storedBlock == null)
+                notFoundCache.put(hash, notFoundMarker);
+            else
+                blockCache.put(hash, storedBlock);
+            return storedBlock;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
-        } finally { lock.unlock(); }
+        } finally { lock.readLock().unlock(); }
     }
 
-    protected StoredBlock lastChainHead = null;
+    // Looks the block up in the index and reads it, without changing the position of the shared buffer.
+    @Nullable
+    private StoredBlock read(MappedByteBuffer buffer, Sha256Hash hash) throws ProtocolException {
+        int slot = findSlot(buffer, hash.getBytes(), hash.hashCode());
+        if (slot < 0)
+            return null;
+        ByteBuffer view = buffer.duplicate();
+        view.position(getRecordOffset(buffer.getInt(getIndexSlotOffset(slot)) - 1) + 32);
+        return storesPoWHash ?
+                StoredBlock.deserializeCompactWithPoWHash(params, view) :
+                StoredBlock.deserializeCompact(params, view);
+    }
+
+    protected volatile StoredBlock lastChainHead = null;
 
     public StoredBlock getChainHead() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        StoredBlock chainHead = lastChainHead;
+        if (chainHead != null)
+            return chainHead;
+        lock.writeLock().lock();
         try {
             if (lastChainHead == null) {
                 byte[] headHash = new byte[32];
-                buffer.position(8);
-                buffer.get(headHash);
+                ByteBuffer view = buffer.duplicate();
+                view.position(8);
+                view.get(headHash);
                 Sha256Hash hash = new Sha256Hash(headHash);
                 StoredBlock block = get(hash);
                 if (block == null)
@@ -245,24 +400,25 @@ public class SPVBlockStore implements BlockStore {
                 lastChainHead = block;
             }
             return lastChainHead;
-        } finally { lock.unlock(); }
+        } finally { lock.writeLock().unlock(); }
     }
 
     public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        lock.writeLock().lock();
         try {
             lastChainHead = chainHead;
             byte[] headHash = chainHead.getHeader().getHash().getBytes();
             buffer.position(8);
             buffer.put(headHash);
-        } finally { lock.unlock(); }
+        } finally { lock.writeLock().unlock(); }
     }
 
     public void close() throws BlockStoreException {
         try {
+            buffer.putInt(INDEX_STATE_OFFSET, INDEX_CLEAN);
             buffer.force();
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
             randomAccessFile.close();
@@ -272,18 +428,142 @@ public class SPVBlockStore implements BlockStore {
     }
 
     protected static final int RECORD_SIZE = 32 /* hash */ + StoredBlock.COMPACT_SERIALIZED_SIZE;
+    protected static final int RECORD_SIZE_WITH_POW_HASH = 32 /* hash */ + StoredBlock.COMPACT_SERIALIZED_SIZE_WITH_POW_HASH;
 
     // File format:
-    //   4 header bytes = "SPVB"
+    //   4 header bytes = "SPVP", or "SPVB" for files without PoW hashes
     //   4 cursor bytes, which indicate the offset from the first kb where the next block header should be written.
     //   32 bytes for the hash of the chain head
+    //   4 bytes index state, INDEX_CLEAN if the store was closed properly since the index was last changed
+    //   4 bytes number of headers the ring holds, or 0 for DEFAULT_NUM_HEADERS in files from before it was recorded
     //
-    // For each header (128 bytes)
+    // For each header (160 bytes, or 128 bytes for "SPVB" files)
     //   32 bytes hash of the header
     //   12 bytes of chain work
     //    4 bytes of height
     //   80 bytes of block header data
+    //   32 bytes proof of work hash of the header (only in "SPVP" files)
+    //
+    // Then the hash index, an open addressing table of 4 byte slots. Each is 0 if empty, or else one plus the number
+    // of the record holding a hash. A hash is put in the first free slot at or after the one picked by its last four
+    // bytes (which is also what Sha256Hash.hashCode() returns). Older files end with the ring.
     protected static final int FILE_PROLOGUE_BYTES = 1024;
+    protected static final int INDEX_STATE_OFFSET = 40;
+    protected static final int INDEX_CLEAN = 0x494e4458;  // "INDX"
+    protected static final int INDEX_DIRTY = 0;
+    protected static final int NUM_HEADERS_OFFSET = 44;
+
+    private int getRecordOffset(int record) {
+        return FILE_PROLOGUE_BYTES + record * recordSize;
+    }
+
+    private int getIndexSlotOffset(int slot) {
+        return getRingEnd() + slot * 4;
+    }
+
+    // The last four bytes of the record's hash, which pick its home slot in the index.
+    private int getRecordKey(ByteBuffer buffer, int record) {
+        return buffer.getInt(getRecordOffset(record) + 28);
+    }
+
+    private boolean isEmptyRecord(ByteBuffer buffer, int record) {
+        int offset = getRecordOffset(record);
+        for (int i = 0; i < 32; i += 4) {
+            if (buffer.getInt(offset + i) != 0)
+                return false;
+        }
+        return true;
+    }
+
+    private boolean recordHashEquals(ByteBuffer buffer, int record, byte[] hash) {
+        int offset = getRecordOffset(record);
+        // Compare from the end, where hashes of blocks with real proof of work start to differ.
+        for (int i = 31; i >= 0; i--) {
+            if (buffer.get(offset + i) != hash[i])
+                return false;
+        }
+        return true;
+    }
+
+    private boolean recordHashesEqual(ByteBuffer buffer, int a, int b) {
+        int offsetA = getRecordOffset(a), offsetB = getRecordOffset(b);
+        for (int i = 28; i >= 0; i -= 4) {
+            if (buffer.getInt(offsetA + i) != buffer.getInt(offsetB + i))
+                return false;
+        }
+        return true;
+    }
+
+    /** Returns the index slot that points to the record holding the given hash, or -1 if there is none. */
+    private int findSlot(ByteBuffer buffer, byte[] hash, int key) {
+        final int mask = indexSlots - 1;
+        for (int slot = key & mask; ; slot = (slot + 1) & mask) {
+            int entry = buffer.getInt(getIndexSlotOffset(slot));
+            if (entry == 0)
+                return -1;
+            if (recordHashEquals(buffer, entry - 1, hash))
+                return slot;
+        }
+    }
+
+    /** Points the index at the given record, replacing any entry for an older record with the same hash. */
+    private void indexRecord(ByteBuffer buffer, int record) {
+        final int mask = indexSlots - 1;
+        for (int slot = getRecordKey(buffer, record) & mask; ; slot = (slot + 1) & mask) {
+            int offset = getIndexSlotOffset(slot);
+            int entry = buffer.getInt(offset);
+            if (entry == 0 || recordHashesEqual(buffer, entry - 1, record)) {
+                buffer.putInt(offset, record + 1);
+                return;
+            }
+        }
+    }
+
+    /** Removes the index entry for the given record, if there is one, while the record still holds its hash. */
+    private void unindexRecord(ByteBuffer buffer, int record) {
+        final int mask = indexSlots - 1;
+        int hole = getRecordKey(buffer, record) & mask;
+        while (true) {
+            int entry = buffer.getInt(getIndexSlotOffset(hole));
+            if (entry == 0)
+                return;  // Not indexed, because a newer record has the same hash.
+            if (entry == record + 1)
+                break;
+            hole = (hole + 1) & mask;
+        }
+        // Shift back any later entries of the run that would no longer be found with a hole in front of them.
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & mask;
+            int entry = buffer.getInt(getIndexSlotOffset(slot));
+            if (entry == 0)
+                break;
+            int home = getRecordKey(buffer, entry - 1) & mask;
+            boolean reachable = hole <= slot ? (hole < home && home <= slot) : (hole < home || home <= slot);
+            if (!reachable) {
+                buffer.putInt(getIndexSlotOffset(hole), entry);
+                hole = slot;
+            }
+        }
+        buffer.putInt(getIndexSlotOffset(hole), 0);
+    }
+
+    /** Rebuilds the hash index from the records in the ring, oldest first so that newer duplicates win. */
+    protected void rebuildIndex() {
+        final MappedByteBuffer buffer = this.buffer;
+        lock.writeLock().lock();
+        try {
+            log.info("Rebuilding the hash index of the SPV block store");
+            for (int slot = 0; slot < indexSlots; slot++)
+                buffer.putInt(getIndexSlotOffset(slot), 0);
+            int oldest = ((getRingCursor(buffer) - FILE_PROLOGUE_BYTES) / recordSize) % numHeaders;
+            for (int i = 0; i < numHeaders; i++) {
+                int record = (oldest + i) % numHeaders;
+                if (!isEmptyRecord(buffer, record))
+                    indexRecord(buffer, record);
+            }
+        } finally { lock.writeLock().unlock(); }
+    }
 
     /** Returns the offset from the file start where the latest block should be written (end of prev block). */
     private int getRingCursor(ByteBuffer buffer) {
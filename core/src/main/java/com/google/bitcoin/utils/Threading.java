@@ -25,6 +25,7 @@ import javax.annotation.Nullable;
 import java.lang.ref.WeakReference;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -118,6 +119,10 @@ public class Threading {
         return factory.newReentrantLock(name);
     }
 
+    public static ReentrantReadWriteLock readWriteLock(String name) {
+        return factory.newReentrantReadWriteLock(name);
+    }
+
     public static void warnOnLockCycles() {
         setPolicy(CycleDetectingLockFactory.Policies.WARN);
     }
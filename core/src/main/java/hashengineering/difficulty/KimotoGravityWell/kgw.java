@@ -8,7 +8,11 @@ import java.lang.UnsatisfiedLinkError;
  *  - init  - before the loop
  *  - loop2 - for each iteration of the loop
  *  - close - at the end of the loop and it returns the calculated difficulty
+ *
+ * @deprecated the block chains now use {@link com.google.bitcoin.core.KimotoGravityWell}, which needs no native
+ * library, is safe to use from several threads and gives the same results.
  */
+@Deprecated
 public class kgw {
     private static boolean native_library_loaded = false;
     static {
@@ -1,10 +1,8 @@
 package org.sexcoin;
 
 import com.google.bitcoin.core.*;
-import com.google.bitcoin.core.NetworkParameters.KGWParams;
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
-import hashengineering.difficulty.KimotoGravityWell.kgw;
 
 import java.math.BigInteger;
 import java.util.Arrays;
@@ -23,6 +21,9 @@ import static com.google.common.base.Preconditions.checkState;
  * </p>
  */
 public class SexcoinBlockChain extends BlockChain {
+    // Caches the recent blocks the gravity well looks at. Only used with the chain lock held.
+    private final KGWCalculator kgwCalculator;
+
     /**
      * <p>Constructs a BlockChain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
      * one from scratch, or you can deserialize a saved wallet from disk using {@link Wallet#loadFromFile(java.io.File)}
@@ -34,6 +35,7 @@ public class SexcoinBlockChain extends BlockChain {
      */
     public SexcoinBlockChain(NetworkParameters params, Wallet wallet, BlockStore blockStore) throws BlockStoreException {
     	super(params,wallet,blockStore);
+    	kgwCalculator = new KGWCalculator(params);
     	log.info("SexcoinBlockChain (1) class creating...");
     }
 
@@ -43,6 +45,7 @@ public class SexcoinBlockChain extends BlockChain {
      */
     public SexcoinBlockChain(NetworkParameters params, BlockStore blockStore) throws BlockStoreException {
     	super(params, blockStore);
+    	kgwCalculator = new KGWCalculator(params);
     	log.info("SexcoinBlockChain (2) class creating...");
     }
 
@@ -52,6 +55,7 @@ public class SexcoinBlockChain extends BlockChain {
     public SexcoinBlockChain(NetworkParameters params, List<BlockChainListener> wallets,
                       BlockStore blockStore) throws BlockStoreException {
         super(params, wallets, blockStore);
+        kgwCalculator = new KGWCalculator(params);
         log.info("SexcoinBlockChain (3) class creating...");
     }
 
@@ -89,10 +93,7 @@ public class SexcoinBlockChain extends BlockChain {
     			return;
     		}
     		
-    		if(!kgw.isNativeLibraryLoaded())
-    		    newDifficulty = gravityWellDiff(storedPrev, nextBlock, params.getKgwParams(), prev.getTimeSeconds());
-    		else
-    		    newDifficulty = gravityWellDiff_N(storedPrev, nextBlock, params.getKgwParams());
+    		newDifficulty = gravityWell(storedPrev);
         } else {
     	
 	        // Is this supposed to be a difficulty transition point?
@@ -114,22 +115,14 @@ public class SexcoinBlockChain extends BlockChain {
 	            return;
 	        }
 	
-	        // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-	        // two weeks after the initial block chain download.
+	        // We need to find a block far back in the chain.
 	        long now = System.currentTimeMillis();
 	        StoredBlock cursor = blockStore.get(prev.getHash());
 	
 	        int goBack = params.getRetargetBlockCount(cursor,currentHeight);
 	        log.info("Current Height: " + currentHeight);
 	        log.info("goBack = " + goBack);
-	        for (int i = 0; i < goBack; i++) {
-	            if (cursor == null) {
-	                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-	                throw new VerificationException(
-	                        "Difficulty transition point but we did not find a way back to the genesis block.");
-	            }
-	            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
-	        }
+	        cursor = getRetargetBlock(cursor, goBack);
 	
 	        long elapsed = System.currentTimeMillis() - now;
 	        if (elapsed > 50)
@@ -200,168 +193,16 @@ public class SexcoinBlockChain extends BlockChain {
        
     }
 
-    private BigInteger gravityWellDiff(StoredBlock storedPrev, Block nextBlock, KGWParams kgwParams, long prevTime) throws BlockStoreException {
-
-    	if ((storedPrev == null) ||  (storedPrev.getHeight() == 0) ||  (storedPrev.getHeight() < kgwParams.pastBlocksMin)) 
-        {
-        	log.info("KGW short circuit...returning proof of work limit...");
-        	return params.getProofOfWorkLimit();
-       	}
-    	long PastBlocksMass = 0;
-    	long PastRateActualSeconds		= 0;
-    	long PastRateTargetSeconds		= 0;
-    	double PastRateAdjustmentRatio	= 1.0;
-    	BigInteger PastDifficultyAverage = BigInteger.valueOf(0);
-    	BigInteger PastDifficultyAveragePrev = PastDifficultyAverage;
-    	double EventHorizonDeviation;
-    	double	EventHorizonDeviationFast;
-    	double	EventHorizonDeviationSlow;
-    	
-    	StoredBlock blockReading = storedPrev;
-    	Block blockLastSolved = blockReading.getHeader();
-    	long latestBlockTime = blockLastSolved.getTimeSeconds();
-    	
-    	for (int i = 1; ((blockReading != null) && (blockReading.getHeight() > 0)); i++) {
-    		if ((kgwParams.pastBlocksMax > 0) && (i > kgwParams.pastBlocksMax )) { break; }
-    		PastBlocksMass++;
-    		Block b = blockReading.getHeader();
-    		if (i == 1)	{ PastDifficultyAverage = Utils.decodeCompactBits(b.getDifficultyTarget()); }
-    		else { 
-    			PastDifficultyAverage = Utils.decodeCompactBits(b.getDifficultyTarget());
-    			PastDifficultyAverage = PastDifficultyAverage.subtract(PastDifficultyAveragePrev);
-    			PastDifficultyAverage = PastDifficultyAverage.divide(BigInteger.valueOf(i)); 
-    			PastDifficultyAverage = PastDifficultyAverage.add(PastDifficultyAveragePrev); 
-    		}
-    		PastDifficultyAveragePrev = PastDifficultyAverage;
-    		
-    		if( latestBlockTime < b.getTimeSeconds()){
-    			if(blockReading.getHeight() > SexcoinParams.getFixKgwTimewarpHeight())
-    				latestBlockTime = b.getTimeSeconds();
-    		}
-    		
-    		
-    		PastRateActualSeconds			= storedPrev.getHeader().getTimeSeconds() - b.getTimeSeconds();
-    		PastRateTargetSeconds			= kgwParams.blocksTargetSpacing * PastBlocksMass;
-    		PastRateAdjustmentRatio			= 1.0;
-    		
-    		if(storedPrev.getHeight() > SexcoinParams.getFixKgwTimewarpHeight()){
-    			if(PastRateActualSeconds < 1) { PastRateActualSeconds = 1; }
-    		}else{
-    			if(PastRateActualSeconds < 0) { PastRateActualSeconds = 0; }
-    		}
-    		
-    		if (PastRateActualSeconds < 0) { PastRateActualSeconds = 0; }
-    		if (PastRateActualSeconds != 0 && PastRateTargetSeconds != 0) {
-    			PastRateAdjustmentRatio		= (double)PastRateTargetSeconds / (double)PastRateActualSeconds;
-    		}
-    		EventHorizonDeviation = 1 + (0.7084 * Math.pow( (((double)PastBlocksMass)/(double)144), -1.228));
-    		EventHorizonDeviationFast		= EventHorizonDeviation;
-    		EventHorizonDeviationSlow		= 1 / EventHorizonDeviation;
-    		
-    		if (PastBlocksMass >= kgwParams.pastBlocksMin) {
-    			if ((PastRateAdjustmentRatio <= EventHorizonDeviationSlow) || (PastRateAdjustmentRatio >= EventHorizonDeviationFast)) 
-    			{ /*assert(BlockReading);*/ break; }
-    		}
-    		//if (BlockReading->pprev == NULL) { assert(BlockReading); break; }
-    		blockReading = blockReading.getPrev(blockStore);
-    		if (blockReading == null) { /*assert(BlockReading);*/ break; }
-       	}
-    	
-    	log.info("KGW: PastBlocksMass = " + PastBlocksMass);
-    	log.info("KGW: PastDifficultyAverage = " + PastDifficultyAverage);
-    	log.info("KGW: PastRateActualSeconds = " + PastRateActualSeconds);
-    	log.info("KGW: PastRateTargetSeconds = " + PastRateTargetSeconds);
-    	log.info("KGW: ");
-    	BigInteger bnNew = PastDifficultyAverage;
-    	log.info("Average   : " + bnNew.toString(16));
-    	if ((PastRateActualSeconds != 0) && (PastRateTargetSeconds != 0)) {
-    		bnNew = bnNew.multiply(BigInteger.valueOf(PastRateActualSeconds));
-    		log.info("Multiplied: " + bnNew.toString(16));
-    		bnNew = bnNew.divide(BigInteger.valueOf(PastRateTargetSeconds));
-    		log.info("Divided   : " + bnNew.toString(16));
-    	}
-	
-    	log.info("Difficulty Retarget - Gravity Well");
-    	log.info("PastRateAdjustmentRatio = "+PastRateAdjustmentRatio);
-    	log.info("PastRateAdjustmentRatio = "+PastRateActualSeconds + "/"+PastRateTargetSeconds);
-    	log.info("Before: " + storedPrev.getHeader().getDifficultyTargetAsInteger().toString(16));
-    	log.info("After: " + bnNew.toString(16));
-
-    	BigInteger bnPOW = params.getProofOfWorkLimit();
-    	if (bnNew.compareTo(bnPOW) == 1) { 
-    		log.info("KGW - Proof of work limit hit..."); 
-    		bnNew = bnPOW; 
-    	}
-//    	
-//        /// debug print
-//        printf("Difficulty Retarget - Gravity Well\n");
-//        printf("PastRateAdjustmentRatio = %g\n", PastRateAdjustmentRatio);
-//        printf("Before: %08x  %s\n", BlockLastSolved->nBits, CBigNum().SetCompact(BlockLastSolved->nBits).getuint256().ToString().c_str());
-//        printf("After:  %08x  %s\n", bnNew.GetCompact(), bnNew.getuint256().ToString().c_str());
-//    	
-//    	return bnNew.GetCompact();
-    	
-    	return bnNew;
-    }
-
-
-private BigInteger  gravityWellDiff_N(StoredBlock storedPrev, Block nextBlock, KGWParams kgwParams)  throws BlockStoreException, VerificationException {
-        StoredBlock         BlockLastSolved             = storedPrev;
-        StoredBlock         BlockReading                = storedPrev;
-        Block               BlockCreating               = nextBlock;
-        BlockCreating				= BlockCreating;
-        long				PastBlocksMass				= 0;
-        long				PastRateActualSeconds		= 0;
-        long				PastRateTargetSeconds		= 0;
-        double				PastRateAdjustmentRatio		= 1f;
-        BigInteger			PastDifficultyAverage = BigInteger.valueOf(0);
-        BigInteger			PastDifficultyAveragePrev = BigInteger.valueOf(0);;
-        double				EventHorizonDeviation;
-        double				EventHorizonDeviationFast;
-        double				EventHorizonDeviationSlow;
-
-        long start = System.currentTimeMillis();
-        long endLoop = 0;
-
-        if (BlockLastSolved == null || BlockLastSolved.getHeight() == 0 || (long)BlockLastSolved.getHeight() < kgwParams.pastBlocksMin)
-        { return params.getProofOfWorkLimit(); }
-
-        int i = 0;
-        log.info("KGW: i = {}; height = {}; hash {} ", i, BlockReading.getHeight(), BlockReading.getHeader().getHashAsString());
-
-        long totalCalcTime = 0;
-        long totalReadtime = 0;
-        long totalBigIntTime = 0;
-
-        int init_result = kgw.KimotoGravityWell_init(kgwParams.blocksTargetSpacing, kgwParams.pastBlocksMin, kgwParams.pastBlocksMax, 144d);
-
-
-        for (i = 1; BlockReading != null && BlockReading.getHeight() > 0; i++) {
-            int result = kgw.KimotoGravityWell_loop2(i, BlockReading.getHeader().getDifficultyTarget(),BlockReading.getHeight(), BlockReading.getHeader().getTimeSeconds(), BlockLastSolved.getHeader().getTimeSeconds());
-            BigInteger diff = BlockReading.getHeader().getDifficultyTargetAsInteger();
-            if(i == 1)
-                log.info("KGW-N2: difficulty of i=1: " + BlockReading.getHeader().getDifficultyTarget() +"->"+ diff.toString(16));
-            if(result == 1)
-                break;
-            if(result == 2)
-                return null;
-            
-            long calcTime = System.currentTimeMillis();
-            StoredBlock BlockReadingPrev = blockStore.get(BlockReading.getHeader().getPrevBlockHash());
-            if (BlockReadingPrev == null)
-            {
-                //If this is triggered, then we are using checkpoints and haven't downloaded enough blocks to verify the difficulty.
-                //assert(BlockReading);     //from C++ code
-                //break;                    //from C++ code
-                return null;
-            }
-            BlockReading = BlockReadingPrev;
+    private BigInteger gravityWell(StoredBlock storedPrev) throws BlockStoreException {
+        // After the time warp fix the past blocks are always taken to span at least one second.
+        long minActualSeconds = storedPrev.getHeight() > SexcoinParams.getFixKgwTimewarpHeight() ? 1 : 0;
+        BigInteger bnNew = kgwCalculator.getNextTarget(storedPrev, blockStore, minActualSeconds);
+        BigInteger bnPOW = params.getProofOfWorkLimit();
+        if (bnNew.compareTo(bnPOW) == 1) {
+            log.info("KGW - Proof of work limit hit...");
+            bnNew = bnPOW;
         }
-
-        BigInteger newDifficulty = new BigInteger(kgw.KimotoGravityWell_close());
-
-        return newDifficulty;
+        return bnNew;
     }
 
 }
-
@@ -1,16 +1,15 @@
 package org.sexcoin;
 
 import com.google.bitcoin.core.*;
+import com.google.bitcoin.crypto.ScryptHeaderHasher;
 //import com.google.bitcoin.core.NetworkParameters.KGWParams;
 import com.google.bitcoin.script.Script;
 import com.google.bitcoin.script.ScriptOpCodes;
-import com.lambdaworks.crypto.SCrypt;
 
 import org.spongycastle.util.encoders.Hex;
 
 import java.io.ByteArrayOutputStream;
 import java.math.BigInteger;
-import java.security.GeneralSecurityException;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -170,12 +169,7 @@ public class SexcoinParams extends NetworkParameters {
 
 	    /** Gets the hash of the given block for the purpose of checking its PoW */
 	    public Sha256Hash calculateBlockPoWHash(Block b) {
-	        byte[] blockHeader = b.cloneAsHeader().bitcoinSerialize();
-	        try {
-	            return new Sha256Hash(Utils.reverseBytes(SCrypt.scrypt(blockHeader, blockHeader, 1024, 1, 1, 32)));
-	        } catch (GeneralSecurityException e) {
-	            throw new RuntimeException(e);
-	        }
+	        return ScryptHeaderHasher.hash(b);
 	    }
 
 	    static {
@@ -278,4 +278,35 @@ public class BitcoinSerializerTest {
         }
     }
 
+    private static byte[] bytes(WireFrame frame) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer buff : frame.getBuffers()) {
+            byte[] bytes = new byte[buff.remaining()];
+            buff.get(bytes);
+            out.write(bytes, 0, bytes.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testFrames() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        Transaction tx = (Transaction) bs.deserialize(ByteBuffer.wrap(txMessage));
+        WireFrame frame = bs.serializeToFrame(tx);
+        assertArrayEquals(txMessage, bytes(frame));
+        assertEquals(txMessage.length, frame.getLength());
+        // Reading the buffers doesn't use the frame up, and the transaction keeps it until it changes.
+        assertArrayEquals(txMessage, bytes(frame));
+        assertSame(frame, bs.serializeToFrame(tx));
+        tx.setLockTime(1);
+        WireFrame changed = bs.serializeToFrame(tx);
+        assertNotSame(frame, changed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bs.serialize(tx, out);
+        assertArrayEquals(out.toByteArray(), bytes(changed));
+
+        // Other messages are serialized again every time.
+        AddressMessage addr = (AddressMessage) bs.deserialize(ByteBuffer.wrap(addrMessage));
+        assertNotSame(bs.serializeToFrame(addr), bs.serializeToFrame(addr));
+    }
 }
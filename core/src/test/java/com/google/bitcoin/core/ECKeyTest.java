@@ -114,6 +114,64 @@ public class ECKeyTest {
         assertTrue(key.verify(Sha256Hash.ZERO_HASH.getBytes(), sig));
     }
 
+    @Test
+    public void verifyRepeatedly() throws Exception {
+        // The decoded public key is kept between verifications, which must not change the answers.
+        ECKey key = new ECKey();
+        ECKey uncompressed = new ECKey(new BigInteger(1, key.getPrivKeyBytes()), null, false);
+        for (int i = 0; i < 3; i++) {
+            Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) i });
+            ECKey.ECDSASignature sig = key.sign(hash);
+            for (ECKey k : new ECKey[] { key, uncompressed }) {
+                assertTrue(k.verify(hash, sig));
+                assertTrue(k.verify(hash.getBytes(), sig.encodeToDER()));
+                assertTrue(ECKey.verify(hash.getBytes(), sig, k.getPubKey()));
+                assertFalse(k.verify(Sha256Hash.ZERO_HASH, sig));
+                assertFalse(ECKey.verify(Sha256Hash.ZERO_HASH.getBytes(), sig, k.getPubKey()));
+            }
+            assertFalse(new ECKey().verify(hash, sig));
+        }
+    }
+
+    @Test
+    public void bouncyCastleVerify() throws Exception {
+        ECKey.BOUNCY_CASTLE_VERIFY = true;
+        try {
+            ECKey key = new ECKey();
+            Sha256Hash hash = Sha256Hash.create(new byte[] { 42 });
+            ECKey.ECDSASignature sig = key.sign(hash);
+            assertTrue(key.verify(hash, sig));
+            assertTrue(ECKey.verify(hash.getBytes(), sig, key.getPubKey()));
+            assertFalse(key.verify(Sha256Hash.ZERO_HASH, sig));
+            assertFalse(new ECKey().verify(hash, sig));
+        } finally {
+            ECKey.BOUNCY_CASTLE_VERIFY = false;
+        }
+    }
+
+    @Test
+    public void batchVerify() throws Exception {
+        ECKey key1 = new ECKey();
+        ECKey key2 = new ECKey();
+        List<ECKey.SignatureCheck> checks = Lists.newArrayList();
+        for (int i = 0; i < 3; i++) {
+            Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) i });
+            checks.add(new ECKey.SignatureCheck(hash.getBytes(), key1.sign(hash), key1.getPubKey()));
+            checks.add(new ECKey.SignatureCheck(hash.getBytes(), key2.sign(hash), key1.getPubKey()));
+            checks.add(new ECKey.SignatureCheck(hash.getBytes(), key2.sign(hash), key2.getPubKey()));
+        }
+        // A public key that can't be decoded.
+        checks.add(new ECKey.SignatureCheck(new byte[32], key1.sign(Sha256Hash.ZERO_HASH), new byte[] { 2, 0 }));
+        boolean[] results = ECKey.verify(checks);
+        assertEquals(checks.size(), results.length);
+        for (int i = 0; i < results.length; i++) {
+            ECKey.SignatureCheck check = checks.get(i);
+            assertEquals(i < 9 && i % 3 != 1, results[i]);
+            if (i < 9)
+                assertEquals(ECKey.verify(check.data, check.signature, check.pub), results[i]);
+        }
+    }
+
     @Test
     public void testASN1Roundtrip() throws Exception {
         byte[] privkeyASN1 = Hex.decode(
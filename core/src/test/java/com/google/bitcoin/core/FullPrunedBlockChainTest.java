@@ -20,10 +20,13 @@ package com.google.bitcoin.core;
 import com.google.bitcoin.params.MainNetParams;
 import com.google.bitcoin.params.UnitTestParams;
 import com.google.bitcoin.script.Script;
+import com.google.bitcoin.store.CachingFullPrunedBlockStore;
 import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.store.LogFullPrunedBlockStore;
 import com.google.bitcoin.store.MemoryFullPrunedBlockStore;
 import com.google.bitcoin.utils.BlockFileLoader;
 import com.google.bitcoin.utils.BriefLogFormatter;
+import com.google.common.io.Files;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -61,8 +64,38 @@ public class FullPrunedBlockChainTest {
         // Tests various test cases from FullBlockTestGenerator
         FullBlockTestGenerator generator = new FullBlockTestGenerator(params);
         RuleList blockList = generator.getBlocksToTest(false, false, null);
-        
         store = new MemoryFullPrunedBlockStore(params, blockList.maximumReorgBlockCount);
+        testGeneratedChain(blockList);
+    }
+
+    @Test
+    public void testGeneratedChainWithCachingStore() throws Exception {
+        // The same, with a cache small enough that big blocks are written out before they're committed.
+        FullBlockTestGenerator generator = new FullBlockTestGenerator(params);
+        RuleList blockList = generator.getBlocksToTest(false, false, null);
+        store = new CachingFullPrunedBlockStore(
+                new MemoryFullPrunedBlockStore(params, blockList.maximumReorgBlockCount), 20);
+        testGeneratedChain(blockList);
+    }
+
+    @Test
+    public void testGeneratedChainWithLogStore() throws Exception {
+        FullBlockTestGenerator generator = new FullBlockTestGenerator(params);
+        RuleList blockList = generator.getBlocksToTest(false, false, null);
+        File directory = Files.createTempDir();
+        try {
+            // Small segments, so the log is compacted along the way.
+            store = new LogFullPrunedBlockStore(params, directory, blockList.maximumReorgBlockCount, 1024 * 1024);
+            testGeneratedChain(blockList);
+            store.close();
+        } finally {
+            for (File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+    }
+
+    private void testGeneratedChain(RuleList blockList) throws Exception {
         chain = new FullPrunedBlockChain(params, store);
         
         for (Rule rule : blockList.list) {
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class KGWCalculatorTest {
+    private static final int SPACING = 60;
+
+    private NetworkParameters params;
+    private BlockStore store;
+    private Random random;
+
+    @Before
+    public void setUp() throws Exception {
+        params = new UnitTestParams() {
+            private final KGWParams kgwParams = new KGWParams(SPACING, 15, 100);
+            @Override
+            public KGWParams getKgwParams() {
+                return kgwParams;
+            }
+        };
+        store = new MemoryBlockStore(params);
+        random = new Random(42);
+    }
+
+    // Adds a block on top of prev with a jittery time and a target that drifts around.
+    private StoredBlock extend(StoredBlock prev, int timeVariance) throws BlockStoreException {
+        return extendBy(prev, SPACING + random.nextInt(timeVariance) - timeVariance / 3);
+    }
+
+    private StoredBlock extendBy(StoredBlock prev, int seconds) throws BlockStoreException {
+        Block header = prev.getHeader().cloneAsHeader();
+        header.setPrevBlockHash(prev.getHeader().getHash());
+        header.setTime(prev.getHeader().getTimeSeconds() + seconds);
+        header.setDifficultyTarget(0x1d000000L + 0x00100000L + random.nextInt(0x006fffff));
+        header.setNonce(random.nextInt());
+        StoredBlock stored = new StoredBlock(header, prev.getChainWork(), prev.getHeight() + 1);
+        store.put(stored);
+        return stored;
+    }
+
+    // The original gravity well, walking the chain through the store.
+    private BigInteger walk(StoredBlock storedPrev, long minActualSeconds) throws BlockStoreException {
+        NetworkParameters.KGWParams kgwParams = params.getKgwParams();
+        if (storedPrev.getHeight() == 0 || storedPrev.getHeight() < kgwParams.pastBlocksMin)
+            return params.getProofOfWorkLimit();
+        long pastBlocksMass = 0, pastRateActualSeconds = 0, pastRateTargetSeconds = 0;
+        BigInteger average = BigInteger.ZERO;
+        StoredBlock reading = storedPrev;
+        for (int i = 1; reading != null && reading.getHeight() > 0; i++) {
+            if (i > kgwParams.pastBlocksMax)
+                break;
+            pastBlocksMass++;
+            BigInteger target = Utils.decodeCompactBits(reading.getHeader().getDifficultyTarget());
+            average = i == 1 ? target : target.subtract(average).divide(BigInteger.valueOf(i)).add(average);
+            pastRateActualSeconds = storedPrev.getHeader().getTimeSeconds() - reading.getHeader().getTimeSeconds();
+            pastRateTargetSeconds = kgwParams.blocksTargetSpacing * pastBlocksMass;
+            if (pastRateActualSeconds < minActualSeconds)
+                pastRateActualSeconds = minActualSeconds;
+            if (pastRateActualSeconds < 0)
+                pastRateActualSeconds = 0;
+            double ratio = 1.0;
+            if (pastRateActualSeconds != 0 && pastRateTargetSeconds != 0)
+                ratio = (double) pastRateTargetSeconds / (double) pastRateActualSeconds;
+            double deviation = 1 + (0.7084 * Math.pow((((double) pastBlocksMass) / (double) 144), -1.228));
+            if (pastBlocksMass >= kgwParams.pastBlocksMin && (ratio <= 1 / deviation || ratio >= deviation))
+                break;
+            reading = reading.getPrev(store);
+        }
+        if (pastRateActualSeconds != 0 && pastRateTargetSeconds != 0)
+            average = average.multiply(BigInteger.valueOf(pastRateActualSeconds))
+                    .divide(BigInteger.valueOf(pastRateTargetSeconds));
+        return average;
+    }
+
+    @Test
+    public void matchesWalkAlongChain() throws Exception {
+        KGWCalculator calculator = new KGWCalculator(params);
+        StoredBlock tip = store.getChainHead();
+        for (int i = 0; i < 400; i++) {
+            // Stretches of fast, normal and slow blocks, to exercise both event horizon bounds.
+            tip = extend(tip, (i / 50) % 2 == 0 ? 120 : 400);
+            assertEquals(walk(tip, 0), calculator.getNextTarget(tip, store, 0));
+            assertEquals(walk(tip, 1), calculator.getNextTarget(tip, store, 1));
+        }
+    }
+
+    @Test
+    public void reorgs() throws Exception {
+        KGWCalculator calculator = new KGWCalculator(params);
+        StoredBlock tip = store.getChainHead();
+        for (int i = 0; i < 150; i++)
+            tip = extend(tip, 200);
+        assertEquals(walk(tip, 0), calculator.getNextTarget(tip, store, 0));
+
+        // A short fork, switching back and forth between the two sides.
+        StoredBlock fork = tip;
+        for (int i = 0; i < 5; i++)
+            fork = fork.getPrev(store);
+        StoredBlock shortFork = fork;
+        for (int i = 0; i < 8; i++) {
+            shortFork = extend(shortFork, 200);
+            assertEquals(walk(shortFork, 0), calculator.getNextTarget(shortFork, store, 0));
+            assertEquals(walk(tip, 0), calculator.getNextTarget(tip, store, 0));
+        }
+
+        // A fork deeper than the window.
+        fork = tip;
+        for (int i = 0; i < 120; i++)
+            fork = fork.getPrev(store);
+        StoredBlock longFork = fork;
+        for (int i = 0; i < 10; i++) {
+            longFork = extend(longFork, 200);
+            assertEquals(walk(longFork, 0), calculator.getNextTarget(longFork, store, 0));
+        }
+        assertEquals(walk(tip, 0), calculator.getNextTarget(tip, store, 0));
+    }
+
+    @Test
+    public void sideChainAfterWindowFilled() throws Exception {
+        // Blocks exactly on schedule never cross the event horizon, so every calculation uses the whole window and
+        // a window that is a few blocks short gives a different result.
+        KGWCalculator calculator = new KGWCalculator(params);
+        StoredBlock tip = store.getChainHead();
+        for (int i = 0; i < 250; i++) {
+            tip = extendBy(tip, SPACING);
+            assertEquals(walk(tip, 0), calculator.getNextTarget(tip, store, 0));
+        }
+        for (int depth = 1; depth < 10; depth++) {
+            StoredBlock fork = tip;
+            for (int i = 0; i < depth; i++)
+                fork = fork.getPrev(store);
+            StoredBlock side = extendBy(fork, SPACING);
+            assertEquals(walk(side, 0), calculator.getNextTarget(side, store, 0));
+            assertEquals(walk(tip, 0), calculator.getNextTarget(tip, store, 0));
+        }
+    }
+
+    @Test
+    public void shortChain() throws Exception {
+        KGWCalculator calculator = new KGWCalculator(params);
+        StoredBlock tip = store.getChainHead();
+        for (int i = 0; i < 14; i++) {
+            tip = extend(tip, 200);
+            assertEquals(params.getProofOfWorkLimit(), calculator.getNextTarget(tip, store, 0));
+        }
+        for (int i = 0; i < 20; i++) {
+            tip = extend(tip, 200);
+            assertEquals(walk(tip, 0), calculator.getNextTarget(tip, store, 0));
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import org.auroracoin.AuroraCoinParams;
+import org.junit.Test;
+import org.sexcoin.SexcoinParams;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static com.google.bitcoin.core.KimotoGravityWell.RESULT_WORDS;
+import static com.google.bitcoin.core.KimotoGravityWell.WORDS;
+import static org.junit.Assert.*;
+
+public class KimotoGravityWellTest {
+    // The original BigInteger gravity well, over blocks given newest first.
+    private static BigInteger reference(NetworkParameters.KGWParams kgwParams, long[] bits, long[] times, int count,
+                                        long minActualSeconds) {
+        long pastBlocksMass = 0, pastRateActualSeconds = 0, pastRateTargetSeconds = 0;
+        BigInteger average = BigInteger.ZERO;
+        for (int i = 1; i <= count; i++) {
+            if (i > kgwParams.pastBlocksMax)
+                break;
+            pastBlocksMass++;
+            BigInteger target = Utils.decodeCompactBits(bits[i - 1]);
+            average = i == 1 ? target : target.subtract(average).divide(BigInteger.valueOf(i)).add(average);
+            pastRateActualSeconds = times[0] - times[i - 1];
+            pastRateTargetSeconds = kgwParams.blocksTargetSpacing * pastBlocksMass;
+            if (pastRateActualSeconds < minActualSeconds)
+                pastRateActualSeconds = minActualSeconds;
+            if (pastRateActualSeconds < 0)
+                pastRateActualSeconds = 0;
+            double ratio = 1.0;
+            if (pastRateActualSeconds != 0 && pastRateTargetSeconds != 0)
+                ratio = (double) pastRateTargetSeconds / (double) pastRateActualSeconds;
+            double deviation = 1 + (0.7084 * Math.pow((((double) pastBlocksMass) / (double) 144), -1.228));
+            if (pastBlocksMass >= kgwParams.pastBlocksMin && (ratio <= 1 / deviation || ratio >= deviation))
+                break;
+        }
+        if (pastRateActualSeconds != 0 && pastRateTargetSeconds != 0)
+            average = average.multiply(BigInteger.valueOf(pastRateActualSeconds))
+                    .divide(BigInteger.valueOf(pastRateTargetSeconds));
+        return average;
+    }
+
+    // Generates runs of blocks around the target spacing with targets near the proof of work limit, and checks both
+    // implementations agree for each block. The blocks are stored in a ring, starting part way round it.
+    private void compare(NetworkParameters params, long minActualSeconds) {
+        NetworkParameters.KGWParams kgwParams = params.getKgwParams();
+        KimotoGravityWell gravityWell = new KimotoGravityWell(kgwParams);
+        int length = (int) kgwParams.pastBlocksMax;
+        // The compact size byte of targets a little below the proof of work limit.
+        long size = (params.getProofOfWorkLimit().bitLength() + 7) / 8 - 1;
+        Random random = new Random(1);
+        int[] targets = new int[length * WORDS];
+        long[] times = new long[length];
+        long[] newestFirstBits = new long[length];
+        long[] newestFirstTimes = new long[length];
+        int[] scratch = new int[WORDS];
+        int[] result = new int[RESULT_WORDS];
+        long time = 1388534400;
+        int newest = length - 50;
+        for (int n = 1; n <= 3 * length; n++) {
+            newest = (newest + 1) % length;
+            // Alternate between fast and slow stretches, with the odd block from the past.
+            int spacing = kgwParams.blocksTargetSpacing * ((n / 500) % 3 + 1) / 2;
+            time += random.nextInt(2 * spacing + 1) - (random.nextInt(20) == 0 ? 3 * spacing : 0);
+            long bits = (size - random.nextInt(4)) << 24 | (0x100000 + random.nextInt(0x700000));
+            times[newest] = time;
+            KimotoGravityWell.decodeCompactBits(bits, targets, newest * WORDS);
+            System.arraycopy(newestFirstBits, 0, newestFirstBits, 1, length - 1);
+            System.arraycopy(newestFirstTimes, 0, newestFirstTimes, 1, length - 1);
+            newestFirstBits[0] = bits;
+            newestFirstTimes[0] = time;
+            if (n % 7 != 0 && n < length)
+                continue;
+            int count = Math.min(n, length);
+            gravityWell.nextTarget(targets, times, newest, count, minActualSeconds, scratch, result);
+            assertEquals(reference(kgwParams, newestFirstBits, newestFirstTimes, count, minActualSeconds),
+                    KimotoGravityWell.toBigInteger(result, RESULT_WORDS));
+        }
+    }
+
+    @Test
+    public void matchesBigIntegerAurora() throws Exception {
+        compare(AuroraCoinParams.get(), 0);
+    }
+
+    @Test
+    public void matchesBigIntegerSexcoin() throws Exception {
+        compare(SexcoinParams.get(), 0);
+        compare(SexcoinParams.get(), 1);
+    }
+
+    @Test
+    public void decodeCompactBits() throws Exception {
+        Random random = new Random(2);
+        int[] words = new int[WORDS];
+        for (int i = 0; i < 10000; i++) {
+            long bits = random.nextInt(33) << 24 | random.nextInt(0x800000);
+            KimotoGravityWell.decodeCompactBits(bits, words, 0);
+            assertEquals(Utils.decodeCompactBits(bits), KimotoGravityWell.toBigInteger(words, WORDS));
+        }
+        try {
+            KimotoGravityWell.decodeCompactBits(0x21010000L, words, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected: more than 256 bits.
+        }
+        try {
+            KimotoGravityWell.decodeCompactBits(0x04923456L, words, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected: negative.
+        }
+    }
+}
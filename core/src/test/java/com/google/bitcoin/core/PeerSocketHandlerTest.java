@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PeerSocketHandlerTest {
+    private static final NetworkParameters params = MainNetParams.get();
+
+    private static class Handler extends PeerSocketHandler {
+        final List<Message> received = new ArrayList<Message>();
+
+        Handler() {
+            super(params, new InetSocketAddress("127.0.0.1", 8333));
+        }
+
+        @Override
+        protected void processMessage(Message m) throws Exception {
+            received.add(m);
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+    }
+
+    // Feeds bytes to the handler a few at a time through a buffer much smaller than a block, the way ConnectionHandler
+    // does. Returns false if the handler gave up.
+    private static boolean feed(Handler handler, byte[] bytes) {
+        ByteBuffer buff = ByteBuffer.allocate(4096);
+        for (int pos = 0; pos < bytes.length; ) {
+            int length = Math.min(Math.min(1000, buff.remaining()), bytes.length - pos);
+            buff.put(bytes, pos, length);
+            pos += length;
+            buff.flip();
+            if (handler.receiveBytes(buff) == -1)
+                return false;
+            buff.compact();
+        }
+        return true;
+    }
+
+    private static byte[] serialize(Message... messages) throws Exception {
+        BitcoinSerializer serializer = new BitcoinSerializer(params);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Message message : messages)
+            serializer.serialize(message, out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void largeMessages() throws Exception {
+        Block block = new Block(params, ByteStreams.toByteArray(getClass().getResourceAsStream("block169482.dat")));
+        Ping ping = new Ping(42);
+        Handler handler = new Handler();
+        // A block straddles the buffer, and the next one starts partway through it.
+        assertTrue(feed(handler, serialize(block, ping, block, block)));
+        assertEquals(4, handler.received.size());
+        assertEquals(block, handler.received.get(0));
+        assertEquals(42, ((Ping) handler.received.get(1)).getNonce());
+        assertEquals(block, handler.received.get(2));
+        assertEquals(block, handler.received.get(3));
+    }
+
+    @Test
+    public void badChecksum() throws Exception {
+        Block block = new Block(params, ByteStreams.toByteArray(getClass().getResourceAsStream("block169482.dat")));
+        byte[] bytes = serialize(block);
+        bytes[bytes.length - 100] ^= 1;
+        Handler handler = new Handler();
+        Thread.UncaughtExceptionHandler previous = Threading.uncaughtExceptionHandler;
+        Threading.uncaughtExceptionHandler = null;
+        try {
+            assertFalse(feed(handler, bytes));
+        } finally {
+            Threading.uncaughtExceptionHandler = previous;
+        }
+        assertTrue(handler.received.isEmpty());
+    }
+}
@@ -814,6 +814,43 @@ public class PeerTest extends TestWithNetworkConnections {
         }
     }
 
+    @Test
+    public void getDataRepliesWaitForSendQueue() throws Exception {
+        // Replies to a getdata are held while the send queue is full, and sent once the connection says it drained.
+        final AtomicBoolean sendQueueFull = new AtomicBoolean(false);
+        VersionMessage ver = new VersionMessage(unitTestParams, 100);
+        peer = new Peer(unitTestParams, ver, new PeerAddress(new InetSocketAddress("127.0.0.1", 4000)), blockChain,
+                memoryPool) {
+            @Override
+            public boolean isSendQueueFull() {
+                return sendQueueFull.get();
+            }
+        };
+        peer.addWallet(wallet);
+        final Transaction t1 = createFakeTx(unitTestParams, Utils.toNanoCoins(1, 0), address);
+        final Transaction t2 = createFakeTx(unitTestParams, Utils.toNanoCoins(2, 0), address);
+        peer.addEventListener(new AbstractPeerEventListener() {
+            @Override
+            public List<Message> getData(Peer p, GetDataMessage m) {
+                return Lists.<Message>newArrayList(t1, t2);
+            }
+        }, Threading.SAME_THREAD);
+        connect();
+
+        sendQueueFull.set(true);
+        GetDataMessage getdata = new GetDataMessage(unitTestParams);
+        getdata.addItem(new InventoryItem(InventoryItem.Type.Transaction, t1.getHash()));
+        getdata.addItem(new InventoryItem(InventoryItem.Type.Transaction, t2.getHash()));
+        inbound(writeTarget, getdata);
+        assertNull(outbound(writeTarget));
+
+        // What the connection does once enough was written.
+        sendQueueFull.set(false);
+        peer.sendQueueDrained();
+        assertEquals(t1.getHash(), ((Transaction) waitForOutbound(writeTarget)).getHash());
+        assertEquals(t2.getHash(), ((Transaction) waitForOutbound(writeTarget)).getHash());
+    }
+
     @Test
     public void exceptionListener() throws Exception {
         wallet.addEventListener(new AbstractWalletEventListener() {
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.TestNet2Params;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class ProofOfWorkVerifierTest {
+    private static final NetworkParameters params = TestNet2Params.get();
+
+    private ExecutorService executor;
+    private ProofOfWorkVerifier verifier;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        verifier = new ProofOfWorkVerifier(executor, 4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    private List<Block> headers(int count) throws Exception {
+        List<Block> headers = new ArrayList<Block>();
+        for (int i = 0; i < count; i++)
+            headers.add(new Block(params, BlockTest.blockBytes).cloneAsHeader());
+        return headers;
+    }
+
+    @Test
+    public void allValid() throws Exception {
+        List<Block> headers = headers(50);
+        assertEquals(-1, verifier.verify(headers));
+        for (Block header : headers)
+            header.verifyHeader();
+    }
+
+    @Test
+    public void firstFailureReported() throws Exception {
+        List<Block> headers = headers(50);
+        headers.get(30).setNonce(12346);
+        headers.get(40).setNonce(12346);
+        assertEquals(30, verifier.verify(headers));
+        try {
+            headers.get(30).verifyHeader();
+            fail();
+        } catch (VerificationException e) {
+            // Expected: a failed check is not remembered.
+        }
+    }
+
+    @Test
+    public void modifiedHeaderIsRechecked() throws Exception {
+        List<Block> headers = headers(2);
+        assertEquals(-1, verifier.verify(headers));
+        headers.get(1).setNonce(12346);
+        try {
+            headers.get(1).verifyHeader();
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+    }
+}
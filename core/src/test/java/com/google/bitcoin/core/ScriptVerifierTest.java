@@ -0,0 +1,195 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.bitcoin.script.ScriptOpCodes.*;
+import static org.junit.Assert.*;
+
+public class ScriptVerifierTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final Script PASS = new ScriptBuilder().op(OP_1).build();
+    private static final Script FAIL = new ScriptBuilder().op(OP_0).build();
+
+    private ScriptVerifier verifier;
+
+    @Before
+    public void setUp() throws Exception {
+        verifier = new ScriptVerifier(4, 8);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        verifier.shutdown();
+    }
+
+    // A transaction with the given number of inputs, whose empty script sigs leave it to the spent scripts to pass.
+    private static Transaction tx(int inputs) {
+        Transaction tx = new Transaction(params);
+        for (int i = 0; i < inputs; i++)
+            tx.addInput(new TransactionInput(params, tx, new byte[0]));
+        return tx;
+    }
+
+    private static List<Script> scripts(int count, int failing) {
+        List<Script> scripts = new ArrayList<Script>();
+        for (int i = 0; i < count; i++)
+            scripts.add(i == failing ? FAIL : PASS);
+        return scripts;
+    }
+
+    // Signs every input of tx as spending scriptPubKey, except that the input at badIndex gets a signature of
+    // something else.
+    private static void sign(Transaction tx, ECKey key, Script scriptPubKey, int badIndex) {
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            Sha256Hash hash = i == badIndex ? Sha256Hash.create(new byte[] { 1 }) :
+                    tx.hashForSignature(i, scriptPubKey, Transaction.SigHash.ALL, false);
+            TransactionSignature sig = new TransactionSignature(key.sign(hash), Transaction.SigHash.ALL, false);
+            tx.getInput(i).setScriptSig(ScriptBuilder.createInputScript(sig));
+        }
+    }
+
+    @Test
+    public void allPass() throws Exception {
+        ScriptVerifier.Job job = verifier.newJob();
+        // More inputs than fit in the queue, the rest are checked by this thread.
+        for (int i = 0; i < 10; i++)
+            job.addAll(tx(20), scripts(20, -1), true);
+        job.await();
+        assertFalse(job.isCancelled());
+        assertEquals(0, verifier.getQueueDepth());
+    }
+
+    @Test
+    public void failureCancelsJob() throws Exception {
+        ScriptVerifier.Job job = verifier.newJob();
+        job.addAll(tx(5), scripts(5, -1), true);
+        job.addAll(tx(50), scripts(50, 25), true);
+        try {
+            job.await();
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+        assertTrue(job.isCancelled());
+        // The threads are still there for the next job.
+        ScriptVerifier.Job next = verifier.newJob();
+        next.addAll(tx(5), scripts(5, -1), true);
+        next.await();
+    }
+
+    @Test(timeout = 10000)
+    public void errorFailsJob() throws Exception {
+        // An Error from inside a check fails the job instead of leaving await() waiting for it forever.
+        Script broken = new Script(PASS.getProgram()) {
+            @Override
+            public byte[] getProgram() {
+                throw new StackOverflowError();
+            }
+        };
+        ScriptVerifier.Job job = verifier.newJob();
+        job.addAll(tx(5), scripts(5, -1), true);
+        job.add(tx(1), 0, broken, true);
+        try {
+            job.await();
+            fail();
+        } catch (VerificationException e) {
+            assertTrue(e.getCause() instanceof StackOverflowError);
+        }
+        ScriptVerifier.Job next = verifier.newJob();
+        next.addAll(tx(5), scripts(5, -1), true);
+        next.await();
+    }
+
+    @Test
+    public void signatures() throws Exception {
+        ECKey key = new ECKey();
+        Script scriptPubKey = ScriptBuilder.createOutputScript(key);
+        Transaction good = tx(8);
+        sign(good, key, scriptPubKey, -1);
+        ScriptVerifier.Job job = verifier.newJob();
+        job.addAll(good, Collections.nCopies(8, scriptPubKey), true);
+        job.await();
+
+        Transaction bad = tx(8);
+        sign(bad, key, scriptPubKey, 5);
+        job = verifier.newJob();
+        job.addAll(good, Collections.nCopies(8, scriptPubKey), true);
+        job.addAll(bad, Collections.nCopies(8, scriptPubKey), true);
+        try {
+            job.await();
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void invalidSignatureExpected() throws Exception {
+        // Only spendable with a bad signature, so assuming signatures are valid gets the wrong answer at first.
+        ECKey key = new ECKey();
+        Script scriptPubKey = new ScriptBuilder().data(key.getPubKey()).op(OP_CHECKSIG).op(OP_NOT).build();
+        Transaction tx = tx(4);
+        sign(tx, key, scriptPubKey, 2);
+        ScriptVerifier.Job job = verifier.newJob();
+        job.add(tx, 2, scriptPubKey, true);
+        job.await();
+
+        job = verifier.newJob();
+        job.addAll(tx, Collections.nCopies(4, scriptPubKey), true);
+        try {
+            job.await();
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        ScriptVerifier.Job job = verifier.newJob();
+        job.addAll(tx(5), scripts(5, -1), true);
+        job.cancel();
+        // Ignored, so the job doesn't fail.
+        job.add(tx(1), 0, FAIL, true);
+        job.await();
+    }
+
+    @Test
+    public void afterShutdown() throws Exception {
+        verifier.shutdown();
+        ScriptVerifier.Job job = verifier.newJob();
+        job.addAll(tx(3), scripts(3, 2), true);
+        try {
+            job.await();
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+    }
+}
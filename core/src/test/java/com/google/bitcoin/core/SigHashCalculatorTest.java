@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptBuilder;
+import com.google.bitcoin.script.ScriptOpCodes;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+public class SigHashCalculatorTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private static Transaction tx(int inputs) {
+        Transaction tx = new Transaction(params);
+        ECKey key = new ECKey();
+        for (int i = 0; i < inputs; i++) {
+            TransactionOutPoint outPoint = new TransactionOutPoint(params, i, Sha256Hash.create(new byte[] { (byte) i }));
+            TransactionInput input = new TransactionInput(params, tx, new byte[] { 1, 2, (byte) i }, outPoint);
+            input.setSequenceNumber(i);
+            tx.addInput(input);
+        }
+        tx.addOutput(Utils.toNanoCoins(1, 0), key);
+        tx.addOutput(Utils.toNanoCoins(2, 0), key.toAddress(params));
+        tx.setLockTime(1234);
+        return tx;
+    }
+
+    // The signature hash as it's defined: a copy of the transaction with all input scripts but one cleared.
+    private static Sha256Hash expected(Transaction tx, int inputIndex, byte[] connectedScript, byte sigHashType)
+            throws Exception {
+        Transaction copy = new Transaction(params, tx.bitcoinSerialize());
+        for (int i = 0; i < copy.getInputs().size(); i++)
+            copy.getInput(i).setScriptBytes(i == inputIndex ? connectedScript : new byte[0]);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        copy.bitcoinSerialize(bos);
+        Utils.uint32ToByteStreamLE(0xff & sigHashType, bos);
+        return new Sha256Hash(Utils.doubleDigest(bos.toByteArray()));
+    }
+
+    @Test
+    public void matchesDefinition() throws Exception {
+        Transaction tx = tx(20);
+        byte[] script = ScriptBuilder.createOutputScript(new ECKey()).getProgram();
+        // In order, backwards and repeated, so the saved state is both carried forward and restarted.
+        int[] order = { 0, 1, 2, 5, 19, 18, 3, 3, 0, 10 };
+        for (int i : order) {
+            assertEquals(expected(tx, i, script, (byte) 1),
+                    tx.hashForSignature(i, script, Transaction.SigHash.ALL, false));
+            // Unknown hash types are treated as SIGHASH_ALL, but still written out.
+            assertEquals(expected(tx, i, script, (byte) 0), tx.hashForSignature(i, script, (byte) 0));
+        }
+    }
+
+    @Test
+    public void forgottenWhenTransactionChanges() throws Exception {
+        Transaction tx = tx(3);
+        byte[] script = new byte[] { (byte) ScriptOpCodes.OP_1 };
+        Sha256Hash before = tx.hashForSignature(1, script, Transaction.SigHash.ALL, false);
+        tx.getInput(2).setSequenceNumber(99);
+        Sha256Hash after = tx.hashForSignature(1, script, Transaction.SigHash.ALL, false);
+        assertFalse(before.equals(after));
+        assertEquals(expected(tx, 1, script, (byte) 1), after);
+    }
+
+    @Test
+    public void codeSeparatorsRemoved() throws Exception {
+        Transaction tx = tx(2);
+        Script withSeparator = new ScriptBuilder().op(ScriptOpCodes.OP_CODESEPARATOR).op(ScriptOpCodes.OP_1).build();
+        assertEquals(expected(tx, 0, new byte[] { (byte) ScriptOpCodes.OP_1 }, (byte) 1),
+                tx.hashForSignature(0, withSeparator, Transaction.SigHash.ALL, false));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private SignatureCache previous;
+    private SignatureCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        previous = SignatureCache.getDefault();
+        cache = new SignatureCache(2);
+        SignatureCache.setDefault(cache);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        SignatureCache.setDefault(previous);
+    }
+
+    @Test
+    public void validSignaturesAreRemembered() throws Exception {
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.create(new byte[] { 1 });
+        ECKey.ECDSASignature sig = key.sign(hash);
+        assertTrue(key.verify(hash, sig));
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.getStats().hitCount());
+        assertTrue(key.verify(hash.getBytes(), sig.encodeToDER()));
+        assertEquals(1, cache.getStats().hitCount());
+
+        // Nothing else matches the entry.
+        Sha256Hash otherHash = Sha256Hash.create(new byte[] { 2 });
+        assertFalse(key.verify(otherHash, sig));
+        assertFalse(new ECKey().verify(hash, sig));
+        assertFalse(key.verify(hash, new ECKey.ECDSASignature(sig.r, sig.s.add(BigInteger.ONE))));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getStats().hitCount());
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        ECKey key = new ECKey();
+        for (int i = 0; i < 5; i++) {
+            Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) i });
+            assertTrue(key.verify(hash, key.sign(hash)));
+        }
+        assertTrue(cache.size() <= 2);
+        assertTrue(cache.getStats().evictionCount() >= 3);
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        SignatureCache.setDefault(null);
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.create(new byte[] { 1 });
+        assertTrue(key.verify(hash, key.sign(hash)));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StoredBlockTest {
+    private NetworkParameters params;
+    private CountingBlockStore store;
+
+    // Counts lookups, to check how far getAncestor() walks.
+    private static class CountingBlockStore extends MemoryBlockStore {
+        int gets;
+
+        CountingBlockStore(NetworkParameters params) {
+            super(params);
+        }
+
+        @Override
+        public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+            gets++;
+            return super.get(hash);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        store = new CountingBlockStore(params);
+    }
+
+    // Builds a chain of the given length on top of the given block, without solving the blocks.
+    private List<StoredBlock> extend(StoredBlock from, int length, int nonce) throws Exception {
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        StoredBlock prev = from;
+        for (int i = 0; i < length; i++) {
+            Block prevHeader = prev.getHeader();
+            Block header = new Block(params, prevHeader.getVersion(), prevHeader.getHash(), prevHeader.getMerkleRoot(),
+                    prevHeader.getTimeSeconds() + 60, prevHeader.getDifficultyTarget(), nonce,
+                    Collections.<Transaction>emptyList()).cloneAsHeader();
+            prev = prev.build(header, store);
+            store.put(prev);
+            chain.add(prev);
+        }
+        return chain;
+    }
+
+    @Test
+    public void skipHeights() throws Exception {
+        assertEquals(0, StoredBlock.getSkipHeight(0));
+        assertEquals(0, StoredBlock.getSkipHeight(1));
+        for (int height = 2; height < 100000; height++) {
+            int skipHeight = StoredBlock.getSkipHeight(height);
+            assertTrue(skipHeight >= 0 && skipHeight < height);
+        }
+    }
+
+    @Test
+    public void getAncestor() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        chain.add(genesis);
+        chain.addAll(extend(genesis, 5000, 0));
+        StoredBlock tip = chain.get(chain.size() - 1);
+        assertNull(tip.getAncestor(store, -1));
+        assertNull(tip.getAncestor(store, 5001));
+        assertEquals(tip, tip.getAncestor(store, 5000));
+        for (int height = 0; height <= 5000; height++) {
+            store.gets = 0;
+            assertEquals(chain.get(height), tip.getAncestor(store, height));
+            assertTrue("Took " + store.gets + " lookups", store.gets < 50);
+        }
+
+        // A block read back from disk has no links, but still finds its ancestors one block at a time until it
+        // reaches one that does.
+        StoredBlock reloaded = new StoredBlock(tip.getHeader(), tip.getChainWork(), tip.getHeight());
+        store.gets = 0;
+        assertEquals(chain.get(10), reloaded.getAncestor(store, 10));
+        assertTrue(store.gets < 50);
+    }
+
+    @Test
+    public void buildOnBlocksReadFromDisk() throws Exception {
+        List<StoredBlock> chain = extend(store.getChainHead(), 4096, 0);
+        // Like after a restart: the store hands out blocks without links.
+        CountingBlockStore reloaded = new CountingBlockStore(params);
+        for (StoredBlock block : chain)
+            reloaded.put(new StoredBlock(block.getHeader(), block.getChainWork(), block.getHeight()));
+        store = reloaded;
+        StoredBlock tip = store.get(chain.get(chain.size() - 1).getHeader().getHash());
+
+        // Building on top doesn't walk all the way back to the ancestors the new blocks would link to.
+        for (int i = 0; i < 1000; i++) {
+            Block prevHeader = tip.getHeader();
+            Block header = new Block(params, prevHeader.getVersion(), prevHeader.getHash(), prevHeader.getMerkleRoot(),
+                    prevHeader.getTimeSeconds() + 60, prevHeader.getDifficultyTarget(), 0,
+                    Collections.<Transaction>emptyList()).cloneAsHeader();
+            store.gets = 0;
+            tip = tip.build(header, store);
+            assertTrue("Took " + store.gets + " lookups", store.gets <= StoredBlock.MAX_SKIP_LOOKUPS);
+            store.put(tip);
+        }
+        assertEquals(5096, tip.getHeight());
+        assertEquals(chain.get(99).getHeader(), tip.getAncestor(store, 100).getHeader());
+        assertEquals(chain.get(4095).getHeader(), tip.getAncestor(store, 4096).getHeader());
+    }
+
+    @Test
+    public void getAncestorAcrossForks() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> main = extend(genesis, 3000, 0);
+        List<StoredBlock> fork = extend(main.get(1999), 1500, 1);
+        StoredBlock forkTip = fork.get(fork.size() - 1);
+        assertEquals(main.get(999), forkTip.getAncestor(store, 1000));
+        assertEquals(main.get(1999), forkTip.getAncestor(store, 2000));
+        assertEquals(fork.get(0), forkTip.getAncestor(store, 2001));
+        assertEquals(main.get(2499), main.get(2999).getAncestor(store, 2500));
+    }
+
+    @Test
+    public void missingAncestors() throws Exception {
+        // Like a chain started from a checkpoint: the blocks below the first one aren't in the store.
+        Block header = params.getGenesisBlock().cloneAsHeader();
+        header.setNonce(12345);
+        StoredBlock checkpoint = new StoredBlock(header, header.getWork(), 10000);
+        store.put(checkpoint);
+        List<StoredBlock> chain = extend(checkpoint, 1000, 0);
+        StoredBlock tip = chain.get(chain.size() - 1);
+        assertEquals(checkpoint, tip.getAncestor(store, 10000));
+        assertEquals(chain.get(499), tip.getAncestor(store, 10500));
+        assertNull(tip.getAncestor(store, 9999));
+    }
+}
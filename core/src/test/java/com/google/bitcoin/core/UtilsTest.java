@@ -20,6 +20,8 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.bitcoin.core.Utils.*;
 import static org.junit.Assert.*;
@@ -115,4 +117,42 @@ public class UtilsTest {
         Assert.assertArrayEquals(new byte[0], Utils.reverseDwordBytes(new byte[] {4,3,2,1,8,7,6,5}, 0));
         Assert.assertArrayEquals(new byte[0], Utils.reverseDwordBytes(new byte[0], 0));
     }
+
+    @Test
+    public void digests() throws Exception {
+        byte[] abc = "abc".getBytes("US-ASCII");
+        String sha256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+        String doubleSha256 = "4f8b42c22dd3729b519ba6f68d2da7cc5b2d606d05daed5ad5128cc03e6c6358";
+        assertEquals(sha256, bytesToHexString(singleDigest(abc, 0, 3)));
+        assertEquals(doubleSha256, bytesToHexString(doubleDigest(abc)));
+        assertEquals(doubleSha256, bytesToHexString(doubleDigestTwoBuffers(abc, 0, 1, abc, 1, 2)));
+
+        // Written into the middle of a buffer, leaving the rest alone.
+        byte[] output = new byte[34];
+        singleDigest(abc, 0, 3, output, 1);
+        assertEquals("00" + sha256 + "00", bytesToHexString(output));
+        doubleDigest(abc, 0, 3, output, 1);
+        assertEquals("00" + doubleSha256 + "00", bytesToHexString(output));
+    }
+
+    @Test
+    public void digestsOnManyThreads() throws Exception {
+        final byte[] expected = doubleDigest(new byte[1000]);
+        final AtomicInteger wrong = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++)
+                        if (!Arrays.equals(expected, doubleDigest(new byte[1000])))
+                            wrong.incrementAndGet();
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(0, wrong.get());
+    }
 }
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.crypto;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Utils;
+import org.junit.Test;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ECDSAVerifierTest {
+    private static boolean bouncyCastle(byte[] data, BigInteger r, BigInteger s, byte[] pub) {
+        ECDSASigner signer = new ECDSASigner();
+        signer.init(false, new ECPublicKeyParameters(ECKey.CURVE.getCurve().decodePoint(pub), ECKey.CURVE));
+        return signer.verifySignature(data, r, s);
+    }
+
+    private static void check(byte[] data, BigInteger r, BigInteger s, byte[] pub) {
+        ECDSAVerifier.PublicKey key = ECDSAVerifier.decode(pub);
+        assertNotNull(key);
+        assertEquals(bouncyCastle(data, r, s, pub), ECDSAVerifier.verify(data, r, s, key));
+    }
+
+    // A compressed public key with the given x coordinate, or null if there's no point with it.
+    private static byte[] keyWithX(BigInteger x) {
+        byte[] pub = new byte[33];
+        pub[0] = 2;
+        System.arraycopy(Utils.bigIntegerToBytes(x, 32), 0, pub, 1, 32);
+        return ECDSAVerifier.decode(pub) == null ? null : pub;
+    }
+
+    @Test
+    public void matchesBouncyCastle() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 20; i++) {
+            ECKey key = new ECKey();
+            byte[] compressed = key.getPubKey();
+            ECPoint point = ECKey.CURVE.getCurve().decodePoint(compressed);
+            byte[] uncompressed = new ECPoint.Fp(ECKey.CURVE.getCurve(), point.getX(), point.getY(), false).getEncoded();
+            Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) i });
+            ECKey.ECDSASignature sig = key.sign(hash);
+            for (byte[] pub : new byte[][] { uncompressed, compressed }) {
+                assertTrue(ECDSAVerifier.verify(hash.getBytes(), sig.r, sig.s, ECDSAVerifier.decode(pub)));
+                check(hash.getBytes(), sig.r, sig.s.add(BigInteger.ONE), pub);
+                check(hash.getBytes(), sig.r.add(BigInteger.ONE), sig.s, pub);
+                check(Sha256Hash.create(new byte[] { (byte) i, 1 }).getBytes(), sig.r, sig.s, pub);
+                check(hash.getBytes(), new BigInteger(256, random), new BigInteger(256, random), pub);
+                // Longer data is truncated, shorter data isn't.
+                byte[] longer = new byte[40];
+                System.arraycopy(hash.getBytes(), 0, longer, 0, 32);
+                check(longer, sig.r, sig.s, pub);
+                check(new byte[] { 1, 2, 3 }, sig.r, sig.s, pub);
+            }
+            assertFalse(ECDSAVerifier.verify(hash.getBytes(), sig.r, sig.s, ECDSAVerifier.decode(new ECKey().getPubKey())));
+        }
+    }
+
+    @Test
+    public void doubling() throws Exception {
+        // With G as the key and e == r == s, u1 == u2 == 1, so G is added to itself and the sum is 2G.
+        BigInteger n = ECKey.CURVE.getN();
+        byte[] pub = ECKey.CURVE.getG().getEncoded();
+        BigInteger r = ECKey.CURVE.getG().twice().getX().toBigInteger().mod(n);
+        byte[] data = Utils.bigIntegerToBytes(r, 32);
+        assertTrue(ECDSAVerifier.verify(data, r, r, ECDSAVerifier.decode(pub)));
+        check(data, r, r, pub);
+        // u1 == u2 == r, a sum of 2rG.
+        check(data, r, BigInteger.ONE, pub);
+        // 3G isn't 2G.
+        BigInteger r3 = ECKey.CURVE.getG().twice().add(ECKey.CURVE.getG()).getX().toBigInteger().mod(n);
+        assertFalse(ECDSAVerifier.verify(Utils.bigIntegerToBytes(r3, 32), r3, r3, ECDSAVerifier.decode(pub)));
+    }
+
+    @Test
+    public void sumAtInfinity() throws Exception {
+        // With G as the key, s == e and r == n - e, u1 == 1 and u2 == n - 1, so u1*G + u2*Q is the point at infinity.
+        // That has no x coordinate, so never matches, even r == n - 1.
+        BigInteger n = ECKey.CURVE.getN();
+        ECDSAVerifier.PublicKey key = ECDSAVerifier.decode(ECKey.CURVE.getG().getEncoded());
+        for (BigInteger e : new BigInteger[] { BigInteger.ONE, BigInteger.valueOf(12345), n.shiftRight(1) }) {
+            byte[] data = Utils.bigIntegerToBytes(e, 32);
+            assertFalse(ECDSAVerifier.verify(data, n.subtract(e), e, key));
+        }
+    }
+
+    @Test
+    public void nearN() throws Exception {
+        // With e == 0 and r == s, u1 == 0 and u2 == 1, so u1*G + u2*Q is just Q and r has to be Q's x mod n.
+        BigInteger n = ECKey.CURVE.getN();
+        byte[] zero = new byte[32];
+        // Keys with x just under n, and so r just under n too.
+        int found = 0;
+        for (BigInteger x = n.subtract(BigInteger.ONE); found < 3; x = x.subtract(BigInteger.ONE)) {
+            byte[] pub = keyWithX(x);
+            if (pub == null)
+                continue;
+            found++;
+            assertTrue(ECDSAVerifier.verify(zero, x, x, ECDSAVerifier.decode(pub)));
+            check(zero, x, x, pub);
+            check(zero, x.subtract(BigInteger.ONE), x.subtract(BigInteger.ONE), pub);
+            // u1 == u2 == 1.
+            check(Utils.bigIntegerToBytes(x, 32), x, x, pub);
+        }
+        // Keys with x at least n, so it has to wrap to match r. x itself is out of range as r.
+        found = 0;
+        for (BigInteger x = n.add(BigInteger.ONE); found < 3; x = x.add(BigInteger.ONE)) {
+            byte[] pub = keyWithX(x);
+            if (pub == null)
+                continue;
+            found++;
+            BigInteger r = x.subtract(n);
+            assertTrue(ECDSAVerifier.verify(zero, r, r, ECDSAVerifier.decode(pub)));
+            check(zero, r, r, pub);
+            check(zero, r.add(BigInteger.ONE), r.add(BigInteger.ONE), pub);
+            assertFalse(ECDSAVerifier.verify(zero, x, x, ECDSAVerifier.decode(pub)));
+            check(Utils.bigIntegerToBytes(r, 32), r, r, pub);
+        }
+    }
+
+    @Test
+    public void outOfRange() throws Exception {
+        ECDSAVerifier.PublicKey pub = ECDSAVerifier.decode(new ECKey().getPubKey());
+        byte[] data = new byte[32];
+        BigInteger n = ECKey.CURVE.getN();
+        assertFalse(ECDSAVerifier.verify(data, BigInteger.ZERO, BigInteger.ONE, pub));
+        assertFalse(ECDSAVerifier.verify(data, BigInteger.ONE, BigInteger.ZERO, pub));
+        assertFalse(ECDSAVerifier.verify(data, n, BigInteger.ONE, pub));
+        assertFalse(ECDSAVerifier.verify(data, BigInteger.ONE, n, pub));
+    }
+
+    @Test
+    public void decode() throws Exception {
+        ECPoint point = ECKey.CURVE.getCurve().decodePoint(new ECKey().getPubKey());
+        byte[] pub = new ECPoint.Fp(ECKey.CURVE.getCurve(), point.getX(), point.getY(), false).getEncoded();
+        assertNotNull(ECDSAVerifier.decode(pub));
+        // Not on the curve.
+        pub[64] ^= 1;
+        assertNull(ECDSAVerifier.decode(pub));
+        // Unknown encodings.
+        pub[0] = 6;
+        assertNull(ECDSAVerifier.decode(pub));
+        assertNull(ECDSAVerifier.decode(new byte[0]));
+        assertNull(ECDSAVerifier.decode(new byte[33]));
+        // There's no point with x = 5.
+        byte[] compressed = new byte[33];
+        compressed[0] = 2;
+        compressed[32] = 5;
+        assertNull(ECDSAVerifier.decode(compressed));
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.crypto;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Utils;
+import com.lambdaworks.crypto.SCrypt;
+import org.junit.Test;
+import org.litecoin.LitecoinParams;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ScryptHeaderHasherTest {
+    private static Sha256Hash reference(byte[] header) throws Exception {
+        return new Sha256Hash(Utils.reverseBytes(SCrypt.scrypt(header, header, 1024, 1, 1, 32)));
+    }
+
+    @Test
+    public void matchesReferenceImplementation() throws Exception {
+        Random random = new Random(1);
+        byte[] header = new byte[Block.HEADER_SIZE];
+        byte[] out = new byte[32];
+        for (int i = 0; i < 20; i++) {
+            random.nextBytes(header);
+            ScryptHeaderHasher.scrypt(header, 0, out, 0);
+            assertEquals(reference(header), new Sha256Hash(Utils.reverseBytes(out)));
+        }
+    }
+
+    @Test
+    public void hashBlock() throws Exception {
+        Block genesis = LitecoinParams.get().getGenesisBlock();
+        Sha256Hash expected = reference(genesis.cloneAsHeader().bitcoinSerialize());
+        assertEquals(expected, ScryptHeaderHasher.hash(genesis));
+        // The PoW hash of the genesis block is below its own target.
+        assertTrue(expected.toBigInteger().compareTo(genesis.getDifficultyTargetAsInteger()) < 0);
+        // And it is calculated from the current header fields.
+        Block header = genesis.cloneAsHeader();
+        header.setNonce(header.getNonce() + 1);
+        assertEquals(reference(header.bitcoinSerialize()), ScryptHeaderHasher.hash(header));
+    }
+}
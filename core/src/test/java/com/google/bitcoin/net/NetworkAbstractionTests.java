@@ -21,6 +21,7 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.bitcoin.core.Utils;
@@ -44,7 +45,7 @@ public class NetworkAbstractionTests {
 
     @Parameterized.Parameters
     public static Collection<Integer[]> parameters() {
-        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3});
+        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3}, new Integer[]{4});
     }
 
     public NetworkAbstractionTests(Integer clientType) throws Exception {
@@ -55,12 +56,16 @@ public class NetworkAbstractionTests {
         } else if (clientType == 1) {
             channels = new BlockingClientManager();
             channels.start();
+        } else if (clientType == 4) {
+            // Several selectors, processing messages on the selector threads
+            channels = new NioClientManager(3, 0);
+            channels.start();
         } else
             channels = null;
     }
 
     private MessageWriteTarget openConnection(SocketAddress addr, ProtobufParser parser) throws Exception {
-        if (clientType == 0 || clientType == 1) {
+        if (clientType == 0 || clientType == 1 || clientType == 4) {
             channels.openConnection(addr, parser);
             if (parser.writeTarget.get() == null)
                 Thread.sleep(100);
@@ -255,6 +260,191 @@ public class NetworkAbstractionTests {
         server.stopAndWait();
     }
 
+    // A message big enough that a few dozen of them fill up the buffers, numbered so the receiver can check the order.
+    private static Protos.TwoWayChannelMessage bigMessage(int number) {
+        return Protos.TwoWayChannelMessage.newBuilder()
+                .setType(Protos.TwoWayChannelMessage.MessageType.CHANNEL_OPEN)
+                .setClientVersion(Protos.ClientVersion.newBuilder()
+                        .setMajor(number)
+                        .setPreviousChannelContractHash(ByteString.copyFrom(new byte[50000])))
+                .build();
+    }
+
+    // A parser which sends messageCount big messages as soon as the connection opens, and ignores what it receives.
+    private static ProtobufParser<Protos.TwoWayChannelMessage> bigMessageSender(final int messageCount,
+                                                                               final SettableFuture<Void> connectionOpen) {
+        return new ProtobufParser<Protos.TwoWayChannelMessage>(new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+            @Override
+            public void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+            }
+
+            @Override
+            public void connectionOpen(ProtobufParser handler) {
+                for (int i = 0; i < messageCount; i++)
+                    handler.write(bigMessage(i));
+                connectionOpen.set(null);
+            }
+
+            @Override
+            public void connectionClosed(ProtobufParser handler) {
+            }
+        }, Protos.TwoWayChannelMessage.getDefaultInstance(), 0x10000, 0);
+    }
+
+    // A parser which doesn't handle any message until carryOn is counted down, then checks messageCount big messages
+    // arrive in order.
+    private ProtobufParser<Protos.TwoWayChannelMessage> slowBigMessageReceiver(final int messageCount,
+                                                                              final CountDownLatch carryOn,
+                                                                              final SettableFuture<Void> connectionOpen,
+                                                                              final SettableFuture<Void> allReceived) {
+        return new ProtobufParser<Protos.TwoWayChannelMessage>(new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+            private int received = 0;
+
+            @Override
+            public synchronized void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                try {
+                    carryOn.await();
+                } catch (InterruptedException e) {
+                    fail.set(true);
+                }
+                if (msg.getClientVersion().getMajor() != received++)
+                    fail.set(true);
+                if (received == messageCount)
+                    allReceived.set(null);
+            }
+
+            @Override
+            public void connectionOpen(ProtobufParser handler) {
+                connectionOpen.set(null);
+            }
+
+            @Override
+            public void connectionClosed(ProtobufParser handler) {
+            }
+        }, Protos.TwoWayChannelMessage.getDefaultInstance(), 0x10000, 0);
+    }
+
+    @Test
+    public void slowClientTest() throws Exception {
+        // Tests a client which is slow to handle messages still gets them all, in order, when the server sends more
+        // than the client manager will queue up before it stops reading.
+        final int messageCount = 2 * ConnectionHandler.MAX_QUEUED_INBOUND_BYTES / 50000;
+        final SettableFuture<Void> clientConnectionOpen = SettableFuture.create();
+        final SettableFuture<Void> allReceived = SettableFuture.create();
+        final CountDownLatch carryOn = new CountDownLatch(1);
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public ProtobufParser getNewParser(InetAddress inetAddress, int port) {
+                return bigMessageSender(messageCount, SettableFuture.<Void>create());
+            }
+        }, new InetSocketAddress("localhost", 4243));
+        server.startAndWait();
+
+        MessageWriteTarget client = openConnection(new InetSocketAddress("localhost", 4243),
+                slowBigMessageReceiver(messageCount, carryOn, clientConnectionOpen, allReceived));
+        clientConnectionOpen.get();
+        if (clientType == 0) {
+            // Messages are parsed on a processing executor, so while the listener is stuck the selector queues what
+            // it reads, until there's too much and it stops reading.
+            ConnectionHandler handler = (ConnectionHandler) client;
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!handler.isReadingPaused()) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            // No more than one read past the limit, however long the listener takes.
+            for (int i = 0; i < 10; i++) {
+                assertTrue(handler.isReadingPaused());
+                assertTrue(handler.getQueuedInboundBytes() >= ConnectionHandler.MAX_QUEUED_INBOUND_BYTES);
+                assertTrue(handler.getQueuedInboundBytes() <= ConnectionHandler.MAX_QUEUED_INBOUND_BYTES + 0x10000);
+                Thread.sleep(20);
+            }
+        } else
+            Thread.sleep(200);
+        carryOn.countDown();
+        allReceived.get();
+        if (clientType == 0)
+            assertFalse(((ConnectionHandler) client).isReadingPaused());
+
+        client.closeConnection();
+        server.stopAndWait();
+    }
+
+    @Test
+    public void parserErrorTest() throws Exception {
+        // Tests a connection whose listener throws an Error while messages are processed off the selector thread is
+        // closed, rather than left with nothing reading it.
+        if (clientType != 0)
+            return;
+        final SettableFuture<Void> clientConnectionOpen = SettableFuture.create();
+        final SettableFuture<Void> clientConnectionClosed = SettableFuture.create();
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public ProtobufParser getNewParser(InetAddress inetAddress, int port) {
+                return bigMessageSender(1, SettableFuture.<Void>create());
+            }
+        }, new InetSocketAddress("localhost", 4243));
+        server.startAndWait();
+
+        ProtobufParser<Protos.TwoWayChannelMessage> clientHandler = new ProtobufParser<Protos.TwoWayChannelMessage>(
+                new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufParser handler, Protos.TwoWayChannelMessage msg) {
+                        throw new StackOverflowError();
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufParser handler) {
+                        clientConnectionOpen.set(null);
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufParser handler) {
+                        clientConnectionClosed.set(null);
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 0x10000, 0);
+
+        openConnection(new InetSocketAddress("localhost", 4243), clientHandler);
+        clientConnectionOpen.get();
+        clientConnectionClosed.get();
+
+        server.stopAndWait();
+    }
+
+    @Test
+    public void sendQueueTest() throws Exception {
+        // Tests the send queue says it's full when a server stops reading, and drains once it starts again
+        if (clientType == 1 || clientType == 3)
+            return; // Blocking clients write as they go, so never have a queue
+        // Much more than the OS will buffer
+        final int messageCount = 20 * ConnectionHandler.SEND_QUEUE_HIGH_WATER_MARK / 50000;
+        final SettableFuture<Void> clientConnectionOpen = SettableFuture.create();
+        final SettableFuture<Void> allReceived = SettableFuture.create();
+        final CountDownLatch carryOn = new CountDownLatch(1);
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public ProtobufParser getNewParser(InetAddress inetAddress, int port) {
+                return slowBigMessageReceiver(messageCount, carryOn, SettableFuture.<Void>create(), allReceived);
+            }
+        }, new InetSocketAddress("localhost", 4243));
+        server.startAndWait();
+
+        ProtobufParser<Protos.TwoWayChannelMessage> clientHandler = bigMessageSender(0, clientConnectionOpen);
+        QueuedMessageWriteTarget client =
+                (QueuedMessageWriteTarget) openConnection(new InetSocketAddress("localhost", 4243), clientHandler);
+        clientConnectionOpen.get();
+        assertFalse(client.isSendQueueFull());
+        for (int i = 0; i < messageCount; i++)
+            clientHandler.write(bigMessage(i));
+        assertTrue(client.isSendQueueFull());
+        carryOn.countDown();
+        allReceived.get();
+        assertFalse(client.isSendQueueFull());
+
+        client.closeConnection();
+        server.stopAndWait();
+    }
+
     @Test
     public void largeDataTest() throws Exception {
         /** Test various large-data handling, essentially testing {@link ProtobufParser#receiveBytes(java.nio.ByteBuffer)} */
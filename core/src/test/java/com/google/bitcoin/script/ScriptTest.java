@@ -17,6 +17,7 @@
 package com.google.bitcoin.script;
 
 import com.google.bitcoin.core.*;
+import com.google.bitcoin.crypto.TransactionSignature;
 import com.google.bitcoin.params.MainNetParams;
 import com.google.bitcoin.params.TestNet3Params;
 import com.google.common.collect.Lists;
@@ -88,6 +89,31 @@ public class ScriptTest {
         // Actual execution is tested by the data driven tests.
     }
 
+    @Test
+    public void signatureChecksLeaveTransactionAlone() throws Exception {
+        ECKey key = new ECKey();
+        Script scriptPubKey = ScriptBuilder.createOutputScript(key);
+        for (Transaction.SigHash type : new Transaction.SigHash[] { Transaction.SigHash.ALL,
+                Transaction.SigHash.NONE, Transaction.SigHash.SINGLE }) {
+            for (boolean anyoneCanPay : new boolean[] { false, true }) {
+                Transaction tx = new Transaction(params);
+                for (int i = 0; i < 3; i++) {
+                    TransactionOutPoint outPoint = new TransactionOutPoint(params, i, Sha256Hash.create(new byte[] { (byte) i }));
+                    tx.addInput(new TransactionInput(params, tx, new byte[0], outPoint));
+                    tx.addOutput(Utils.toNanoCoins(i + 1, 0), key);
+                }
+                for (int i = 0; i < 3; i++) {
+                    TransactionSignature sig = tx.calculateSignature(i, key, scriptPubKey, type, anyoneCanPay);
+                    tx.getInput(i).setScriptSig(ScriptBuilder.createInputScript(sig));
+                }
+                byte[] bytes = tx.bitcoinSerialize();
+                for (int i = 0; i < 3; i++)
+                    tx.getInput(i).getScriptSig().correctlySpends(tx, i, scriptPubKey, true);
+                assertArrayEquals(bytes, tx.bitcoinSerialize());
+            }
+        }
+    }
+
     @Test
     public void testP2SHOutputScript() throws Exception {
       Address p2shAddress = new Address(MainNetParams.get(), "35b9vsyH1KoFT5a5KtrKusaCcPLkiSo1tU");
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredTransactionOutput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CachingFullPrunedBlockStoreTest {
+    private CountingStore backing;
+    private CachingFullPrunedBlockStore store;
+
+    // Counts the unspent output calls that reach the underlying store.
+    private static class CountingStore extends MemoryFullPrunedBlockStore {
+        int gets, adds, removes;
+
+        CountingStore(NetworkParameters params) {
+            super(params, 10);
+        }
+
+        @Override
+        public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+            gets++;
+            return super.getTransactionOutput(hash, index);
+        }
+
+        @Override
+        public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+            adds++;
+            super.addUnspentTransactionOutput(out);
+        }
+
+        @Override
+        public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+            removes++;
+            super.removeUnspentTransactionOutput(out);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        backing = new CountingStore(UnitTestParams.get());
+        store = new CachingFullPrunedBlockStore(backing, 4);
+    }
+
+    private static StoredTransactionOutput output(int n, int index) {
+        Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) n });
+        return new StoredTransactionOutput(hash, index, BigInteger.valueOf(n), 1, false, new byte[0]);
+    }
+
+    @Test
+    public void spentInSameBatch() throws Exception {
+        StoredTransactionOutput out = output(1, 0);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        assertEquals(out, store.getTransactionOutput(out.getHash(), 0));
+        assertTrue(store.hasUnspentOutputs(out.getHash(), 1));
+        store.removeUnspentTransactionOutput(out);
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+        store.commitDatabaseBatchWrite();
+        assertEquals(0, backing.adds);
+        assertEquals(0, backing.removes);
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+        assertFalse(store.hasUnspentOutputs(out.getHash(), 1));
+    }
+
+    @Test
+    public void commitAndAbort() throws Exception {
+        StoredTransactionOutput a = output(1, 0), b = output(1, 1);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        assertEquals(0, backing.adds);
+        store.commitDatabaseBatchWrite();
+        assertEquals(2, backing.adds);
+        assertEquals(a, backing.getTransactionOutput(a.getHash(), 0));
+
+        // Committed outputs are answered from memory.
+        backing.gets = 0;
+        assertEquals(b, store.getTransactionOutput(b.getHash(), 1));
+        assertEquals(0, backing.gets);
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        assertTrue(store.hasUnspentOutputs(a.getHash(), 2));
+        store.removeUnspentTransactionOutput(b);
+        assertFalse(store.hasUnspentOutputs(a.getHash(), 2));
+        store.addUnspentTransactionOutput(output(2, 0));
+        store.abortDatabaseBatchWrite();
+        assertEquals(a, store.getTransactionOutput(a.getHash(), 0));
+        assertEquals(b, store.getTransactionOutput(b.getHash(), 1));
+        assertNull(store.getTransactionOutput(output(2, 0).getHash(), 0));
+        assertEquals(2, backing.adds);
+        assertEquals(0, backing.removes);
+    }
+
+    @Test
+    public void getTransactionOutputs() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        StoredTransactionOutput a = output(1, 0), b = output(2, 0), c = output(3, 0);
+        store.addUnspentTransactionOutput(a);
+        backing.addUnspentTransactionOutput(b);
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(c);
+        backing.gets = 0;
+        List<StoredTransactionOutput> outputs = store.getTransactionOutputs(Arrays.asList(
+                new TransactionOutPoint(params, 0, a.getHash()), new TransactionOutPoint(params, 0, b.getHash()),
+                new TransactionOutPoint(params, 0, c.getHash()), new TransactionOutPoint(params, 1, c.getHash())));
+        assertEquals(Arrays.asList(null, b, c, null), outputs);
+        // Only b and the missing output were looked up in the underlying store.
+        assertEquals(2, backing.gets);
+        store.commitDatabaseBatchWrite();
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void removeMissing() throws Exception {
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(output(1, 0));
+    }
+
+    @Test
+    public void largeBatch() throws Exception {
+        // More changes than the cache holds are written to the underlying store before the batch ends.
+        store.beginDatabaseBatchWrite();
+        for (int i = 0; i < 10; i++)
+            store.addUnspentTransactionOutput(output(i, 0));
+        assertTrue(backing.adds > 0);
+        store.removeUnspentTransactionOutput(output(0, 0));
+        store.removeUnspentTransactionOutput(output(9, 0));
+        assertNull(store.getTransactionOutput(output(0, 0).getHash(), 0));
+        assertFalse(store.hasUnspentOutputs(output(0, 0).getHash(), 1));
+        store.commitDatabaseBatchWrite();
+        for (int i = 1; i < 9; i++)
+            assertEquals(output(i, 0), backing.getTransactionOutput(output(i, 0).getHash(), 0));
+        assertNull(backing.getTransactionOutput(output(0, 0).getHash(), 0));
+        assertNull(backing.getTransactionOutput(output(9, 0).getHash(), 0));
+        assertNull(store.getTransactionOutput(output(9, 0).getHash(), 0));
+        assertEquals(output(5, 0), store.getTransactionOutput(output(5, 0).getHash(), 0));
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FullHistoryBlockStoreTest {
+    private NetworkParameters params;
+    private File f;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        f = File.createTempFile("fullhistoryblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        new File(f.getPath() + ".heights").deleteOnExit();
+        new File(f.getPath() + ".hashes").deleteOnExit();
+    }
+
+    // Extends the chain by one block without solving it, which the store doesn't check.
+    private static StoredBlock next(StoredBlock prev, int nonce) throws Exception {
+        Block prevHeader = prev.getHeader();
+        Block header = new Block(prevHeader.getParams(), prevHeader.getVersion(), prevHeader.getHash(),
+                prevHeader.getMerkleRoot(), prevHeader.getTimeSeconds() + 60, prevHeader.getDifficultyTarget(), nonce,
+                Collections.<Transaction>emptyList()).cloneAsHeader();
+        return prev.build(header);
+    }
+
+    @Test
+    public void basics() throws Exception {
+        FullHistoryBlockStore store = new FullHistoryBlockStore(params, f);
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(params.getGenesisBlock(), genesis.getHeader());
+        assertEquals(genesis, store.getByHeight(0));
+        assertNull(store.getByHeight(1));
+
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(new ECKey().toAddress(params)).cloneAsHeader());
+        store.put(b1);
+        store.put(b1);
+        store.setChainHead(b1);
+        assertEquals(2, store.size());
+        store.close();
+
+        store = new FullHistoryBlockStore(params, f);
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        assertEquals(b1, store.getChainHead());
+        assertEquals(b1, store.getByHeight(1));
+        assertEquals(genesis, store.getByHeight(0));
+        store.close();
+    }
+
+    @Test
+    public void keepsEverythingAcrossReorgs() throws Exception {
+        FullHistoryBlockStore store = new FullHistoryBlockStore(params, f);
+        // Enough blocks to grow all three files several times.
+        List<StoredBlock> main = new ArrayList<StoredBlock>();
+        main.add(store.getChainHead());
+        for (int i = 1; i <= 5000; i++) {
+            StoredBlock block = next(main.get(i - 1), i);
+            store.put(block);
+            store.setChainHead(block);
+            main.add(block);
+        }
+        // A side chain from height 4000 which then becomes the best chain.
+        List<StoredBlock> side = new ArrayList<StoredBlock>(main.subList(0, 4001));
+        for (int i = 4001; i <= 5010; i++) {
+            StoredBlock block = next(side.get(i - 1), -i);
+            store.put(block);
+            side.add(block);
+        }
+        assertEquals(main.get(4500), store.getByHeight(4500));
+        store.setChainHead(side.get(5010));
+        for (int height = 0; height <= 5010; height += 7)
+            assertEquals(side.get(height), store.getByHeight(height));
+        assertNull(store.getByHeight(5011));
+
+        // And back to a shorter chain.
+        store.setChainHead(main.get(4990));
+        assertEquals(main.get(4500), store.getByHeight(4500));
+        assertNull(store.getByHeight(4991));
+        store.close();
+
+        // Reopen normally, and then after forcing the indexes to be rebuilt. Nothing was forgotten.
+        for (int pass = 0; pass < 2; pass++) {
+            store = new FullHistoryBlockStore(params, f);
+            assertEquals(main.get(4990), store.getChainHead());
+            assertEquals(5000 + 1010 + 1, store.size());
+            for (int height = 0; height <= 4990; height++)
+                assertEquals(main.get(height), store.getByHeight(height));
+            for (StoredBlock block : main)
+                assertEquals(block, store.get(block.getHeader().getHash()));
+            for (StoredBlock block : side)
+                assertEquals(block, store.get(block.getHeader().getHash()));
+            assertNull(store.get(next(main.get(5000), 0).getHeader().getHash()));
+            store.close();
+            RandomAccessFile file = new RandomAccessFile(f, "rw");
+            file.seek(FullHistoryBlockStore.INDEX_STATE_OFFSET);
+            file.writeInt(FullHistoryBlockStore.INDEX_DIRTY);
+            file.close();
+            file = new RandomAccessFile(f.getPath() + ".heights", "rw");
+            file.write(new byte[4096]);
+            file.close();
+            file = new RandomAccessFile(f.getPath() + ".hashes", "rw");
+            file.write(new byte[4096]);
+            file.close();
+        }
+    }
+
+    @Test
+    public void rebuildsIndexWithShortHashes() throws Exception {
+        FullHistoryBlockStore store = new FullHistoryBlockStore(params, f);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        blocks.add(store.getChainHead());
+        for (int i = 1; i <= 100; i++) {
+            StoredBlock block = next(blocks.get(i - 1), i);
+            store.put(block);
+            store.setChainHead(block);
+            blocks.add(block);
+        }
+        store.close();
+
+        // Stores written before the hash index held whole hashes were closed with this mark, and their slots don't
+        // line up with the current ones.
+        RandomAccessFile file = new RandomAccessFile(f, "rw");
+        file.seek(FullHistoryBlockStore.INDEX_STATE_OFFSET);
+        file.writeInt(0x494e4458);  // "INDX"
+        file.close();
+        file = new RandomAccessFile(f.getPath() + ".hashes", "rw");
+        file.setLength(0);
+        file.write(new byte[2048 * 12]);
+        file.close();
+
+        store = new FullHistoryBlockStore(params, f);
+        for (StoredBlock block : blocks)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        assertNull(store.get(next(blocks.get(100), 0).getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void startsFromCheckpoint() throws Exception {
+        FullHistoryBlockStore store = new FullHistoryBlockStore(params, f);
+        // Like CheckpointManager, put a block far from genesis and make it the chain head.
+        Block header = params.getGenesisBlock().cloneAsHeader();
+        header.setNonce(42);
+        StoredBlock checkpoint = new StoredBlock(header, header.getWork(), 1000);
+        store.put(checkpoint);
+        store.setChainHead(checkpoint);
+        StoredBlock b1001 = next(checkpoint, 1);
+        store.put(b1001);
+        store.setChainHead(b1001);
+        assertNull(store.getByHeight(0));
+        assertNull(store.getByHeight(999));
+        assertEquals(checkpoint, store.getByHeight(1000));
+        assertEquals(b1001, store.getByHeight(1001));
+        store.close();
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class LogFullPrunedBlockStoreTest {
+    private NetworkParameters params;
+    private File directory, copy;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        directory = Files.createTempDir();
+        copy = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (File dir : new File[] { directory, copy }) {
+            File[] files = dir.listFiles();
+            if (files != null)
+                for (File file : files)
+                    file.delete();
+            dir.delete();
+        }
+    }
+
+    private static StoredTransactionOutput output(int n, int index) {
+        Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) n, (byte) (n >> 8) });
+        return new StoredTransactionOutput(hash, index, BigInteger.valueOf(n), 1, false, new byte[] { (byte) n });
+    }
+
+    private static StoredBlock next(StoredBlock prev, int nonce) throws Exception {
+        Block prevHeader = prev.getHeader();
+        Block header = new Block(prevHeader.getParams(), prevHeader.getVersion(), prevHeader.getHash(),
+                prevHeader.getMerkleRoot(), prevHeader.getTimeSeconds() + 60, prevHeader.getDifficultyTarget(), nonce,
+                Collections.<Transaction>emptyList()).cloneAsHeader();
+        return prev.build(header);
+    }
+
+    @Test
+    public void basics() throws Exception {
+        LogFullPrunedBlockStore store = new LogFullPrunedBlockStore(params, directory, 10);
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(params.getGenesisBlock().getHash(), genesis.getHeader().getHash());
+        assertEquals(genesis, store.getVerifiedChainHead());
+        assertNotNull(store.getUndoBlock(genesis.getHeader().getHash()));
+
+        StoredBlock b1 = next(genesis, 1000);
+        StoredTransactionOutput a = output(1, 0), b = output(1, 1);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.put(b1, new StoredUndoableBlock(b1.getHeader().getHash(), new TransactionOutputChanges(
+                Collections.singletonList(a), Collections.<StoredTransactionOutput>emptyList())));
+        store.setVerifiedChainHead(b1);
+        store.commitDatabaseBatchWrite();
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.commitDatabaseBatchWrite();
+        try {
+            store.removeUnspentTransactionOutput(a);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        store.close();
+
+        store = new LogFullPrunedBlockStore(params, directory, 10);
+        assertEquals(b1, store.getChainHead());
+        assertEquals(b1, store.getVerifiedChainHead());
+        assertEquals(b1, store.getOnceUndoableStoredBlock(b1.getHeader().getHash()));
+        assertEquals(a, store.getUndoBlock(b1.getHeader().getHash()).getTxOutChanges().txOutsCreated.get(0));
+        assertNull(store.getTransactionOutput(a.getHash(), 0));
+        StoredTransactionOutput readB = store.getTransactionOutput(b.getHash(), 1);
+        assertEquals(b, readB);
+        assertEquals(b.getValue(), readB.getValue());
+        assertArrayEquals(b.getScriptBytes(), readB.getScriptBytes());
+        assertTrue(store.hasUnspentOutputs(a.getHash(), 2));
+        assertFalse(store.hasUnspentOutputs(a.getHash(), 1));
+        store.close();
+    }
+
+    @Test
+    public void abort() throws Exception {
+        LogFullPrunedBlockStore store = new LogFullPrunedBlockStore(params, directory, 10, 1024);
+        StoredBlock genesis = store.getChainHead();
+        StoredTransactionOutput a = output(1, 0);
+        store.addUnspentTransactionOutput(a);
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        // Enough to need more segments.
+        for (int i = 2; i < 100; i++)
+            store.addUnspentTransactionOutput(output(i, 0));
+        store.setChainHead(next(genesis, 1000));
+        store.abortDatabaseBatchWrite();
+        assertEquals(genesis, store.getChainHead());
+        assertEquals(a, store.getTransactionOutput(a.getHash(), 0));
+        assertNull(store.getTransactionOutput(output(2, 0).getHash(), 0));
+        StoredTransactionOutput b = output(100, 0);
+        store.addUnspentTransactionOutput(b);
+        store.close();
+
+        store = new LogFullPrunedBlockStore(params, directory, 10, 1024);
+        assertEquals(genesis, store.getChainHead());
+        assertEquals(a, store.getTransactionOutput(a.getHash(), 0));
+        assertEquals(b, store.getTransactionOutput(b.getHash(), 0));
+        assertNull(store.getTransactionOutput(output(2, 0).getHash(), 0));
+        store.close();
+    }
+
+    @Test
+    public void crashDuringBatch() throws Exception {
+        LogFullPrunedBlockStore store = new LogFullPrunedBlockStore(params, directory, 10, 1024);
+        StoredTransactionOutput a = output(1, 0);
+        store.addUnspentTransactionOutput(a);
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        for (int i = 2; i < 100; i++)
+            store.addUnspentTransactionOutput(output(i, 0));
+        // What the disk looks like if the process dies now.
+        for (File file : directory.listFiles())
+            if (file.getName().endsWith(".log"))
+                Files.copy(file, new File(copy, file.getName()));
+        store.close();
+
+        store = new LogFullPrunedBlockStore(params, copy, 10, 1024);
+        assertEquals(a, store.getTransactionOutput(a.getHash(), 0));
+        assertNull(store.getTransactionOutput(output(2, 0).getHash(), 0));
+        StoredTransactionOutput b = output(100, 0);
+        store.addUnspentTransactionOutput(b);
+        store.close();
+
+        store = new LogFullPrunedBlockStore(params, copy, 10, 1024);
+        assertEquals(a, store.getTransactionOutput(a.getHash(), 0));
+        assertEquals(b, store.getTransactionOutput(b.getHash(), 0));
+        assertNull(store.getTransactionOutput(output(99, 0).getHash(), 0));
+        store.close();
+    }
+
+    @Test
+    public void tornBatch() throws Exception {
+        LogFullPrunedBlockStore store = new LogFullPrunedBlockStore(params, directory, 10, 1024);
+        StoredTransactionOutput a = output(1, 0);
+        store.addUnspentTransactionOutput(a);
+        // A batch spread over several segments.
+        store.beginDatabaseBatchWrite();
+        for (int i = 2; i < 100; i++)
+            store.addUnspentTransactionOutput(output(i, 0));
+        store.commitDatabaseBatchWrite();
+        store.close();
+
+        // The pages at the end of a segment in the middle of the batch never reached the disk, but the following
+        // segments, including the one with the commit, did.
+        List<String> names = new ArrayList<String>();
+        for (File file : directory.listFiles())
+            if (file.getName().endsWith(".log"))
+                names.add(file.getName());
+        Collections.sort(names);
+        assertTrue(names.size() >= 4);
+        for (String name : names)
+            Files.copy(new File(directory, name), new File(copy, name));
+        RandomAccessFile torn = new RandomAccessFile(new File(copy, names.get(names.size() - 2)), "rw");
+        torn.seek(512);
+        torn.write(new byte[512]);
+        torn.close();
+
+        store = new LogFullPrunedBlockStore(params, copy, 10, 1024);
+        assertEquals(a, store.getTransactionOutput(a.getHash(), 0));
+        for (int i = 2; i < 100; i++)
+            assertNull(store.getTransactionOutput(output(i, 0).getHash(), 0));
+        StoredTransactionOutput b = output(100, 0);
+        store.addUnspentTransactionOutput(b);
+        store.close();
+
+        store = new LogFullPrunedBlockStore(params, copy, 10, 1024);
+        assertEquals(a, store.getTransactionOutput(a.getHash(), 0));
+        assertEquals(b, store.getTransactionOutput(b.getHash(), 0));
+        assertNull(store.getTransactionOutput(output(99, 0).getHash(), 0));
+        store.close();
+    }
+
+    @Test
+    public void retiredSegmentsAreDeletedOnOpen() throws Exception {
+        LogFullPrunedBlockStore store = new LogFullPrunedBlockStore(params, directory, 10, 1024);
+        StoredTransactionOutput a = output(1, 0);
+        store.addUnspentTransactionOutput(a);
+        store.beginDatabaseBatchWrite();
+        for (int i = 2; i < 100; i++)
+            store.addUnspentTransactionOutput(output(i, 0));
+        for (File file : directory.listFiles())
+            if (file.getName().endsWith(".log"))
+                Files.copy(file, new File(copy, file.getName()));
+        store.abortDatabaseBatchWrite();
+        StoredTransactionOutput b = output(100, 0);
+        store.addUnspentTransactionOutput(b);
+        store.close();
+
+        // As if the segments the aborted batch wrote couldn't be deleted because they were still mapped.
+        RandomAccessFile retired = new RandomAccessFile(new File(directory, "retired"), "rw");
+        List<File> leftOver = new ArrayList<File>();
+        for (File file : copy.listFiles()) {
+            File original = new File(directory, file.getName());
+            if (!original.exists()) {
+                Files.copy(file, original);
+                leftOver.add(original);
+                retired.writeInt(Integer.parseInt(file.getName().substring(0, 8)));
+            }
+        }
+        retired.close();
+        assertFalse(leftOver.isEmpty());
+
+        store = new LogFullPrunedBlockStore(params, directory, 10, 1024);
+        for (File file : leftOver)
+            assertFalse(file.exists());
+        assertEquals(0, new File(directory, "retired").length());
+        assertEquals(a, store.getTransactionOutput(a.getHash(), 0));
+        assertEquals(b, store.getTransactionOutput(b.getHash(), 0));
+        assertNull(store.getTransactionOutput(output(2, 0).getHash(), 0));
+        store.close();
+    }
+
+    @Test
+    public void compactionWithUndeletableSegment() throws Exception {
+        // The first, and then the second, of the compacted segments can't be deleted or listed as retired.
+        for (int failing = 0; failing < 2; failing++) {
+            File dir = failing == 0 ? directory : copy;
+            final Set<String> undeletable = new HashSet<String>();
+            LogFullPrunedBlockStore store = new LogFullPrunedBlockStore(params, dir, 10, 1024) {
+                @Override
+                boolean deleteFile(File file) {
+                    return !undeletable.contains(file.getName()) && super.deleteFile(file);
+                }
+            };
+            // Outputs added in the first segments and removed in later ones.
+            store.beginDatabaseBatchWrite();
+            for (int i = 0; i < 100; i++)
+                store.addUnspentTransactionOutput(output(i, failing));
+            store.commitDatabaseBatchWrite();
+            List<String> names = new ArrayList<String>();
+            for (File file : dir.listFiles())
+                if (file.getName().endsWith(".log"))
+                    names.add(file.getName());
+            Collections.sort(names);
+            assertTrue(names.size() >= 4);
+            undeletable.add(names.get(failing));
+            // Where the segment would be listed is a directory, so that fails too.
+            File retired = new File(dir, "retired");
+            assertTrue(retired.mkdir());
+            // Committing this may compact some segments already.
+            store.beginDatabaseBatchWrite();
+            for (int i = 0; i < 100; i++)
+                store.removeUnspentTransactionOutput(output(i, failing));
+            StoredTransactionOutput kept = output(200, failing);
+            store.addUnspentTransactionOutput(kept);
+            store.commitDatabaseBatchWrite();
+            store.compact();
+            assertTrue(new File(dir, names.get(failing)).exists());
+            for (int i = failing + 1; i < names.size(); i++)
+                assertTrue(new File(dir, names.get(i)).exists());
+            assertNull(store.getTransactionOutput(output(0, failing).getHash(), failing));
+            store.close();
+            assertTrue(retired.delete());
+
+            store = new LogFullPrunedBlockStore(params, dir, 10, 1024);
+            for (int i = 0; i < 100; i++)
+                assertNull(store.getTransactionOutput(output(i, failing).getHash(), failing));
+            assertEquals(kept, store.getTransactionOutput(kept.getHash(), failing));
+            // Once it can, the next compaction gets rid of what was left.
+            store.compact();
+            for (String name : names)
+                assertFalse(new File(dir, name).exists());
+            store.close();
+
+            store = new LogFullPrunedBlockStore(params, dir, 10, 1024);
+            for (int i = 0; i < 100; i++)
+                assertNull(store.getTransactionOutput(output(i, failing).getHash(), failing));
+            assertEquals(kept, store.getTransactionOutput(kept.getHash(), failing));
+            store.close();
+        }
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        LogFullPrunedBlockStore store = new LogFullPrunedBlockStore(params, directory, 10, 1024);
+        StoredBlock block = store.getChainHead();
+        // Each output is replaced many times, and only the last one is kept after compaction.
+        for (int round = 0; round < 20; round++) {
+            store.beginDatabaseBatchWrite();
+            for (int i = 0; i < 50; i++) {
+                if (round > 0)
+                    store.removeUnspentTransactionOutput(output(i, round - 1));
+                store.addUnspentTransactionOutput(output(i, round));
+            }
+            block = next(block, 1000 + round);
+            store.put(block, new StoredUndoableBlock(block.getHeader().getHash(),
+                    Collections.<Transaction>emptyList()));
+            store.setVerifiedChainHead(block);
+            store.commitDatabaseBatchWrite();
+        }
+        // About 200KB was written, but much less is still in use.
+        store.compact();
+        assertTrue(directory.listFiles().length < 30);
+        store.close();
+
+        store = new LogFullPrunedBlockStore(params, directory, 10, 1024);
+        assertEquals(block, store.getChainHead());
+        for (int i = 0; i < 50; i++) {
+            assertNull(store.getTransactionOutput(output(i, 18).getHash(), 18));
+            assertEquals(output(i, 19), store.getTransactionOutput(output(i, 19).getHash(), 19));
+        }
+        // Only the last few undoable blocks are kept.
+        assertNull(store.getUndoBlock(params.getGenesisBlock().getHash()));
+        assertEquals(block, store.getOnceUndoableStoredBlock(block.getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(block.getHeader().getHash()));
+        store.close();
+    }
+}
@@ -16,16 +16,24 @@
 
 package com.google.bitcoin.store;
 
-import com.google.bitcoin.core.Address;
-import com.google.bitcoin.core.ECKey;
-import com.google.bitcoin.core.NetworkParameters;
-import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.*;
 import com.google.bitcoin.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class SPVBlockStoreTest {
 
@@ -58,4 +66,260 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void powHashIsStored() throws Exception {
+        final AtomicInteger powHashes = new AtomicInteger();
+        NetworkParameters params = new UnitTestParams() {
+            @Override
+            public Sha256Hash calculateBlockPoWHash(Block b) {
+                powHashes.incrementAndGet();
+                return super.calculateBlockPoWHash(b);
+            }
+        };
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(new ECKey().toAddress(params)).cloneAsHeader());
+        store.put(b1);
+        store.setChainHead(b1);
+        store.close();
+
+        // Reloading the block and verifying its header again doesn't need to recalculate the PoW hash.
+        powHashes.set(0);
+        store = new SPVBlockStore(params, f);
+        StoredBlock b2 = store.get(b1.getHeader().getHash());
+        assertEquals(b1.getHeader().getPoWHash(), b2.getHeader().getPoWHash());
+        b2.getHeader().verifyHeader();
+        assertEquals(0, powHashes.get());
+        store.close();
+    }
+
+    @Test
+    public void opensStoreWithoutPoWHashes() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.deleteOnExit();
+        // Write a store in the format used before PoW hashes were stored, holding only the genesis block.
+        Block genesisHeader = params.getGenesisBlock().cloneAsHeader();
+        StoredBlock genesis = new StoredBlock(genesisHeader, genesisHeader.getWork(), 0);
+        ByteBuffer buffer = ByteBuffer.allocate(SPVBlockStore.RECORD_SIZE * SPVBlockStore.DEFAULT_NUM_HEADERS +
+                SPVBlockStore.FILE_PROLOGUE_BYTES);
+        buffer.put(SPVBlockStore.HEADER_MAGIC.getBytes("US-ASCII"));
+        buffer.putInt(SPVBlockStore.FILE_PROLOGUE_BYTES + SPVBlockStore.RECORD_SIZE);
+        buffer.put(genesisHeader.getHash().getBytes());
+        buffer.position(SPVBlockStore.FILE_PROLOGUE_BYTES);
+        buffer.put(genesisHeader.getHash().getBytes());
+        genesis.serializeCompact(buffer);
+        RandomAccessFile file = new RandomAccessFile(f, "rw");
+        file.write(buffer.array());
+        file.close();
+
+        SPVBlockStore store = new SPVBlockStore(params, f);
+        assertEquals(genesis, store.getChainHead());
+        StoredBlock b1 = genesis.build(genesisHeader.createNextBlock(new ECKey().toAddress(params)).cloneAsHeader());
+        store.put(b1);
+        store.setChainHead(b1);
+        store.close();
+
+        store = new SPVBlockStore(params, f);
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        assertEquals(b1, store.getChainHead());
+        store.close();
+    }
+
+    private static StoredBlock fakeBlock(NetworkParameters params, int height) {
+        Block header = params.getGenesisBlock().cloneAsHeader();
+        header.setNonce(height);
+        return new StoredBlock(header, header.getWork(), height);
+    }
+
+    @Test
+    public void indexFollowsRing() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f);
+        // Wrap around the ring, putting some blocks twice.
+        List<Integer> puts = new ArrayList<Integer>();
+        for (int i = 1; i <= SPVBlockStore.DEFAULT_NUM_HEADERS + 1500; i++) {
+            puts.add(i);
+            if (i % 100 == 0)
+                puts.add(i - 50);
+        }
+        for (int height : puts)
+            store.put(fakeBlock(params, height));
+        store.close();
+        Set<Integer> inRing = new HashSet<Integer>(puts.subList(puts.size() - SPVBlockStore.DEFAULT_NUM_HEADERS,
+                puts.size()));
+
+        // Clear the in-memory caches by reopening, then check what's still in the ring can be found and what isn't
+        // can't. Then do it again after forcing the index to be rebuilt.
+        for (int pass = 0; pass < 2; pass++) {
+            store = new SPVBlockStore(params, f);
+            for (int height : puts) {
+                StoredBlock block = store.get(fakeBlock(params, height).getHeader().getHash());
+                if (inRing.contains(height))
+                    assertEquals(fakeBlock(params, height), block);
+                else
+                    assertNull(block);
+            }
+            store.close();
+            RandomAccessFile file = new RandomAccessFile(f, "rw");
+            file.seek(SPVBlockStore.INDEX_STATE_OFFSET);
+            file.writeInt(SPVBlockStore.INDEX_DIRTY);
+            file.seek(SPVBlockStore.FILE_PROLOGUE_BYTES +
+                    SPVBlockStore.RECORD_SIZE_WITH_POW_HASH * SPVBlockStore.DEFAULT_NUM_HEADERS);
+            file.write(new byte[4096]);
+            file.close();
+        }
+    }
+
+    @Test
+    public void resize() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f, 100);
+        for (int i = 1; i <= 250; i++)
+            store.put(fakeBlock(params, i));
+        store.setChainHead(fakeBlock(params, 250));
+        store.close();
+
+        // Growing keeps everything, and new blocks don't overwrite any of it until the new space is used up.
+        store = new SPVBlockStore(params, f, 300);
+        assertEquals(300, store.getNumHeaders());
+        for (int i = 251; i <= 400; i++)
+            store.put(fakeBlock(params, i));
+        for (int i = 1; i <= 400; i++)
+            assertEquals(i > 150 ? fakeBlock(params, i) : null, store.get(fakeBlock(params, i).getHeader().getHash()));
+        store.close();
+
+        // Opening without a size keeps the recorded one.
+        store = new SPVBlockStore(params, f);
+        assertEquals(300, store.getNumHeaders());
+        assertEquals(fakeBlock(params, 250), store.getChainHead());
+        store.close();
+
+        // Shrinking keeps the newest blocks.
+        store = new SPVBlockStore(params, f, 50);
+        assertEquals(50, store.getNumHeaders());
+        assertEquals(store.getFileSize(), f.length());
+        for (int i = 1; i <= 400; i++)
+            assertEquals(i > 350 ? fakeBlock(params, i) : null, store.get(fakeBlock(params, i).getHeader().getHash()));
+        for (int i = 401; i <= 420; i++)
+            store.put(fakeBlock(params, i));
+        store.close();
+        store = new SPVBlockStore(params, f);
+        for (int i = 351; i <= 420; i++)
+            assertEquals(i > 370 ? fakeBlock(params, i) : null, store.get(fakeBlock(params, i).getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void corruptNumHeaders() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f, 100);
+        store.put(fakeBlock(params, 1));
+        store.setChainHead(fakeBlock(params, 1));
+        store.close();
+
+        for (int corrupt : new int[] { -1, SPVBlockStore.MAX_NUM_HEADERS + 1, Integer.MAX_VALUE }) {
+            RandomAccessFile file = new RandomAccessFile(f, "rw");
+            file.seek(SPVBlockStore.NUM_HEADERS_OFFSET);
+            file.writeInt(corrupt);
+            file.close();
+            // The file is started over rather than mapped at the size it claims.
+            store = new SPVBlockStore(params, f);
+            assertEquals(SPVBlockStore.DEFAULT_NUM_HEADERS, store.getNumHeaders());
+            assertEquals(store.getFileSize(), f.length());
+            assertEquals(params.getGenesisBlock(), store.getChainHead().getHeader());
+            assertNull(store.get(fakeBlock(params, 1).getHeader().getHash()));
+            store.close();
+        }
+    }
+
+    @Test
+    public void resizeUnwrappedStore() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        // The default store, which has only ever had a few blocks put into it.
+        SPVBlockStore store = new SPVBlockStore(params, f);
+        for (int i = 1; i <= 30; i++)
+            store.put(fakeBlock(params, i));
+        store.close();
+
+        store = new SPVBlockStore(params, f, 20);
+        assertEquals(null, store.get(params.getGenesisBlock().getHash()));
+        for (int i = 1; i <= 30; i++)
+            assertEquals(i > 10 ? fakeBlock(params, i) : null, store.get(fakeBlock(params, i).getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void readsWhileWriting() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        final SPVBlockStore store = new SPVBlockStore(params, f, 1000);
+        // Made up front, so the threads only share the store and the blocks are only hashed once.
+        // The nonces start well above that of the genesis block, so none of them is the genesis block again.
+        final StoredBlock[] blocks = new StoredBlock[20004];
+        for (int i = 1; i < blocks.length; i++) {
+            blocks[i] = fakeBlock(params, 1000000 + i);
+            blocks[i].getHeader().getHash();
+        }
+        final AtomicInteger written = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        // Readers look up blocks that were put recently and so must be found, and blocks that may not have been put
+        // yet, which then mustn't be remembered as missing once they have been.
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            final Random random = new Random(t);
+            readers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (written.get() < 20000) {
+                            int newest = written.get();
+                            int height = Math.max(1, newest - random.nextInt(500));
+                            if (newest > 0) {
+                                StoredBlock block = store.get(blocks[height].getHeader().getHash());
+                                // Unless so many more were put in the meantime that it's been overwritten.
+                                if (block != null || written.get() - height < 1000)
+                                    assertEquals(blocks[height], block);
+                            }
+                            height = newest + 1 + random.nextInt(3);
+                            StoredBlock block = store.get(blocks[height].getHeader().getHash());
+                            assertTrue(block == null || block.equals(blocks[height]));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        for (int i = 1; i <= 20000; i++) {
+            store.put(blocks[i]);
+            written.set(i);
+        }
+        for (Thread reader : readers)
+            reader.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        for (int i = 19001; i <= 20000; i++)
+            assertEquals(blocks[i], store.get(blocks[i].getHeader().getHash()));
+        store.close();
+    }
 }
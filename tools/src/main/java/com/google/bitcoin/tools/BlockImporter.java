@@ -12,7 +12,7 @@ import java.io.File;
 /** Very thin wrapper around {@link com.google.bitcoin.utils.BlockFileLoader} */
 public class BlockImporter {
     public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException {
-        System.out.println("USAGE: BlockImporter (prod|test) (H2|Disk|MemFull|Mem|SPV) [blockStore]");
+        System.out.println("USAGE: BlockImporter (prod|test) (H2|Log|Disk|MemFull|Mem|SPV) [blockStore]");
         System.out.println("       blockStore is required unless type is Mem or MemFull");
         System.out.println("       eg BlockImporter prod H2 /home/user/bitcoinj.h2store");
         System.out.println("       Does full verification if the store supports it");
@@ -28,6 +28,9 @@ public class BlockImporter {
         if (args[1].equals("H2")) {
             Preconditions.checkArgument(args.length == 3);
             store = new H2FullPrunedBlockStore(params, args[2], 100);
+        } else if (args[1].equals("Log")) {
+            Preconditions.checkArgument(args.length == 3);
+            store = new LogFullPrunedBlockStore(params, new File(args[2]), 100);
         } else if (args[1].equals("MemFull")) {
             Preconditions.checkArgument(args.length == 2);
             store = new MemoryFullPrunedBlockStore(params, 100);
@@ -50,7 +53,13 @@ public class BlockImporter {
         
         BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
         
+        long start = System.currentTimeMillis();
         for (Block block : loader)
             chain.add(block);
+        System.out.printf("Imported to height %d in %d seconds%n", chain.getBestChainHeight(),
+                (System.currentTimeMillis() - start) / 1000);
+        if (SignatureCache.getDefault() != null)
+            System.out.println(SignatureCache.getDefault());
+        store.close();
     }
 }
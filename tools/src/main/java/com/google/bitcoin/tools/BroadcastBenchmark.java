@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Measures the CPU time spent turning a message into bytes to send when it goes to many peers, as when a transaction
+ * is broadcast or the same transaction or block is asked for by every peer with getdata. Compares serializing it
+ * for each peer, as PeerSocketHandler used to, with serializing it to a {@link WireFrame} once and sharing that.</p>
+ *
+ * <p>The transactions and block come from core/src/test/resources/com/google/bitcoin/core/block169482.dat. Only
+ * the serialization is measured, not the socket writes, which cost the same either way.</p>
+ */
+public class BroadcastBenchmark {
+    private static final int ROUNDS = 200;
+    private static final int[] PEERS = { 1, 8, 32, 125 };
+
+    public static void main(String[] args) throws Exception {
+        NetworkParameters params = MainNetParams.get();
+        byte[] blockBytes = Files.toByteArray(new File("core/src/test/resources/com/google/bitcoin/core/block169482.dat"));
+        Block block = new Block(params, blockBytes);
+        List<byte[]> txs = new ArrayList<byte[]>();
+        for (Transaction tx : block.getTransactions())
+            txs.add(tx.bitcoinSerialize());
+        System.out.printf("%d transactions of %,d bytes on average, block of %,d bytes%n", txs.size(),
+                (blockBytes.length - 80) / txs.size(), blockBytes.length);
+
+        BitcoinSerializer serializer = new BitcoinSerializer(params);
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        for (int peers : PEERS) {
+            // Warm up, then measure.
+            for (int pass = 0; pass < 2; pass++) {
+                long[] tx = run(params, serializer, bean, txs, peers);
+                long[] blk = run(params, serializer, bean, blockBytes, peers);
+                if (pass == 1) {
+                    int txCount = ROUNDS * txs.size();
+                    System.out.printf("%3d peers: tx %,6.1f us serialized for each peer, %,6.1f us framed once " +
+                            "(%d%% saved); block %,8.1f us for each peer, %,8.1f us once (%d%% saved)%n", peers,
+                            tx[0] / 1000.0 / txCount, tx[1] / 1000.0 / txCount, saved(tx),
+                            blk[0] / 1000.0 / ROUNDS, blk[1] / 1000.0 / ROUNDS, saved(blk));
+                }
+            }
+        }
+    }
+
+    private static long saved(long[] times) {
+        return times[0] == 0 ? 0 : 100 - times[1] * 100 / times[0];
+    }
+
+    // Returns the CPU nanoseconds spent preparing every transaction for all the peers, serializing it for each and
+    // framing it once, summed over the rounds.
+    private static long[] run(NetworkParameters params, BitcoinSerializer serializer, ThreadMXBean bean,
+                              List<byte[]> txs, int peers) throws Exception {
+        long[] times = new long[2];
+        for (int round = 0; round < ROUNDS; round++) {
+            for (byte[] bytes : txs) {
+                long[] t = time(serializer, bean, new Transaction(params, bytes), new Transaction(params, bytes), peers);
+                times[0] += t[0];
+                times[1] += t[1];
+            }
+        }
+        return times;
+    }
+
+    private static long[] run(NetworkParameters params, BitcoinSerializer serializer, ThreadMXBean bean,
+                              byte[] blockBytes, int peers) throws Exception {
+        long[] times = new long[2];
+        for (int round = 0; round < ROUNDS; round++) {
+            long[] t = time(serializer, bean, new Block(params, blockBytes), new Block(params, blockBytes), peers);
+            times[0] += t[0];
+            times[1] += t[1];
+        }
+        return times;
+    }
+
+    // Two copies of the same message, so the second doesn't start with a frame the first left behind.
+    private static long[] time(BitcoinSerializer serializer, ThreadMXBean bean, Message eachTime, Message once,
+                               int peers) throws Exception {
+        long start = bean.getCurrentThreadCpuTime();
+        for (int i = 0; i < peers; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            serializer.serialize(eachTime, out);
+            consume(ByteBuffer.wrap(out.toByteArray()));
+        }
+        long middle = bean.getCurrentThreadCpuTime();
+        for (int i = 0; i < peers; i++) {
+            for (ByteBuffer buff : serializer.serializeToFrame(once).getBuffers())
+                consume(buff);
+        }
+        long end = bean.getCurrentThreadCpuTime();
+        return new long[] { middle - start, end - middle };
+    }
+
+    private static int sink;
+
+    private static void consume(ByteBuffer buff) {
+        sink += buff.remaining();
+    }
+}
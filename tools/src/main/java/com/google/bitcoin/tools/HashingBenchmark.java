@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.Utils;
+
+import java.security.MessageDigest;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many double SHA-256 hashes per second {@link Utils#doubleDigest(byte[], int, int)} does as more threads
+ * call it at once, compared with a single digest shared under a lock as Utils used to have. Also measures writing
+ * the hash into a caller's buffer. Pass the size of the data hashed as an argument, the default is 250 bytes, about
+ * the size of a transaction.
+ */
+public class HashingBenchmark {
+    private static final long MEASURE_MILLIS = 2000;
+
+    private enum Mode { SHARED, PER_THREAD, INTO_BUFFER }
+
+    private static final MessageDigest shared = Utils.newSha256Digest();
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 250;
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d bytes, %d cores%n", size, cores);
+        for (Mode mode : Mode.values()) {
+            for (int threads = 1; threads <= cores * 2; threads *= 2) {
+                long hashes = run(mode, size, threads);
+                System.out.printf("%-12s %2d threads: %,d hashes per second%n", mode, threads,
+                        hashes * 1000 / MEASURE_MILLIS);
+            }
+        }
+    }
+
+    // Returns how many hashes the threads did in MEASURE_MILLIS.
+    private static long run(final Mode mode, final int size, int threads) throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong hashes = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        byte[] data = new byte[size];
+                        byte[] output = new byte[32];
+                        long count = 0;
+                        while (!stop.get()) {
+                            data[0]++;
+                            switch (mode) {
+                                case SHARED:
+                                    sharedDoubleDigest(data);
+                                    break;
+                                case PER_THREAD:
+                                    Utils.doubleDigest(data, 0, data.length);
+                                    break;
+                                case INTO_BUFFER:
+                                    Utils.doubleDigest(data, 0, data.length, output, 0);
+                                    break;
+                            }
+                            count++;
+                        }
+                        hashes.addAndGet(count);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        Thread.sleep(MEASURE_MILLIS);
+        stop.set(true);
+        done.await();
+        return hashes.get();
+    }
+
+    private static byte[] sharedDoubleDigest(byte[] data) {
+        synchronized (shared) {
+            shared.reset();
+            shared.update(data);
+            return shared.digest(shared.digest());
+        }
+    }
+}
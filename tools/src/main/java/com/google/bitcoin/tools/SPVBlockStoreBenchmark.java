@@ -0,0 +1,106 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.SPVBlockStore;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Measures how long {@link SPVBlockStore#get(Sha256Hash)} takes on cache misses for stores of different sizes, and
+ * how long it takes to resize a store. Pass the sizes to try as arguments, the default is 5000, 100000 and 1000000
+ * headers. The store files are created in the temporary directory and deleted afterwards.
+ */
+public class SPVBlockStoreBenchmark {
+    private static final int LOOKUPS = 200000;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {SPVBlockStore.DEFAULT_NUM_HEADERS, 100000, 1000000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+        NetworkParameters params = UnitTestParams.get();
+        for (int size : sizes)
+            run(params, size);
+    }
+
+    private static Sha256Hash hashOf(NetworkParameters params, int height) {
+        return header(params, height).getHash();
+    }
+
+    private static Block header(NetworkParameters params, int height) {
+        Block header = params.getGenesisBlock().cloneAsHeader();
+        header.setNonce(height);
+        return header;
+    }
+
+    private static void run(NetworkParameters params, int size) throws Exception {
+        File file = File.createTempFile("spvbench", ".spvchain");
+        file.delete();
+        try {
+            long start = System.nanoTime();
+            SPVBlockStore store = new SPVBlockStore(params, file, size);
+            for (int i = 1; i <= size; i++) {
+                Block header = header(params, i);
+                store.put(new StoredBlock(header, header.getWork(), i));
+            }
+            store.close();
+            System.out.printf("%,d headers: filled in %,d ms%n", size, (System.nanoTime() - start) / 1000000);
+
+            // Reopen so the in-memory cache is empty, then look up random blocks so nearly all lookups miss it.
+            store = new SPVBlockStore(params, file);
+            Random random = new Random(1);
+            Sha256Hash[] present = new Sha256Hash[LOOKUPS];
+            Sha256Hash[] missing = new Sha256Hash[LOOKUPS];
+            for (int i = 0; i < LOOKUPS; i++) {
+                present[i] = hashOf(params, 1 + random.nextInt(size));
+                missing[i] = hashOf(params, size + 1 + i);
+            }
+            start = System.nanoTime();
+            for (Sha256Hash hash : present) {
+                if (store.get(hash) == null)
+                    throw new IllegalStateException("Missing block " + hash);
+            }
+            long presentNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (Sha256Hash hash : missing) {
+                if (store.get(hash) != null)
+                    throw new IllegalStateException("Unexpected block " + hash);
+            }
+            long missingNanos = System.nanoTime() - start;
+            store.close();
+            System.out.printf("%,d headers: %,d ns per lookup of a stored block, %,d ns per lookup of a missing one%n",
+                    size, presentNanos / LOOKUPS, missingNanos / LOOKUPS);
+
+            start = System.nanoTime();
+            store = new SPVBlockStore(params, file, size * 2);
+            store.close();
+            System.out.printf("%,d headers: grown to %,d in %,d ms%n", size, size * 2,
+                    (System.nanoTime() - start) / 1000000);
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.SPVBlockStore;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many {@link SPVBlockStore#get(Sha256Hash)} calls per second a store answers as more threads call it at
+ * once, first with nothing else going on and then while another thread keeps putting blocks. The lookups are of random
+ * blocks from a store much larger than its in-memory cache, so most of them read the file. Pass the number of headers
+ * to store as an argument, the default is 100000. The store file is created in the temporary directory and deleted
+ * afterwards.
+ */
+public class SPVBlockStoreContentionBenchmark {
+    private static final long MEASURE_MILLIS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        NetworkParameters params = UnitTestParams.get();
+        File file = File.createTempFile("spvbench", ".spvchain");
+        file.delete();
+        try {
+            final Sha256Hash[] hashes = new Sha256Hash[size];
+            SPVBlockStore store = new SPVBlockStore(params, file, size);
+            for (int i = 0; i < size; i++) {
+                StoredBlock block = block(params, i + 1);
+                hashes[i] = block.getHeader().getHash();
+                store.put(block);
+            }
+            store.close();
+
+            int cores = Runtime.getRuntime().availableProcessors();
+            System.out.printf("%,d headers, %d cores%n", size, cores);
+            for (int writing = 0; writing < 2; writing++) {
+                for (int threads = 1; threads <= cores * 2; threads *= 2) {
+                    // Reopen so every run starts with empty caches.
+                    store = new SPVBlockStore(params, file);
+                    long lookups = run(params, store, hashes, threads, writing == 1);
+                    store.close();
+                    System.out.printf("%2d reading threads%s: %,d lookups per second%n", threads,
+                            writing == 1 ? " and one writing" : "", lookups * 1000 / MEASURE_MILLIS);
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static StoredBlock block(NetworkParameters params, int height) {
+        Block header = params.getGenesisBlock().cloneAsHeader();
+        header.setNonce(height);
+        return new StoredBlock(header, header.getWork(), height);
+    }
+
+    // Returns how many lookups the reading threads did in MEASURE_MILLIS.
+    private static long run(final NetworkParameters params, final SPVBlockStore store, final Sha256Hash[] hashes,
+                            int threads, boolean writing) throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong lookups = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads + (writing ? 1 : 0));
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        long count = 0;
+                        while (!stop.get()) {
+                            // The oldest blocks are overwritten by the writer, so they may be missing.
+                            store.get(hashes[random.nextInt(hashes.length)]);
+                            count++;
+                        }
+                        lookups.addAndGet(count);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        if (writing) {
+            // Puts blocks at about the rate they arrive during chain download.
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int height = hashes.length + 1; !stop.get(); height++) {
+                            store.put(block(params, height));
+                            if (height % 10 == 0)
+                                Thread.sleep(1);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        Thread.sleep(MEASURE_MILLIS);
+        stop.set(true);
+        done.await();
+        return lookups.get();
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.crypto.ECDSAVerifier;
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptBuilder;
+import com.google.bitcoin.script.ScriptChunk;
+import com.google.bitcoin.utils.BlockFileLoader;
+import com.google.common.io.Files;
+import org.bitcoin.NativeSecp256k1;
+import org.spongycastle.crypto.params.ECPublicKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * <p>Measures signature verification over the pay-to-address inputs of real blocks: Bouncy Castle's ECDSASigner as
+ * ECKey used to do it, {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])} one signature at a time, and
+ * {@link ECKey#verify(List)} per block, on one thread and split across one thread per processor. If the native
+ * secp256k1 library can be loaded, the ECKey runs are repeated with it. Also compares verifying many signatures by
+ * one key with and without keeping the decoded key.</p>
+ *
+ * <p>Pass reference client block files (blkNNNNN.dat) as arguments. Without arguments the single block at
+ * core/src/test/resources/com/google/bitcoin/core/block169482.dat is used. The signature cache is disabled, so
+ * every run does all the maths.</p>
+ */
+public class SignatureBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int REPEATS = 200;
+
+    public static void main(String[] args) throws Exception {
+        NetworkParameters params = MainNetParams.get();
+        List<List<ECKey.SignatureCheck>> blocks = new ArrayList<List<ECKey.SignatureCheck>>();
+        if (args.length == 0) {
+            File file = new File("core/src/test/resources/com/google/bitcoin/core/block169482.dat");
+            blocks.add(checks(params, new Block(params, Files.toByteArray(file))));
+        } else {
+            List<File> files = new ArrayList<File>();
+            for (String arg : args)
+                files.add(new File(arg));
+            for (Block block : new BlockFileLoader(params, files))
+                blocks.add(checks(params, block));
+        }
+        int count = 0;
+        for (List<ECKey.SignatureCheck> block : blocks)
+            count += block.size();
+        System.out.printf("%,d signatures in %,d blocks%n", count, blocks.size());
+
+        SignatureCache.setDefault(null);
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            run("Bouncy Castle", blocks, count, Mode.BOUNCY_CASTLE, executor, threads);
+            run("Java, one at a time", blocks, count, Mode.SINGLE, executor, threads);
+            run("Java, batched", blocks, count, Mode.BATCH, executor, threads);
+            run("Java, batched on " + threads + " threads", blocks, count, Mode.PARALLEL, executor, threads);
+            repeatedKey();
+            if (loadNative()) {
+                NativeSecp256k1.enabled = true;
+                run("Native, one at a time", blocks, count, Mode.SINGLE, executor, threads);
+                run("Native, batched on " + threads + " threads", blocks, count, Mode.PARALLEL, executor, threads);
+            } else {
+                System.out.println("Native secp256k1 library not found, skipping native runs");
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // One key verifying many signatures, as a wallet or payment channel server does.
+    private static void repeatedKey() {
+        ECKey key = new ECKey();
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        List<ECKey.ECDSASignature> sigs = new ArrayList<ECKey.ECDSASignature>();
+        for (int i = 0; i < REPEATS; i++) {
+            hashes.add(Sha256Hash.create(new byte[] { (byte) i, (byte) (i >> 8) }));
+            sigs.add(key.sign(hashes.get(i)));
+        }
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < REPEATS; i++)
+                ECDSAVerifier.verify(hashes.get(i).getBytes(), sigs.get(i).r, sigs.get(i).s,
+                        ECDSAVerifier.decode(key.getPubKey()));
+            long decodedEveryTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < REPEATS; i++)
+                key.verify(hashes.get(i), sigs.get(i));
+            long decodedOnce = System.nanoTime() - start;
+            if (round == ROUNDS - 1)
+                System.out.printf("One key, %d signatures: %,d us each decoding the key every time, %,d us each " +
+                        "keeping it%n", REPEATS, decodedEveryTime / 1000 / REPEATS, decodedOnce / 1000 / REPEATS);
+        }
+    }
+
+    private enum Mode { BOUNCY_CASTLE, SINGLE, BATCH, PARALLEL }
+
+    private static boolean loadNative() {
+        try {
+            System.loadLibrary("javasecp256k1");
+            return true;
+        } catch (UnsatisfiedLinkError e) {
+            return false;
+        }
+    }
+
+    // The signatures of the inputs that look like they spend a pay-to-address output, ie whose script is a signature
+    // followed by a public key. The output they spend is rebuilt from the public key.
+    private static List<ECKey.SignatureCheck> checks(NetworkParameters params, Block block) throws Exception {
+        List<ECKey.SignatureCheck> checks = new ArrayList<ECKey.SignatureCheck>();
+        for (Transaction tx : block.getTransactions()) {
+            if (tx.isCoinBase())
+                continue;
+            for (int i = 0; i < tx.getInputs().size(); i++) {
+                List<ScriptChunk> chunks;
+                try {
+                    chunks = tx.getInput(i).getScriptSig().getChunks();
+                } catch (ScriptException e) {
+                    continue;
+                }
+                if (chunks.size() != 2 || chunks.get(0).isOpCode() || chunks.get(1).isOpCode())
+                    continue;
+                byte[] pub = chunks.get(1).data;
+                TransactionSignature sig;
+                try {
+                    sig = TransactionSignature.decodeFromBitcoin(chunks.get(0).data, false);
+                } catch (Exception e) {
+                    continue;
+                }
+                Script scriptPubKey = ScriptBuilder.createOutputScript(new Address(params, Utils.sha256hash160(pub)));
+                Sha256Hash hash = tx.hashForSignature(i, scriptPubKey.getProgram(), (byte) sig.sighashFlags);
+                checks.add(new ECKey.SignatureCheck(hash.getBytes(), sig, pub));
+            }
+        }
+        return checks;
+    }
+
+    private static void run(String name, List<List<ECKey.SignatureCheck>> blocks, int count, Mode mode,
+                            ExecutorService executor, int threads) throws Exception {
+        long best = Long.MAX_VALUE;
+        int valid = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            valid = 0;
+            for (List<ECKey.SignatureCheck> block : blocks)
+                valid += verify(block, mode, executor, threads);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("%-32s %,8d ms, %,6d us per signature, %,d valid%n", name, best / 1000000,
+                count == 0 ? 0 : best / 1000 / count, valid);
+    }
+
+    private static int verify(final List<ECKey.SignatureCheck> checks, Mode mode, ExecutorService executor,
+                              int threads) throws Exception {
+        int valid = 0;
+        switch (mode) {
+            case BOUNCY_CASTLE:
+                for (ECKey.SignatureCheck check : checks) {
+                    ECDSASigner signer = new ECDSASigner();
+                    signer.init(false, new ECPublicKeyParameters(ECKey.CURVE.getCurve().decodePoint(check.pub),
+                            ECKey.CURVE));
+                    if (signer.verifySignature(check.data, check.signature.r, check.signature.s))
+                        valid++;
+                }
+                return valid;
+            case SINGLE:
+                for (ECKey.SignatureCheck check : checks)
+                    if (ECKey.verify(check.data, check.signature, check.pub))
+                        valid++;
+                return valid;
+            case BATCH:
+                return count(ECKey.verify(checks));
+            default:
+                // Split the way ScriptVerifier does it, with signatures by the same key next to each other.
+                final List<ECKey.SignatureCheck> sorted = new ArrayList<ECKey.SignatureCheck>(checks);
+                Collections.sort(sorted, new Comparator<ECKey.SignatureCheck>() {
+                    @Override
+                    public int compare(ECKey.SignatureCheck a, ECKey.SignatureCheck b) {
+                        return ByteBuffer.wrap(a.pub).compareTo(ByteBuffer.wrap(b.pub));
+                    }
+                });
+                int perTask = Math.max(1, (sorted.size() + threads - 1) / threads);
+                List<Future<boolean[]>> results = new ArrayList<Future<boolean[]>>();
+                for (int from = 0; from < sorted.size(); from += perTask) {
+                    final List<ECKey.SignatureCheck> task = sorted.subList(from, Math.min(from + perTask, sorted.size()));
+                    results.add(executor.submit(new Callable<boolean[]>() {
+                        @Override
+                        public boolean[] call() throws Exception {
+                            return ECKey.verify(task);
+                        }
+                    }));
+                }
+                for (Future<boolean[]> result : results)
+                    valid += count(result.get());
+                return valid;
+        }
+    }
+
+    private static int count(boolean[] results) {
+        int count = 0;
+        for (boolean result : results)
+            if (result)
+                count++;
+        return count;
+    }
+}